@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.net.clc.bt;
+
+import backport.android.bluetooth.BluetoothAdapter;
+import backport.android.bluetooth.BluetoothServerSocket;
+import backport.android.bluetooth.BluetoothSocket;
+import android.content.Context;
+import android.content.Intent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * The RFCOMM links of the default Bluetooth adapter.
+ */
+final class BluetoothTransport implements PeerTransport {
+    private final Context mContext;
+
+    private final BluetoothAdapter mBtAdapter;
+
+    BluetoothTransport(Context context) {
+        mContext = context;
+        mBtAdapter = BluetoothAdapter.getDefaultAdapter();
+    }
+
+    public String getAddress() {
+        return mBtAdapter.getAddress();
+    }
+
+    public String getName() {
+        return mBtAdapter.getName();
+    }
+
+    public void cancelDiscovery() {
+        mBtAdapter.cancelDiscovery();
+    }
+
+    public void requestDiscoverable() {
+        Intent i = new Intent();
+        i.setClass(mContext, StartDiscoverableModeActivity.class);
+        i.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        mContext.startActivity(i);
+    }
+
+    public Listener listen(String name, UUID uuid) throws IOException {
+        final BluetoothServerSocket serverSocket = mBtAdapter
+                .listenUsingRfcommWithServiceRecord(name, uuid);
+        return new Listener() {
+            public Link accept() throws IOException {
+                return new SocketLink(serverSocket.accept());
+            }
+
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    public Link connect(String address, UUID uuid) throws IOException {
+        BluetoothSocket socket = mBtAdapter.getRemoteDevice(address)
+                .createRfcommSocketToServiceRecord(uuid);
+        try {
+            socket.connect();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return new SocketLink(socket);
+    }
+
+    private static final class SocketLink implements Link {
+        private final BluetoothSocket mSocket;
+
+        SocketLink(BluetoothSocket socket) {
+            mSocket = socket;
+        }
+
+        public String getRemoteAddress() {
+            return mSocket.getRemoteDevice().getAddress();
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
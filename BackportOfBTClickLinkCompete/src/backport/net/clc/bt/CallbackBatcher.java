@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.net.clc.bt;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Collects the frames received from every peer into a {@link MessageBatch},
+ * and hands the batch on once it holds maxMessages frames or
+ * {@link #MAX_BATCH_BYTES}, or its first frame has waited maxDelayMs,
+ * whichever comes first.
+ * <p>
+ * Batches are delivered while holding the batcher, so they keep their order;
+ * the delivery is a oneway binder call and does not block. Such calls share
+ * the 1 MB binder buffer of the client process, and one that does not fit
+ * fails, so a batch stays well below it.
+ */
+final class CallbackBatcher {
+    /** flush size of a batch; a larger frame is not batched. */
+    static final int MAX_BATCH_BYTES = 256 * 1024;
+
+    interface Delivery {
+        void deliver(byte[] batch);
+    }
+
+    private final Delivery mDelivery;
+
+    private final MessageBatch mBatch = new MessageBatch();
+
+    /** created with the first delayed flush. */
+    private Timer mTimer;
+
+    private TimerTask mFlushTask;
+
+    private int mMaxMessages;
+
+    private long mMaxDelayMs;
+
+    private volatile boolean mEnabled;
+
+    CallbackBatcher(Delivery delivery) {
+        mDelivery = delivery;
+    }
+
+    /**
+     * Sets the batch limits; batching is off if maxMessages is below 2 or
+     * maxDelayMs is not positive. The pending frames are delivered first.
+     */
+    synchronized void setLimits(int maxMessages, long maxDelayMs) {
+        flush();
+        mMaxMessages = maxMessages;
+        mMaxDelayMs = maxDelayMs;
+        mEnabled = maxMessages > 1 && maxDelayMs > 0;
+    }
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Adds a frame to the batch. A frame too large for a batch is not added,
+     * and the caller delivers it alone, after the pending frames.
+     *
+     * @return false if the frame was not added.
+     */
+    synchronized boolean add(String device, int type, byte[] payload, int offset, int length) {
+        int size = MessageBatch.entrySize(device, length);
+        if (size > MAX_BATCH_BYTES) {
+            flush();
+            return false;
+        }
+        if (mBatch.getLength() + size > MAX_BATCH_BYTES) {
+            flush();
+        }
+        mBatch.add(device, type, payload, offset, length);
+        if (mBatch.getCount() >= mMaxMessages || mBatch.getLength() == MAX_BATCH_BYTES) {
+            flush();
+        } else if (mFlushTask == null) {
+            if (mTimer == null) {
+                mTimer = new Timer("CallbackBatcher", true);
+            }
+            mFlushTask = new TimerTask() {
+                public void run() {
+                    flush();
+                }
+            };
+            mTimer.schedule(mFlushTask, mMaxDelayMs);
+        }
+        return true;
+    }
+
+    /**
+     * Delivers the pending frames now, e.g. before reporting a lost peer.
+     */
+    synchronized void flush() {
+        if (mFlushTask != null) {
+            mFlushTask.cancel();
+            mFlushTask = null;
+        }
+        if (mBatch.getCount() > 0) {
+            mDelivery.deliver(mBatch.take());
+        }
+    }
+
+    /**
+     * Drops the pending frames and stops the timer.
+     */
+    synchronized void shutdown() {
+        mBatch.take();
+        mFlushTask = null;
+        if (mTimer != null) {
+            mTimer.cancel();
+            mTimer = null;
+        }
+    }
+}
@@ -24,9 +24,13 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.util.Log;
 
+import java.io.IOException;
+import java.util.HashMap;
+
 /**
  * API for the Bluetooth Click, Link, Compete library. This library simplifies
  * the process of establishing Bluetooth connections and sending data in a way
@@ -42,6 +46,22 @@ public class Connection {
 
     public static final int MAX_SUPPORTED = 7;
 
+    /**
+     * Overflow policy: when the queue of a peer is full, wait for room (for
+     * up to two seconds). The default, for messages that must not be lost.
+     */
+    public static final int OVERFLOW_BLOCK = 0;
+
+    /** Overflow policy: when the queue of a peer is full, fail at once. */
+    public static final int OVERFLOW_FAIL = 1;
+
+    /**
+     * Overflow policy: when the queue of a peer is full, drop the oldest
+     * message queued with this policy, e.g. for state updates that a newer
+     * one supersedes.
+     */
+    public static final int OVERFLOW_DROP_OLDEST = 2;
+
     public interface OnConnectionServiceReadyListener {
         public void OnConnectionServiceReady();
     }
@@ -62,6 +82,10 @@ public class Connection {
         public void OnConnectionLost(String device);
     }
 
+    public interface OnBytesReceivedListener {
+        public void OnBytesReceived(String device, byte[] data);
+    }
+
     private OnConnectionServiceReadyListener mOnConnectionServiceReadyListener;
 
     private OnIncomingConnectionListener mOnIncomingConnectionListener;
@@ -72,6 +96,8 @@ public class Connection {
 
     private OnConnectionLostListener mOnConnectionLostListener;
 
+    private OnBytesReceivedListener mOnBytesReceivedListener;
+
     private ServiceConnection mServiceConnection;
 
     private Context mContext;
@@ -84,6 +110,11 @@ public class Connection {
 
     private IConnection mIconnection;
 
+    private volatile SharedRing.Reader mRing;
+
+    /** results of the connects in progress, by device; guarded by itself. */
+    private final HashMap<String, Integer> mConnectResults = new HashMap<String, Integer>();
+
     private IConnectionCallback mIccb = new IConnectionCallback.Stub() {
         public void incomingConnection(String device) throws RemoteException {
             if (mOnIncomingConnectionListener != null) {
@@ -97,6 +128,13 @@ public class Connection {
             }
         }
 
+        public void connectFinished(String device, int result) throws RemoteException {
+            synchronized (mConnectResults) {
+                mConnectResults.put(device, Integer.valueOf(result));
+                mConnectResults.notifyAll();
+            }
+        }
+
         public void maxConnectionsReached() throws RemoteException {
             if (mOnMaxConnectionsReachedListener != null) {
                 mOnMaxConnectionsReachedListener.OnMaxConnectionsReached();
@@ -108,6 +146,44 @@ public class Connection {
                 mOnMessageReceivedListener.OnMessageReceived(device, message);
             }
         }
+
+        public void bytesReceived(String device, byte[] data) throws RemoteException {
+            if (mOnBytesReceivedListener != null) {
+                mOnBytesReceivedListener.OnBytesReceived(device, data);
+            }
+        }
+
+        public void ringReady() throws RemoteException {
+            drainRing();
+        }
+
+        public void messagesReceived(byte[] batch) throws RemoteException {
+            try {
+                MessageBatch.unpack(batch, mBatchHandler);
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Malformed batch in messagesReceived", e);
+            }
+        }
+    };
+
+    private final MessageBatch.Handler mBatchHandler = new MessageBatch.Handler() {
+        public void onText(String device, String message) {
+            if (mOnMessageReceivedListener != null) {
+                mOnMessageReceivedListener.OnMessageReceived(device, message);
+            }
+        }
+
+        public void onBytes(String device, byte[] data) {
+            if (mOnBytesReceivedListener != null) {
+                mOnBytesReceivedListener.OnBytesReceived(device, data);
+            }
+        }
+
+        public void onConnectionLost(String device) {
+            if (mOnConnectionLostListener != null) {
+                mOnConnectionLostListener.OnConnectionLost(device);
+            }
+        }
     };
 
     // TODO: Add a check to autodownload this service from Market if the user
@@ -138,6 +214,9 @@ public class Connection {
                     }
                     mIconnection = null;
                 }
+                synchronized (mConnectResults) {
+                    mConnectResults.notifyAll();
+                }
             }
         };
 
@@ -178,14 +257,41 @@ public class Connection {
         }
         mOnMessageReceivedListener = omrListener;
         mOnConnectionLostListener = oclListener;
+        synchronized (mConnectResults) {
+            mConnectResults.remove(device);
+        }
         try {
-            int result = mIconnection.connect(mPackageName, device);
-            mIconnection.registerCallback(mPackageName, mIccb);
-            return result;
+            int result = mIconnection.connect(mPackageName, device, mIccb);
+            if (result != Connection.SUCCESS) {
+                return result;
+            }
         } catch (RemoteException e) {
             Log.e(TAG, "RemoteException in connect", e);
+            return Connection.FAILURE;
+        }
+        return awaitConnect(device);
+    }
+
+    /**
+     * Waits until the service reports the connect to device, which it makes
+     * on a thread of its own.
+     */
+    private int awaitConnect(String device) {
+        synchronized (mConnectResults) {
+            try {
+                while (!mConnectResults.containsKey(device)) {
+                    if (!mStarted) {
+                        return Connection.FAILURE;
+                    }
+                    mConnectResults.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Log.e(TAG, "InterruptedException in connect", e);
+                return Connection.FAILURE;
+            }
+            return mConnectResults.remove(device).intValue();
         }
-        return Connection.FAILURE;
     }
 
     public int sendMessage(String device, String message) {
@@ -212,6 +318,249 @@ public class Connection {
         return Connection.FAILURE;
     }
 
+    /**
+     * Sets the listener of the payloads sent with {@link #sendBytes} and
+     * {@link #broadcastBytes}. Text messages still go to the
+     * OnMessageReceivedListener.
+     */
+    public void setOnBytesReceivedListener(OnBytesReceivedListener obrListener) {
+        mOnBytesReceivedListener = obrListener;
+    }
+
+    /**
+     * Sends data to device as is, without converting it to a String.
+     */
+    public int sendBytes(String device, byte[] data) {
+        if (!mStarted) {
+            return Connection.FAILURE;
+        }
+        try {
+            return mIconnection.sendBytes(mPackageName, device, data);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in sendBytes", e);
+        }
+        return Connection.FAILURE;
+    }
+
+    public int broadcastBytes(byte[] data) {
+        if (!mStarted) {
+            return Connection.FAILURE;
+        }
+        try {
+            return mIconnection.broadcastBytes(mPackageName, data);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in broadcastBytes", e);
+        }
+        return Connection.FAILURE;
+    }
+
+    /**
+     * Lets the service pack the messages received within maxDelayMs, up to
+     * maxMessages of them and 256 KiB, into one call to this process. They
+     * are still handed to the listeners one by one, in order. Pass 0 to turn
+     * batching off, the default.
+     */
+    public int setCallbackBatching(int maxMessages, int maxDelayMs) {
+        if (!mStarted) {
+            return Connection.FAILURE;
+        }
+        try {
+            return mIconnection.setCallbackBatching(mPackageName, maxMessages, maxDelayMs);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in setCallbackBatching", e);
+        }
+        return Connection.FAILURE;
+    }
+
+    /**
+     * Turns relay mode on or off, after startServer or connect. In relay
+     * mode this device passes on the messages of others, so a session can
+     * span several piconets: messages to a device that is not connected
+     * directly are routed through the others, broadcasts reach every device
+     * within hopLimit links, and startServer and connect may be called again
+     * to join another piconet. Messages relayed to the listeners carry the
+     * address of the device that sent them. Every device of the session
+     * should turn it on.
+     */
+    public int setRelayMode(boolean enabled, int hopLimit) {
+        if (!mStarted) {
+            return Connection.FAILURE;
+        }
+        try {
+            return mIconnection.setRelayMode(mPackageName, enabled, hopLimit);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in setRelayMode", e);
+        }
+        return Connection.FAILURE;
+    }
+
+    /**
+     * Turns reliable delivery on for the connections made after it, so call
+     * it before startServer or connect, on every device of the session. The
+     * messages to each peer are then numbered and kept, up to bufferMessages
+     * of them, until the peer acknowledges them. If a link drops, it is
+     * connected again and the messages the peer missed are sent again, in
+     * order; the OnConnectionLostListener only hears of it if the link stays
+     * down for 15 seconds. While the buffer is full, sends wait with
+     * {@link #OVERFLOW_BLOCK} and fail with the other policies. Pass 0 to
+     * turn it off.
+     */
+    public int setReliableDelivery(int bufferMessages) {
+        if (!mStarted) {
+            return Connection.FAILURE;
+        }
+        try {
+            return mIconnection.setReliableDelivery(mPackageName, bufferMessages);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in setReliableDelivery", e);
+        }
+        return Connection.FAILURE;
+    }
+
+    /**
+     * Has the service put the received messages and lost connections in a
+     * ring of about capacity bytes in shared memory, instead of making a
+     * binder call for each. The listeners are called as before. Messages
+     * larger than the ring are dropped. Use it for fast streams of small
+     * messages, such as game state updates.
+     */
+    public int enableMessageRing(int capacity) {
+        if (!mStarted) {
+            return Connection.FAILURE;
+        }
+        try {
+            SharedRing.Reader ring = SharedRing.createReader(mContext.getCacheDir());
+            ParcelFileDescriptor data = mIconnection.openMessageRing(mPackageName,
+                    ring.getCursorDescriptor(), capacity);
+            ring.closeCursorDescriptor();
+            if (data == null) {
+                return Connection.FAILURE;
+            }
+            ring.attach(data);
+            mRing = ring;
+            // The service only wakes a reader that went to sleep.
+            drainRing();
+            return Connection.SUCCESS;
+        } catch (IOException e) {
+            Log.e(TAG, "IOException in enableMessageRing", e);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in enableMessageRing", e);
+        }
+        return Connection.FAILURE;
+    }
+
+    /**
+     * Dispatches the entries in the ring until it stays empty, then waits
+     * for the service to wake it up.
+     */
+    private void drainRing() {
+        SharedRing.Reader ring = mRing;
+        if (ring == null) {
+            return;
+        }
+        synchronized (ring) {
+            ring.wake();
+            do {
+                while (ring.drain(mBatchHandler)) {
+                    if (ring.isWriterWaiting()) {
+                        try {
+                            mIconnection.ringDrained(mPackageName);
+                        } catch (RemoteException e) {
+                            Log.e(TAG, "RemoteException in drainRing", e);
+                        }
+                    }
+                }
+            } while (!ring.sleep());
+        }
+    }
+
+    /**
+     * Sends message to device with one of the OVERFLOW policies.
+     * {@link #sendMessage} uses {@link #OVERFLOW_BLOCK}.
+     */
+    public int sendMessageWithPolicy(String device, String message, int policy) {
+        if (!mStarted) {
+            return Connection.FAILURE;
+        }
+        try {
+            return mIconnection.sendMessageWithPolicy(mPackageName, device, message, policy);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in sendMessageWithPolicy", e);
+        }
+        return Connection.FAILURE;
+    }
+
+    /**
+     * @return FAILURE if the message could not be queued for some device.
+     */
+    public int broadcastMessageWithPolicy(String message, int policy) {
+        if (!mStarted) {
+            return Connection.FAILURE;
+        }
+        try {
+            return mIconnection.broadcastMessageWithPolicy(mPackageName, message, policy);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in broadcastMessageWithPolicy", e);
+        }
+        return Connection.FAILURE;
+    }
+
+    public int sendBytesWithPolicy(String device, byte[] data, int policy) {
+        if (!mStarted) {
+            return Connection.FAILURE;
+        }
+        try {
+            return mIconnection.sendBytesWithPolicy(mPackageName, device, data, policy);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in sendBytesWithPolicy", e);
+        }
+        return Connection.FAILURE;
+    }
+
+    public int broadcastBytesWithPolicy(byte[] data, int policy) {
+        if (!mStarted) {
+            return Connection.FAILURE;
+        }
+        try {
+            return mIconnection.broadcastBytesWithPolicy(mPackageName, data, policy);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in broadcastBytesWithPolicy", e);
+        }
+        return Connection.FAILURE;
+    }
+
+    /**
+     * @return how many messages wait to be written to device, or -1 if it
+     *         is not connected.
+     */
+    public int getQueueDepth(String device) {
+        if (!mStarted) {
+            return -1;
+        }
+        try {
+            return mIconnection.getQueueDepth(mPackageName, device);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in getQueueDepth", e);
+        }
+        return -1;
+    }
+
+    /**
+     * @return how many messages to device were dropped or refused because
+     *         its queue was full, or -1 if it is not connected.
+     */
+    public long getDropCount(String device) {
+        if (!mStarted) {
+            return -1;
+        }
+        try {
+            return mIconnection.getDropCount(mPackageName, device);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in getDropCount", e);
+        }
+        return -1;
+    }
+
     public String getConnections() {
         if (!mStarted) {
             return "";
@@ -263,6 +612,7 @@ public class Connection {
     public void shutdown() {
         try {
             mStarted = false;
+            mRing = null;
             if (mIconnection != null) {
                 mIconnection.shutdown(mPackageName);
             }
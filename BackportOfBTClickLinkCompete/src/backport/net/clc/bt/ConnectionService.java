@@ -20,24 +20,29 @@ import backport.net.clc.bt.IConnection;
 import backport.net.clc.bt.IConnectionCallback;
 
 import android.app.Service;
-import backport.android.bluetooth.BluetoothAdapter;
 import backport.android.bluetooth.BluetoothDevice;
-import backport.android.bluetooth.BluetoothServerSocket;
-import backport.android.bluetooth.BluetoothSocket;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Service for simplifying the process of establishing Bluetooth connections and
@@ -47,31 +52,73 @@ import java.util.UUID;
 public class ConnectionService extends Service {
     public static final String TAG = "net.clc.bt.ConnectionService";
 
+    /** passes over the slots before connect gives up. */
+    private static final int CONNECT_PASSES = 3;
+
+    /** wait before the second pass; doubled for each further pass. */
+    private static final long CONNECT_RETRY_DELAY_MS = 200;
+
+    /** how long a reliable session waits for its link to come back. */
+    private static final long RESUME_TIMEOUT_MS = 15000;
+
     private ArrayList<UUID> mUuid;
 
+    /** slot of the last successful connect, by host address. */
+    private final ConcurrentHashMap<String, Integer> mLastSlots =
+            new ConcurrentHashMap<String, Integer>();
+
     private ConnectionService mSelf;
 
-    private String mApp; // Assume only one app can use this at a time; may
+    private volatile String mApp; // Assume only one app can use this at a time; may
 
     // change this later
 
-    private IConnectionCallback mCallback;
+    private volatile IConnectionCallback mCallback;
+
+    private PeerRegistry mPeers;
+
+    private PeerReaders mReaders;
+
+    private CallbackBatcher mBatcher;
+
+    /** the listening socket of the running ConnectionWaiter, if any. */
+    private volatile PeerTransport.Listener mServerSocket;
+
+    /** reliable sessions by peer address, kept while their link is down. */
+    private final ConcurrentHashMap<String, ReliableChannel> mChannels =
+            new ConcurrentHashMap<String, ReliableChannel>();
 
-    private ArrayList<String> mBtDeviceAddresses;
+    /** buffer size of new reliable sessions; 0 while reliable delivery is off. */
+    private volatile int mReliableCapacity;
 
-    private HashMap<String, BluetoothSocket> mBtSockets;
+    /** created with the first lost reliable link. */
+    private Timer mResumeTimer;
 
-    private HashMap<String, Thread> mBtStreamWatcherThreads;
+    /** set while a ConnectionWaiter only waits for lost links to resume. */
+    private volatile boolean mResumeListening;
 
-    private BluetoothAdapter mBtAdapter;
+    /** routes the relay frames of the session; created with it. */
+    private volatile MeshRouter mRouter;
+
+    /** set while the client reads its messages from shared memory. */
+    private volatile SharedRing.Writer mRing;
+
+    private final PeerTransport mTransport;
 
     public ConnectionService() {
+        this(null);
+    }
+
+    /**
+     * @param transport the links of the sessions; null for Bluetooth.
+     */
+    ConnectionService(PeerTransport transport) {
         mSelf = this;
-        mBtAdapter = BluetoothAdapter.getDefaultAdapter();
+        mTransport = transport != null ? transport : new BluetoothTransport(this);
         mApp = "";
-        mBtSockets = new HashMap<String, BluetoothSocket>();
-        mBtDeviceAddresses = new ArrayList<String>();
-        mBtStreamWatcherThreads = new HashMap<String, Thread>();
+        mPeers = new PeerRegistry();
+        mReaders = new PeerReaders(mPeerListener);
+        mBatcher = new CallbackBatcher(mBatchDelivery);
         mUuid = new ArrayList<UUID>();
         // Allow up to 7 devices to connect to the server
         mUuid.add(UUID.fromString("a60f35f0-b93a-11de-8a39-08002009c666"));
@@ -83,179 +130,780 @@ public class ConnectionService extends Service {
         mUuid.add(UUID.fromString("503c7435-bc23-11de-8a39-0800200c9a66"));
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        registerReceiver(mAclReceiver, new IntentFilter(BluetoothDevice.ACTION_ACL_DISCONNECTED));
+    }
+
+    @Override
+    public void onDestroy() {
+        unregisterReceiver(mAclReceiver);
+        endSession();
+        mReaders.shutdown();
+        mBatcher.shutdown();
+        super.onDestroy();
+    }
+
     @Override
     public IBinder onBind(Intent arg0) {
         return mBinder;
     }
 
-    private class BtStreamWatcher implements Runnable {
-        private String address;
+    /**
+     * Hands the frames read from the peers to the registered callback, and
+     * the relay frames to the router.
+     */
+    private final PeerReaders.Listener mPeerListener = new PeerReaders.Listener() {
+        public void onFrame(PeerRegistry.Peer peer, FrameCodec.Reader reader) {
+            int type = reader.getType();
+            switch (type) {
+                case FrameCodec.TYPE_TEXT:
+                case FrameCodec.TYPE_BYTES:
+                    deliverFrame(peer.getAddress(), type, reader.getBuffer(),
+                            reader.getOffset(), reader.getLength());
+                    break;
+                case FrameCodec.TYPE_RELAY:
+                    MeshRouter router = mRouter;
+                    if (router != null) {
+                        router.onFrame(peer.getAddress(), reader.getBuffer(),
+                                reader.getOffset(), reader.getLength());
+                    }
+                    break;
+                case FrameCodec.TYPE_RELIABLE:
+                case FrameCodec.TYPE_ACK:
+                case FrameCodec.TYPE_RESUME:
+                    onReliableFrame(peer, type, reader.getBuffer(), reader.getOffset(),
+                            reader.getLength());
+                    break;
+                default:
+                    Log.w(TAG, "Unknown frame type " + type + " from " + peer.getAddress());
+                    break;
+            }
+        }
 
-        public BtStreamWatcher(String deviceAddress) {
-            address = deviceAddress;
+        public void onPeerLost(PeerRegistry.Peer peer) {
+            peer.getQueue().close();
+            // A peer replaced by a reconnect, or dropped by shutdown, is no
+            // longer registered and is not reported.
+            if (!mPeers.remove(peer)) {
+                return;
+            }
+            MeshRouter router = mRouter;
+            if (router != null) {
+                router.onNeighborLost(peer.getAddress());
+            }
+            ReliableChannel channel = mChannels.get(peer.getAddress());
+            if (channel != null) {
+                // Not reported unless the link stays down.
+                awaitResume(channel, channel.detach());
+                return;
+            }
+            reportLost(peer.getAddress());
+        }
+    };
+
+    private void reportLost(String device) {
+        IConnectionCallback callback = mCallback;
+        if (callback == null) {
+            return;
+        }
+        SharedRing.Writer ring = mRing;
+        if (ring != null) {
+            // Reported in the ring, after what the peer sent.
+            if (ring.write(device, MessageBatch.TYPE_LOST, new byte[0], 0, 0)) {
+                wakeRingReader(callback);
+            }
+            return;
+        }
+        // Deliver what the peer sent before reporting it lost.
+        mBatcher.flush();
+        try {
+            callback.connectionLost(device);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in reportLost", e);
+        }
+    }
+
+    private void onReliableFrame(PeerRegistry.Peer peer, int type, byte[] b, int offset,
+            int length) {
+        ReliableChannel channel = mChannels.get(peer.getAddress());
+        if (channel == null) {
+            Log.w(TAG, "Dropped a reliable frame from " + peer.getAddress()
+                    + " without a reliable session");
+            return;
+        }
+        if (type == FrameCodec.TYPE_RESUME) {
+            channel.onResume(peer, b, offset, length);
+        } else if (type == FrameCodec.TYPE_ACK) {
+            channel.onAck(b, offset, length);
+        } else if (channel.receive(peer, b, offset, length)) {
+            deliverFrame(peer.getAddress(), b[offset + 4] & 0xff, b,
+                    offset + ReliableChannel.HEADER_SIZE, length - ReliableChannel.HEADER_SIZE);
+        }
+    }
+
+    /**
+     * Gets the link of a reliable session back: the side that connected
+     * reconnects, the other listens.
+     */
+    private void awaitResume(ReliableChannel channel, int detachCount) {
+        expireUnlessResumed(channel, detachCount);
+        if (channel.isDialed()) {
+            new Thread(new Reconnector(channel, detachCount)).start();
+        } else {
+            listenForResume();
+        }
+    }
+
+    /**
+     * Ends a reliable session that did not resume within
+     * {@link #RESUME_TIMEOUT_MS}, and reports the peer lost.
+     */
+    private void expireUnlessResumed(final ReliableChannel channel, final int detachCount) {
+        synchronized (this) {
+            if (mResumeTimer == null) {
+                mResumeTimer = new Timer("ResumeTimer", true);
+            }
+            mResumeTimer.schedule(new TimerTask() {
+                public void run() {
+                    if (!channel.isDetachedSince(detachCount)
+                            || !mChannels.remove(channel.getAddress(), channel)) {
+                        return;
+                    }
+                    Log.i(TAG, "No resume from " + channel.getAddress());
+                    reportLost(channel.getAddress());
+                    PeerTransport.Listener serverSocket = mServerSocket;
+                    if (mResumeListening && !isAwaitingResume() && serverSocket != null) {
+                        closeServerSocket(serverSocket);
+                    }
+                }
+            }, RESUME_TIMEOUT_MS);
+        }
+    }
+
+    private synchronized void cancelResumeTimer() {
+        if (mResumeTimer != null) {
+            mResumeTimer.cancel();
+            mResumeTimer = null;
+        }
+    }
+
+    /**
+     * @return true if a peer that connected to this device may come back.
+     */
+    private boolean isAwaitingResume() {
+        Iterator<ReliableChannel> channels = mChannels.values().iterator();
+        while (channels.hasNext()) {
+            ReliableChannel channel = channels.next();
+            if (!channel.isDialed() && channel.isAwaitingLink()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void listenForResume() {
+        if (mServerSocket != null || mResumeListening) {
+            return;
+        }
+        mResumeListening = true;
+        new Thread(new ConnectionWaiter(mApp, 0, true)).start();
+    }
+
+    /**
+     * Connects to a host for the app and reports the result. Paging and the
+     * service lookups of the slots can take seconds, which would hold a
+     * binder thread of the service for as long.
+     */
+    private class Connector implements Runnable {
+        private String srcApp;
+
+        private String device;
+
+        private IConnectionCallback callback;
+
+        public Connector(String theApp, String theDevice, IConnectionCallback theCallback) {
+            srcApp = theApp;
+            device = theDevice;
+            callback = theCallback;
         }
 
         public void run() {
-            int bufferSize = 1024;
-            byte[] buffer = new byte[bufferSize];
-            BluetoothSocket bSock = mBtSockets.get(address);
+            // Inquiry slows down paging, and the sockets of the library we
+            // link against do not pause it themselves.
+            mTransport.cancelDiscovery();
+
+            int result = Connection.FAILURE;
+            PeerTransport.Link myBSock = connectToFreeSlot(device);
+            if (myBSock != null && !mApp.equals(srcApp)) {
+                // The session was shut down while connecting.
+                try {
+                    myBSock.close();
+                } catch (IOException e) {
+                    Log.i(TAG, "IOException closing a connect to " + device, e);
+                }
+            } else if (myBSock != null) {
+                addPeer(new PeerRegistry.Peer(device, myBSock), true);
+                result = Connection.SUCCESS;
+            }
             try {
-                InputStream instream = bSock.getInputStream();
-                int bytesRead = -1;
-                String message = "";
-                while (true) {
-                    message = "";
-                    bytesRead = instream.read(buffer);
-                    if (bytesRead != -1) {
-                        while ((bytesRead == bufferSize) && (buffer[bufferSize - 1] != 0)) {
-                            message = message + new String(buffer, 0, bytesRead);
-                            bytesRead = instream.read(buffer);
-                        }
-                        message = message + new String(buffer, 0, bytesRead - 1); // Remove
-                        // the
-                        // stop
-                        // marker
-                        mCallback.messageReceived(address, message);
+                callback.connectFinished(device, result);
+            } catch (RemoteException e) {
+                Log.e(TAG, "RemoteException in Connector", e);
+            }
+        }
+    }
+
+    /**
+     * Connects again to the host of a reliable session whose link was lost.
+     */
+    private class Reconnector implements Runnable {
+        private ReliableChannel channel;
+
+        private int detachCount;
+
+        public Reconnector(ReliableChannel theChannel, int theDetachCount) {
+            channel = theChannel;
+            detachCount = theDetachCount;
+        }
+
+        public void run() {
+            String address = channel.getAddress();
+            mTransport.cancelDiscovery();
+            while (channel.isDetachedSince(detachCount) && mChannels.get(address) == channel) {
+                PeerTransport.Link myBSock = connectToFreeSlot(address);
+                if (myBSock == null) {
+                    continue;
+                }
+                // The session may have expired, or been resumed by the
+                // host, while connecting.
+                if (!channel.isDetachedSince(detachCount) || mChannels.get(address) != channel) {
+                    try {
+                        myBSock.close();
+                    } catch (IOException e) {
+                        Log.i(TAG, "IOException closing a stale reconnect to " + address, e);
                     }
+                    return;
                 }
-            } catch (IOException e) {
-                Log.i(TAG,
-                        "IOException in BtStreamWatcher - probably caused by normal disconnection",
-                        e);
-            } catch (RemoteException e) {
-                Log.e(TAG, "RemoteException in BtStreamWatcher while reading data", e);
+                addPeer(new PeerRegistry.Peer(address, myBSock), true);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Hands a received frame to the registered callback: in the shared ring
+     * if the client opened one, else one call per frame or through the
+     * batcher.
+     */
+    private void deliverFrame(String device, int type, byte[] b, int offset, int length) {
+        if (type != FrameCodec.TYPE_TEXT && type != FrameCodec.TYPE_BYTES) {
+            // A relayed or reliable frame wraps a type of its own.
+            Log.w(TAG, "Unknown frame type " + type + " from " + device);
+            return;
+        }
+        IConnectionCallback callback = mCallback;
+        if (callback == null) {
+            return;
+        }
+        SharedRing.Writer ring = mRing;
+        if (ring != null) {
+            if (ring.write(device, type, b, offset, length)) {
+                wakeRingReader(callback);
+            }
+            return;
+        }
+        if (mBatcher.isEnabled() && mBatcher.add(device, type, b, offset, length)) {
+            return;
+        }
+        try {
+            if (type == FrameCodec.TYPE_TEXT) {
+                callback.messageReceived(device, new String(b, offset, length, "UTF-8"));
+            } else {
+                byte[] data = new byte[length];
+                System.arraycopy(b, offset, data, 0, length);
+                callback.bytesReceived(device, data);
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in deliverFrame", e);
+        }
+    }
+
+    /**
+     * Connects the router to the peers; relay frames are queued like any
+     * other frame.
+     */
+    private final MeshRouter.Transport mMeshTransport = new MeshRouter.Transport() {
+        public boolean isNeighbor(String address) {
+            return mPeers.contains(address);
+        }
+
+        public boolean send(String neighbor, byte[] frame, int policy) {
+            return queueFrame(neighbor, FrameCodec.TYPE_RELAY, frame, policy) == Connection.SUCCESS;
+        }
+
+        public boolean sendToAll(String except, byte[] frame, int policy) {
+            PeerRegistry.Peer[] peers = mPeers.getPeers();
+            if (except != null) {
+                int count = 0;
+                PeerRegistry.Peer[] others = new PeerRegistry.Peer[peers.length];
+                for (int i = 0; i < peers.length; i++) {
+                    if (!peers[i].getAddress().equals(except)) {
+                        others[count++] = peers[i];
+                    }
+                }
+                peers = new PeerRegistry.Peer[count];
+                System.arraycopy(others, 0, peers, 0, count);
+            }
+            return queueFrame(peers, FrameCodec.TYPE_RELAY, frame, policy) == Connection.SUCCESS;
+        }
+
+        public void deliver(String origin, int type, byte[] payload, int offset, int length) {
+            deliverFrame(origin, type, payload, offset, length);
+        }
+    };
+
+    private final CallbackBatcher.Delivery mBatchDelivery = new CallbackBatcher.Delivery() {
+        public void deliver(byte[] batch) {
+            IConnectionCallback callback = mCallback;
+            if (callback == null) {
+                return;
             }
-            // Getting out of the while loop means the connection is dead.
             try {
-                mBtDeviceAddresses.remove(address);
-                mBtSockets.remove(address);
-                mBtStreamWatcherThreads.remove(address);
-                mCallback.connectionLost(address);
+                callback.messagesReceived(batch);
             } catch (RemoteException e) {
-                Log.e(TAG, "RemoteException in BtStreamWatcher while disconnecting", e);
+                Log.e(TAG, "RemoteException in BatchDelivery", e);
             }
         }
+    };
+
+    private void wakeRingReader(IConnectionCallback callback) {
+        try {
+            callback.ringReady();
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in wakeRingReader", e);
+        }
     }
 
+    /**
+     * A peer whose ACL link is gone may not fail its next read for a while,
+     * so it is closed now.
+     */
+    private final BroadcastReceiver mAclReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            PeerRegistry.Peer peer = device != null ? mPeers.get(device.getAddress()) : null;
+            if (peer != null) {
+                mReaders.closePeer(peer);
+            }
+        }
+    };
+
+    /**
+     * Drains the outbound queue of one peer, so that a peer whose RFCOMM
+     * buffer is full only holds up its own messages.
+     */
+    private class PeerWriter implements Runnable {
+        private PeerRegistry.Peer peer;
+
+        public PeerWriter(PeerRegistry.Peer thePeer) {
+            peer = thePeer;
+        }
+
+        public void run() {
+            OutboundQueue queue = peer.getQueue();
+            FrameCodec.Writer writer = new FrameCodec.Writer();
+            try {
+                OutputStream outStream = peer.getLink().getOutputStream();
+                OutboundQueue.Frame frame;
+                while ((frame = queue.take()) != null) {
+                    if (frame.mType == FrameCodec.TYPE_TEXT) {
+                        writer.writeText(outStream, (String) frame.mPayload);
+                    } else {
+                        byte[] data = (byte[]) frame.mPayload;
+                        writer.write(outStream, frame.mType, data, 0, data.length);
+                    }
+                    peer.countSent(writer.getPayloadLength());
+                }
+            } catch (IOException e) {
+                Log.i(TAG, "IOException in PeerWriter - Dest:" + peer.getAddress(), e);
+                mReaders.closePeer(peer);
+            } catch (InterruptedException e) {
+                Log.e(TAG, "InterruptedException in PeerWriter", e);
+            }
+        }
+    }
+
+    /**
+     * Accepts the players of a server. The library we link against binds
+     * every server socket to the same RFCOMM channel, whatever its UUID, so
+     * the slots cannot listen side by side; closing the socket after each
+     * player and listening again refused everyone who paged in meanwhile.
+     * One socket now stays open until the last player joined, and players
+     * who connect while another is being registered wait in its backlog.
+     * Players coming back to resume their reliable session do not count.
+     */
     private class ConnectionWaiter implements Runnable {
         private String srcApp;
 
         private int maxConnections;
 
-        public ConnectionWaiter(String theApp, int connections) {
+        /** true to only take back lost reliable links. */
+        private boolean resumeOnly;
+
+        public ConnectionWaiter(String theApp, int connections, boolean onlyResume) {
             srcApp = theApp;
-            maxConnections = connections;
+            maxConnections = Math.min(connections, Connection.MAX_SUPPORTED);
+            resumeOnly = onlyResume;
         }
 
         public void run() {
+            PeerTransport.Listener myServerSocket = null;
             try {
-                for (int i = 0; i < Connection.MAX_SUPPORTED && maxConnections > 0; i++) {
-                    BluetoothServerSocket myServerSocket = mBtAdapter
-                            .listenUsingRfcommWithServiceRecord(srcApp, mUuid.get(i));
-                    BluetoothSocket myBSock = myServerSocket.accept();
-                    myServerSocket.close(); // Close the socket now that the
-                    // connection has been made.
-
-                    String address = myBSock.getRemoteDevice().getAddress();
-
-                    mBtSockets.put(address, myBSock);
-                    mBtDeviceAddresses.add(address);
-                    Thread mBtStreamWatcherThread = new Thread(new BtStreamWatcher(address));
-                    mBtStreamWatcherThread.start();
-                    mBtStreamWatcherThreads.put(address, mBtStreamWatcherThread);
+                myServerSocket = mTransport.listen(srcApp, mUuid.get(0));
+                mServerSocket = myServerSocket;
+                while (maxConnections > 0 || (resumeOnly && isAwaitingResume())) {
+                    PeerTransport.Link myBSock = myServerSocket.accept();
+                    String address = myBSock.getRemoteAddress();
+                    boolean resumed = mChannels.containsKey(address);
+                    if (!resumed && resumeOnly) {
+                        Log.i(TAG, "Refused " + address + " while waiting for a resume");
+                        myBSock.close();
+                        continue;
+                    }
+
+                    addPeer(new PeerRegistry.Peer(address, myBSock), false);
+                    if (resumed) {
+                        continue;
+                    }
                     maxConnections = maxConnections - 1;
                     if (mCallback != null) {
                         mCallback.incomingConnection(address);
                     }
                 }
-                if (mCallback != null) {
+                if (!resumeOnly && mCallback != null) {
                     mCallback.maxConnectionsReached();
                 }
             } catch (IOException e) {
                 Log.i(TAG, "IOException in ConnectionService:ConnectionWaiter", e);
             } catch (RemoteException e) {
                 Log.e(TAG, "RemoteException in ConnectionService:ConnectionWaiter", e);
+            } finally {
+                if (myServerSocket != null) {
+                    closeServerSocket(myServerSocket);
+                }
+                if (resumeOnly) {
+                    mResumeListening = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops listening, which also ends a ConnectionWaiter blocked in
+     * accept().
+     */
+    private void closeServerSocket(PeerTransport.Listener serverSocket) {
+        if (mServerSocket == serverSocket) {
+            mServerSocket = null;
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Log.i(TAG, "IOException closing the server socket", e);
+        }
+    }
+
+    /**
+     * Connects to a free slot of the host, trying the slot that worked last
+     * time first. Each slot is tried once per pass, since a slot without a
+     * listener fails at the service lookup, and only the passes are spaced
+     * out. The slots are tried one at a time: they share one link to the
+     * host, and two probes that both got through would make the host see a
+     * player that leaves at once.
+     */
+    private PeerTransport.Link connectToFreeSlot(String address) {
+        long start = SystemClock.elapsedRealtime();
+        Integer lastSlot = mLastSlots.get(address);
+        int first = lastSlot != null ? lastSlot.intValue() : 0;
+        int attempts = 0;
+        for (int pass = 0; pass < CONNECT_PASSES; pass++) {
+            if (pass > 0) {
+                try {
+                    Thread.sleep(CONNECT_RETRY_DELAY_MS << (pass - 1));
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "InterruptedException in connectToFreeSlot", e);
+                    return null;
+                }
+            }
+            for (int i = 0; i < Connection.MAX_SUPPORTED; i++) {
+                // The last slot first, then the others from the lowest,
+                // which the host fills first.
+                int slot = i == 0 ? first : (i <= first ? i - 1 : i);
+                ++attempts;
+                PeerTransport.Link myBSock = getConnectedSocket(address, mUuid.get(slot));
+                if (myBSock != null) {
+                    mLastSlots.put(address, Integer.valueOf(slot));
+                    Log.i(TAG, "Connected to " + address + " on slot " + slot
+                            + " after " + attempts + " attempts in "
+                            + (SystemClock.elapsedRealtime() - start) + " ms");
+                    return myBSock;
+                }
             }
         }
+        Log.i(TAG, "No free slot on " + address + " after " + attempts
+                + " attempts in " + (SystemClock.elapsedRealtime() - start) + " ms");
+        return null;
     }
 
-    private BluetoothSocket getConnectedSocket(BluetoothDevice myBtServer, UUID uuidToTry) {
-        BluetoothSocket myBSock;
+    private PeerTransport.Link getConnectedSocket(String address, UUID uuidToTry) {
         try {
-            myBSock = myBtServer.createRfcommSocketToServiceRecord(uuidToTry);
-            myBSock.connect();
-            return myBSock;
+            return mTransport.connect(address, uuidToTry);
         } catch (IOException e) {
             Log.i(TAG, "IOException in getConnectedSocket", e);
         }
         return null;
     }
 
+    /**
+     * Registers a connected peer and starts its writer and reader.
+     * With reliable delivery on, the link starts or resumes the reliable
+     * session with the peer.
+     *
+     * @param dialed true if this side connected.
+     */
+    private void addPeer(PeerRegistry.Peer peer, boolean dialed) {
+        PeerRegistry.Peer old = mPeers.add(peer);
+        if (old != null) {
+            old.getQueue().close();
+        }
+        ReliableChannel channel = mChannels.get(peer.getAddress());
+        if (channel == null && mReliableCapacity > 0) {
+            channel = new ReliableChannel(peer.getAddress(), dialed, mReliableCapacity, mReaders);
+            mChannels.put(peer.getAddress(), channel);
+        }
+        if (channel != null) {
+            expireUnlessResumed(channel, channel.connecting(peer));
+        }
+        new Thread(new PeerWriter(peer)).start();
+        mReaders.addPeer(peer);
+    }
+
+    /**
+     * Queues a frame for each of peers. The queues with room are served
+     * first, so with {@link Connection#OVERFLOW_BLOCK} a full queue does not
+     * hold up the peers after it.
+     *
+     * @return FAILURE if the frame could not be queued for some peer.
+     */
+    private int queueFrame(PeerRegistry.Peer[] peers, int type, Object payload, int policy) {
+        int result = Connection.SUCCESS;
+        PeerRegistry.Peer[] full = null;
+        int fullCount = 0;
+        for (int i = 0; i < peers.length; i++) {
+            if (peers[i].getQueue().offer(type, payload, policy, false)) {
+                continue;
+            }
+            if (policy != Connection.OVERFLOW_BLOCK) {
+                result = Connection.FAILURE;
+                continue;
+            }
+            if (full == null) {
+                full = new PeerRegistry.Peer[peers.length - i];
+            }
+            full[fullCount++] = peers[i];
+        }
+        for (int i = 0; i < fullCount; i++) {
+            if (!full[i].getQueue().offer(type, payload, policy, true)) {
+                result = Connection.FAILURE;
+            }
+        }
+        return result;
+    }
+
+    private int queueFrame(String destination, int type, Object payload, int policy) {
+        PeerRegistry.Peer peer = mPeers.get(destination);
+        if (peer == null) {
+            return Connection.FAILURE;
+        }
+        return queueFrame(new PeerRegistry.Peer[] {
+            peer
+        }, type, payload, policy);
+    }
+
+    /**
+     * Sends a frame of the app to destination: in its reliable session if it
+     * has one, directly if it is a peer, else through the mesh in relay mode.
+     */
+    private int sendFrame(String destination, int type, Object payload, int policy) {
+        if (!fitsInFrame(payload)) {
+            return Connection.FAILURE;
+        }
+        ReliableChannel channel = mChannels.get(destination);
+        if (channel != null) {
+            return channel.send(type, toBytes(payload), policy) ? Connection.SUCCESS
+                    : Connection.FAILURE;
+        }
+        MeshRouter router = mRouter;
+        if (router == null || !router.isForwarding() || mPeers.contains(destination)) {
+            return queueFrame(destination, type, payload, policy);
+        }
+        return router.send(destination, type, toBytes(payload), policy) ? Connection.SUCCESS
+                : Connection.FAILURE;
+    }
+
+    /**
+     * Sends a frame of the app to every peer, and in relay mode to every
+     * device of the mesh.
+     */
+    private int broadcastFrame(int type, Object payload, int policy) {
+        if (!fitsInFrame(payload)) {
+            return Connection.FAILURE;
+        }
+        MeshRouter router = mRouter;
+        if (router == null || !router.isForwarding()) {
+            if (mChannels.isEmpty()) {
+                return queueFrame(mPeers.getPeers(), type, payload, policy);
+            }
+            return broadcastReliable(type, toBytes(payload), policy);
+        }
+        return router.broadcast(type, toBytes(payload), policy) ? Connection.SUCCESS
+                : Connection.FAILURE;
+    }
+
+    /**
+     * Sends a frame in every reliable session, including those waiting for
+     * their link, and directly to the peers without one.
+     */
+    private int broadcastReliable(int type, byte[] payload, int policy) {
+        int result = Connection.SUCCESS;
+        Iterator<ReliableChannel> channels = mChannels.values().iterator();
+        while (channels.hasNext()) {
+            if (!channels.next().send(type, payload, policy)) {
+                result = Connection.FAILURE;
+            }
+        }
+        PeerRegistry.Peer[] peers = mPeers.getPeers();
+        for (int i = 0; i < peers.length; i++) {
+            if (!mChannels.containsKey(peers[i].getAddress())
+                    && queueFrame(peers[i].getAddress(), type, payload, policy)
+                            != Connection.SUCCESS) {
+                result = Connection.FAILURE;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A peer drops the link on a frame longer than
+     * {@link FrameCodec#MAX_PAYLOAD}, and the writer fails on it, so such a
+     * payload is refused before it is queued.
+     */
+    private static boolean fitsInFrame(Object payload) {
+        int length = payload instanceof byte[] ? ((byte[]) payload).length
+                : FrameCodec.utf8Length((String) payload);
+        return length <= FrameCodec.MAX_PAYLOAD;
+    }
+
+    private static byte[] toBytes(Object payload) {
+        if (payload instanceof byte[]) {
+            return (byte[]) payload;
+        }
+        try {
+            return ((String) payload).getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Ends the session of the app: stops listening and closes every peer,
+     * which ends its reader and writer threads. Reconnects and connects
+     * still running drop their socket once they see it ended.
+     */
+    private void endSession() {
+        PeerTransport.Listener serverSocket = mServerSocket;
+        if (serverSocket != null) {
+            closeServerSocket(serverSocket);
+        }
+        PeerRegistry.Peer[] peers = mPeers.clear();
+        for (int i = 0; i < peers.length; i++) {
+            peers[i].getQueue().close();
+        }
+        mReaders.closeAll();
+        mRing = null;
+        mRouter = null;
+        mReliableCapacity = 0;
+        mChannels.clear();
+        cancelResumeTimer();
+        mApp = "";
+    }
+
+    /**
+     * Takes the service for srcApp and starts its session. In relay mode the
+     * app may also join further piconets, as host or as client, to bridge
+     * them.
+     */
+    private boolean claimApp(String srcApp) {
+        if (mApp.length() == 0) {
+            mApp = srcApp;
+            mRouter = new MeshRouter(mTransport.getAddress(), mMeshTransport);
+            return true;
+        }
+        MeshRouter router = mRouter;
+        return mApp.equals(srcApp) && router != null && router.isForwarding();
+    }
+
     private final IConnection.Stub mBinder = new IConnection.Stub() {
         public int startServer(String srcApp, int maxConnections) throws RemoteException {
-            if (mApp.length() > 0) {
+            if (!claimApp(srcApp)) {
                 return Connection.FAILURE;
             }
-            mApp = srcApp;
-            (new Thread(new ConnectionWaiter(srcApp, maxConnections))).start();
-            Intent i = new Intent();
-            i.setClass(mSelf, StartDiscoverableModeActivity.class);
-            i.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            startActivity(i);
+            (new Thread(new ConnectionWaiter(srcApp, maxConnections, false))).start();
+            mTransport.requestDiscoverable();
             return Connection.SUCCESS;
         }
 
-        public int connect(String srcApp, String device) throws RemoteException {
-            if (mApp.length() > 0) {
-                return Connection.FAILURE;
-            }
-            mApp = srcApp;
-            BluetoothDevice myBtServer = mBtAdapter.getRemoteDevice(device);
-            BluetoothSocket myBSock = null;
-
-            for (int i = 0; i < Connection.MAX_SUPPORTED && myBSock == null; i++) {
-                for (int j = 0; j < 3 && myBSock == null; j++) {
-                    myBSock = getConnectedSocket(myBtServer, mUuid.get(i));
-                    if (myBSock == null) {
-                        try {
-                            Thread.sleep(200);
-                        } catch (InterruptedException e) {
-                            Log.e(TAG, "InterruptedException in connect", e);
-                        }
-                    }
-                }
-            }
-            if (myBSock == null) {
+        /**
+         * Starts connecting to device; cb is registered and hears the
+         * result.
+         */
+        public int connect(String srcApp, String device, IConnectionCallback cb)
+                throws RemoteException {
+            if (!claimApp(srcApp)) {
                 return Connection.FAILURE;
             }
-
-            mBtSockets.put(device, myBSock);
-            mBtDeviceAddresses.add(device);
-            Thread mBtStreamWatcherThread = new Thread(new BtStreamWatcher(device));
-            mBtStreamWatcherThread.start();
-            mBtStreamWatcherThreads.put(device, mBtStreamWatcherThread);
+            mCallback = cb;
+            (new Thread(new Connector(srcApp, device, cb))).start();
             return Connection.SUCCESS;
         }
 
         public int broadcastMessage(String srcApp, String message) throws RemoteException {
+            return broadcastMessageWithPolicy(srcApp, message, Connection.OVERFLOW_BLOCK);
+        }
+
+        public int broadcastMessageWithPolicy(String srcApp, String message, int policy)
+                throws RemoteException {
             if (!mApp.equals(srcApp)) {
                 return Connection.FAILURE;
             }
-            for (int i = 0; i < mBtDeviceAddresses.size(); i++) {
-                sendMessage(srcApp, mBtDeviceAddresses.get(i), message);
-            }
-            return Connection.SUCCESS;
+            return broadcastFrame(FrameCodec.TYPE_TEXT, message, policy);
         }
 
         public String getConnections(String srcApp) throws RemoteException {
             if (!mApp.equals(srcApp)) {
                 return "";
             }
-            String connections = "";
-            for (int i = 0; i < mBtDeviceAddresses.size(); i++) {
-                connections = connections + mBtDeviceAddresses.get(i) + ",";
+            PeerRegistry.Peer[] peers = mPeers.getPeers();
+            StringBuilder connections = new StringBuilder();
+            for (int i = 0; i < peers.length; i++) {
+                connections.append(peers[i].getAddress()).append(',');
             }
-            return connections;
+            return connections.toString();
         }
 
         public int getVersion() throws RemoteException {
@@ -277,40 +925,127 @@ public class ConnectionService extends Service {
             return Connection.SUCCESS;
         }
 
+        /**
+         * Queues the message for the writer of the peer; a failed write is
+         * reported as a lost connection.
+         */
         public int sendMessage(String srcApp, String destination, String message)
                 throws RemoteException {
+            return sendMessageWithPolicy(srcApp, destination, message,
+                    Connection.OVERFLOW_BLOCK);
+        }
+
+        public int sendMessageWithPolicy(String srcApp, String destination, String message,
+                int policy) throws RemoteException {
             if (!mApp.equals(srcApp)) {
                 return Connection.FAILURE;
             }
-            try {
-                BluetoothSocket myBsock = mBtSockets.get(destination);
-                if (myBsock != null) {
-                    OutputStream outStream = myBsock.getOutputStream();
-                    byte[] stringAsBytes = (message + " ").getBytes();
-                    stringAsBytes[stringAsBytes.length - 1] = 0; // Add a stop
-                    // marker
-                    outStream.write(stringAsBytes);
-                    return Connection.SUCCESS;
-                }
-            } catch (IOException e) {
-                Log.i(TAG, "IOException in sendMessage - Dest:" + destination + ", Msg:" + message,
-                        e);
+            return sendFrame(destination, FrameCodec.TYPE_TEXT, message, policy);
+        }
+
+        public int sendBytes(String srcApp, String destination, byte[] data)
+                throws RemoteException {
+            return sendBytesWithPolicy(srcApp, destination, data, Connection.OVERFLOW_BLOCK);
+        }
+
+        public int sendBytesWithPolicy(String srcApp, String destination, byte[] data,
+                int policy) throws RemoteException {
+            if (!mApp.equals(srcApp)) {
+                return Connection.FAILURE;
             }
-            return Connection.FAILURE;
+            return sendFrame(destination, FrameCodec.TYPE_BYTES, data, policy);
+        }
+
+        public int broadcastBytes(String srcApp, byte[] data) throws RemoteException {
+            return broadcastBytesWithPolicy(srcApp, data, Connection.OVERFLOW_BLOCK);
+        }
+
+        public int broadcastBytesWithPolicy(String srcApp, byte[] data, int policy)
+                throws RemoteException {
+            if (!mApp.equals(srcApp)) {
+                return Connection.FAILURE;
+            }
+            return broadcastFrame(FrameCodec.TYPE_BYTES, data, policy);
+        }
+
+        public int getQueueDepth(String srcApp, String device) throws RemoteException {
+            PeerRegistry.Peer peer = mPeers.get(device);
+            if (!mApp.equals(srcApp) || peer == null) {
+                return -1;
+            }
+            return peer.getQueue().size();
+        }
+
+        public long getDropCount(String srcApp, String device) throws RemoteException {
+            PeerRegistry.Peer peer = mPeers.get(device);
+            if (!mApp.equals(srcApp) || peer == null) {
+                return -1;
+            }
+            return peer.getQueue().getDropCount();
         }
 
         public void shutdown(String srcApp) throws RemoteException {
+            endSession();
+            mBatcher.setLimits(0, 0);
+        }
+
+        public int setReliableDelivery(String srcApp, int bufferMessages)
+                throws RemoteException {
+            if (mApp.length() > 0 && !mApp.equals(srcApp)) {
+                return Connection.FAILURE;
+            }
+            mReliableCapacity = Math.max(bufferMessages, 0);
+            return Connection.SUCCESS;
+        }
+
+        public int setCallbackBatching(String srcApp, int maxMessages, int maxDelayMs)
+                throws RemoteException {
+            if (!mApp.equals(srcApp)) {
+                return Connection.FAILURE;
+            }
+            mBatcher.setLimits(maxMessages, maxDelayMs);
+            return Connection.SUCCESS;
+        }
+
+        public int setRelayMode(String srcApp, boolean enabled, int hopLimit)
+                throws RemoteException {
+            MeshRouter router = mRouter;
+            if (!mApp.equals(srcApp) || router == null) {
+                return Connection.FAILURE;
+            }
+            router.setForwarding(enabled, hopLimit);
+            return Connection.SUCCESS;
+        }
+
+        /**
+         * Switches the delivery of received messages to a shared ring.
+         *
+         * @return the read-only descriptor of the ring, or null.
+         */
+        public ParcelFileDescriptor openMessageRing(String srcApp, ParcelFileDescriptor cursor,
+                int capacity) throws RemoteException {
+            if (!mApp.equals(srcApp) || cursor == null) {
+                return null;
+            }
             try {
-                for (int i = 0; i < mBtDeviceAddresses.size(); i++) {
-                    BluetoothSocket myBsock = mBtSockets.get(mBtDeviceAddresses.get(i));
-                    myBsock.close();
-                }
-                mBtSockets = new HashMap<String, BluetoothSocket>();
-                mBtStreamWatcherThreads = new HashMap<String, Thread>();
-                mBtDeviceAddresses = new ArrayList<String>();
-                mApp = "";
+                SharedRing.Writer ring = SharedRing.createWriter(getCacheDir(), capacity, cursor);
+                mBatcher.flush();
+                mRing = ring;
+                return ring.getDataDescriptor();
             } catch (IOException e) {
-                Log.i(TAG, "IOException in shutdown", e);
+                Log.e(TAG, "IOException in openMessageRing", e);
+            }
+            return null;
+        }
+
+        public void ringDrained(String srcApp) throws RemoteException {
+            SharedRing.Writer ring = mRing;
+            IConnectionCallback callback = mCallback;
+            if (!mApp.equals(srcApp) || ring == null) {
+                return;
+            }
+            if (ring.pump() && callback != null) {
+                wakeRingReader(callback);
             }
         }
 
@@ -318,16 +1053,17 @@ public class ConnectionService extends Service {
             if (!mApp.equals(srcApp)) {
                 return Connection.FAILURE;
             }
+            mBatcher.flush();
             mCallback = null;
             return Connection.SUCCESS;
         }
 
         public String getAddress() throws RemoteException {
-            return mBtAdapter.getAddress();
+            return mTransport.getAddress();
         }
         
         public String getName() throws RemoteException {
-            return mBtAdapter.getName();
+            return mTransport.getName();
         }
     };
 
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.net.clc.bt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Framing of the messages exchanged by {@link ConnectionService} peers.
+ * <p>
+ * Each frame is a one byte type, the payload length as a four byte big
+ * endian int, and the payload: UTF-8 text for {@link #TYPE_TEXT}, raw bytes
+ * for {@link #TYPE_BYTES}, a frame passed on by a {@link MeshRouter} for
+ * {@link #TYPE_RELAY}, and the messages and control frames of a
+ * {@link ReliableChannel} for {@link #TYPE_RELIABLE}, {@link #TYPE_ACK} and
+ * {@link #TYPE_RESUME}. Any byte value may appear in a payload.
+ */
+public final class FrameCodec {
+    public static final int TYPE_TEXT = 1;
+
+    public static final int TYPE_BYTES = 2;
+
+    public static final int TYPE_RELAY = 3;
+
+    public static final int TYPE_RELIABLE = 4;
+
+    public static final int TYPE_ACK = 5;
+
+    public static final int TYPE_RESUME = 6;
+
+    public static final int HEADER_SIZE = 5;
+
+    /** Largest payload accepted from a peer. */
+    public static final int MAX_PAYLOAD = 1 << 20;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * @return the length of s encoded as UTF-8 the way {@link Writer} encodes
+     *         it.
+     */
+    public static int utf8Length(String s) {
+        int n = s.length();
+        int length = 0;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                i++;
+                length += 4;
+            } else if (c >= '\ud800' && c <= '\udfff') {
+                length += 1; // unpaired surrogate
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Reassembles the frames read from one stream, in a buffer that is reused
+     * from frame to frame.
+     */
+    public static final class Reader {
+        private final InputStream mIn;
+
+        private byte[] mBuffer = new byte[1024];
+
+        /** unread bytes are mBuffer[mStart, mEnd). */
+        private int mStart;
+
+        private int mEnd;
+
+        private int mType;
+
+        private int mOffset;
+
+        private int mLength;
+
+        public Reader(InputStream in) {
+            mIn = in;
+        }
+
+        /**
+         * Reads the next frame, blocking until it is complete.
+         *
+         * @return false at the end of the stream.
+         * @throws IOException if the stream fails or the frame is malformed.
+         */
+        public boolean next() throws IOException {
+            while (!parse()) {
+                int read = read(mBuffer.length - mEnd);
+                if (read == -1) {
+                    if (mEnd > mStart) {
+                        throw new IOException("Stream ended inside a frame");
+                    }
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Takes the next frame out of the buffered bytes.
+         *
+         * @return false if they do not hold a complete frame.
+         */
+        private boolean parse() throws IOException {
+            int buffered = mEnd - mStart;
+            if (buffered < HEADER_SIZE) {
+                return false;
+            }
+            byte[] b = mBuffer;
+            int length = ((b[mStart + 1] & 0xff) << 24) | ((b[mStart + 2] & 0xff) << 16)
+                    | ((b[mStart + 3] & 0xff) << 8) | (b[mStart + 4] & 0xff);
+            if (length < 0 || length > MAX_PAYLOAD) {
+                throw new IOException("Bad frame length " + length);
+            }
+            if (buffered < HEADER_SIZE + length) {
+                // Make room for the rest of the frame.
+                makeRoom(HEADER_SIZE + length);
+                return false;
+            }
+            mType = b[mStart] & 0xff;
+            mOffset = mStart + HEADER_SIZE;
+            mLength = length;
+            mStart = mOffset + length;
+            return true;
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        /**
+         * @return the buffer holding the payload of the current frame, at
+         *         {@link #getOffset()}. It is overwritten by the next frame.
+         */
+        public byte[] getBuffer() {
+            return mBuffer;
+        }
+
+        public int getOffset() {
+            return mOffset;
+        }
+
+        public int getLength() {
+            return mLength;
+        }
+
+        /**
+         * @return a copy of the payload.
+         */
+        public byte[] getBytes() {
+            byte[] bytes = new byte[mLength];
+            System.arraycopy(mBuffer, mOffset, bytes, 0, mLength);
+            return bytes;
+        }
+
+        /**
+         * @return the payload decoded as UTF-8.
+         */
+        public String getText() {
+            try {
+                return new String(mBuffer, mOffset, mLength, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        /**
+         * Reads up to max bytes after the buffered ones.
+         */
+        private int read(int max) throws IOException {
+            if (mStart == mEnd) {
+                mStart = 0;
+                mEnd = 0;
+            }
+            makeRoom(mEnd - mStart + Math.max(max, 1));
+            int read = mIn.read(mBuffer, mEnd, Math.min(max, mBuffer.length - mEnd));
+            if (read > 0) {
+                mEnd += read;
+            }
+            return read;
+        }
+
+        /**
+         * Makes room for count bytes from mStart, moving the unread bytes to
+         * the front and growing the buffer if needed.
+         */
+        private void makeRoom(int count) {
+            if (mStart + count <= mBuffer.length) {
+                return;
+            }
+            byte[] buffer = mBuffer;
+            if (count > buffer.length) {
+                buffer = new byte[Math.max(count, buffer.length * 2)];
+            }
+            System.arraycopy(mBuffer, mStart, buffer, 0, mEnd - mStart);
+            mEnd -= mStart;
+            mStart = 0;
+            mBuffer = buffer;
+        }
+    }
+
+    /**
+     * Encodes frames into a reused buffer and writes each with a single
+     * write. Not thread safe.
+     */
+    public static final class Writer {
+        private byte[] mBuffer = new byte[256];
+
+        private int mLength;
+
+        /**
+         * Writes message as a {@link #TYPE_TEXT} frame.
+         */
+        public void writeText(OutputStream out, String message) throws IOException {
+            mLength = HEADER_SIZE;
+            encodeUtf8(message);
+            writeFrame(out, TYPE_TEXT);
+        }
+
+        /**
+         * Writes data[offset, offset + length) as a {@link #TYPE_BYTES}
+         * frame.
+         */
+        public void writeBytes(OutputStream out, byte[] data, int offset, int length)
+                throws IOException {
+            write(out, TYPE_BYTES, data, offset, length);
+        }
+
+        /**
+         * Writes data[offset, offset + length) as a frame of the given type.
+         */
+        public void write(OutputStream out, int type, byte[] data, int offset, int length)
+                throws IOException {
+            mLength = 0;
+            ensureCapacity(HEADER_SIZE + length);
+            System.arraycopy(data, offset, mBuffer, HEADER_SIZE, length);
+            mLength = HEADER_SIZE + length;
+            writeFrame(out, type);
+        }
+
+        /**
+         * @return the payload length of the last frame written.
+         */
+        public int getPayloadLength() {
+            return mLength - HEADER_SIZE;
+        }
+
+        private void writeFrame(OutputStream out, int type) throws IOException {
+            int length = mLength - HEADER_SIZE;
+            if (length > MAX_PAYLOAD) {
+                throw new IOException("Frame too long: " + length);
+            }
+            byte[] b = mBuffer;
+            b[0] = (byte) type;
+            b[1] = (byte) (length >>> 24);
+            b[2] = (byte) (length >>> 16);
+            b[3] = (byte) (length >>> 8);
+            b[4] = (byte) length;
+            out.write(b, 0, mLength);
+        }
+
+        private void encodeUtf8(String s) {
+            int n = s.length();
+            ensureCapacity(mLength + n);
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    ensureCapacity(mLength + 1);
+                    mBuffer[mLength++] = (byte) c;
+                } else if (c < 0x800) {
+                    ensureCapacity(mLength + 2);
+                    mBuffer[mLength++] = (byte) (0xc0 | (c >> 6));
+                    mBuffer[mLength++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < n
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    ensureCapacity(mLength + 4);
+                    mBuffer[mLength++] = (byte) (0xf0 | (cp >> 18));
+                    mBuffer[mLength++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    mBuffer[mLength++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    mBuffer[mLength++] = (byte) (0x80 | (cp & 0x3f));
+                } else if (c >= '\ud800' && c <= '\udfff') {
+                    ensureCapacity(mLength + 1);
+                    mBuffer[mLength++] = '?'; // unpaired surrogate
+                } else {
+                    ensureCapacity(mLength + 3);
+                    mBuffer[mLength++] = (byte) (0xe0 | (c >> 12));
+                    mBuffer[mLength++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    mBuffer[mLength++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > mBuffer.length) {
+                byte[] buffer = new byte[Math.max(capacity, mBuffer.length * 2)];
+                System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+                mBuffer = buffer;
+            }
+        }
+    }
+}
@@ -0,0 +1,533 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.net.clc.bt;
+
+import android.os.RemoteException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs {@link ConnectionService}s joined by in-memory links instead of
+ * Bluetooth, through their binder interface:
+ * <ul>
+ * <li>two services with reliable delivery send 5000 messages each way while
+ * the link between them is dropped again and again; each side must get
+ * every message once, in order, and no lost connection;</li>
+ * <li>two clients of one host in relay mode send to each other and
+ * broadcast, which only gets through if the host forwards.</li>
+ * </ul>
+ * The links are read and written by the threads of the services as RFCOMM
+ * sockets would be, so every frame goes through the writers, the
+ * {@link PeerReaders} and the dispatch of the service.
+ * <p>
+ * Run it as a Java program where the android classes are implemented, e.g.
+ * with app_process on a device; it exits with status 1 on the first failed
+ * check.
+ */
+final class LinkLoopback {
+    private static final String APP = "LinkLoopback";
+
+    private static final int MESSAGES = 5000;
+
+    /** the services listening, by address. */
+    private static final ConcurrentHashMap<String, MemoryListener> sListening =
+            new ConcurrentHashMap<String, MemoryListener>();
+
+    /**
+     * One direction of a link: a bounded byte buffer. Closing either end
+     * fails the reads and writes blocked on it.
+     */
+    private static final class Pipe {
+        private final byte[] mBuffer = new byte[16 * 1024];
+
+        private int mHead;
+
+        private int mCount;
+
+        private boolean mClosed;
+
+        synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+
+        synchronized int read(byte[] b, int offset, int length) throws IOException {
+            while (mCount == 0 && !mClosed) {
+                waitForChange();
+            }
+            if (mClosed) {
+                throw new IOException("Link closed");
+            }
+            int n = Math.min(length, mCount);
+            for (int i = 0; i < n; i++) {
+                b[offset + i] = mBuffer[mHead];
+                mHead = (mHead + 1) % mBuffer.length;
+            }
+            mCount -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] b, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (mClosed) {
+                    throw new IOException("Link closed");
+                }
+                if (mCount == mBuffer.length) {
+                    waitForChange();
+                    continue;
+                }
+                mBuffer[(mHead + mCount) % mBuffer.length] = b[offset++];
+                mCount++;
+                length--;
+                notifyAll();
+            }
+        }
+
+        private void waitForChange() throws IOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        final InputStream mIn = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                read(b, 0, 1);
+                return b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int offset, int length) throws IOException {
+                return Pipe.this.read(b, offset, length);
+            }
+        };
+
+        final OutputStream mOut = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {
+                    (byte) b
+                }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int offset, int length) throws IOException {
+                Pipe.this.write(b, offset, length);
+            }
+        };
+    }
+
+    /**
+     * One end of a link. Closing it, or dropping it, breaks both ends.
+     */
+    private static final class MemoryLink implements PeerTransport.Link {
+        private final String mRemoteAddress;
+
+        private final Pipe mIn;
+
+        private final Pipe mOut;
+
+        MemoryLink(String remoteAddress, Pipe in, Pipe out) {
+            mRemoteAddress = remoteAddress;
+            mIn = in;
+            mOut = out;
+        }
+
+        public String getRemoteAddress() {
+            return mRemoteAddress;
+        }
+
+        public InputStream getInputStream() {
+            return mIn.mIn;
+        }
+
+        public OutputStream getOutputStream() {
+            return mOut.mOut;
+        }
+
+        public void close() {
+            mIn.close();
+            mOut.close();
+        }
+    }
+
+    private static final class MemoryListener implements PeerTransport.Listener {
+        private final ArrayList<MemoryLink> mPending = new ArrayList<MemoryLink>();
+
+        private boolean mClosed;
+
+        synchronized void offer(MemoryLink link) throws IOException {
+            if (mClosed) {
+                throw new IOException("Service discovery failed");
+            }
+            mPending.add(link);
+            notifyAll();
+        }
+
+        public synchronized PeerTransport.Link accept() throws IOException {
+            while (mPending.isEmpty() && !mClosed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (mClosed) {
+                throw new IOException("Listener closed");
+            }
+            return mPending.remove(0);
+        }
+
+        public synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * The links of one device. Like the library we link against, a device
+     * listens on one channel whatever the UUID.
+     */
+    private static final class MemoryTransport implements PeerTransport {
+        private final String mAddress;
+
+        /** the links opened by this device. */
+        private final ArrayList<MemoryLink> mLinks = new ArrayList<MemoryLink>();
+
+        MemoryTransport(String address) {
+            mAddress = address;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public String getName() {
+            return mAddress;
+        }
+
+        public void cancelDiscovery() {
+        }
+
+        public void requestDiscoverable() {
+        }
+
+        public Listener listen(String name, UUID uuid) throws IOException {
+            MemoryListener listener = new MemoryListener();
+            if (sListening.putIfAbsent(mAddress, listener) != null) {
+                throw new IOException("Channel in use");
+            }
+            return new Unlisten(listener);
+        }
+
+        public Link connect(String address, UUID uuid) throws IOException {
+            MemoryListener listener = sListening.get(address);
+            if (listener == null) {
+                throw new IOException("Service discovery failed");
+            }
+            Pipe in = new Pipe();
+            Pipe out = new Pipe();
+            MemoryLink link = new MemoryLink(address, in, out);
+            MemoryLink remote = new MemoryLink(mAddress, out, in);
+            listener.offer(remote);
+            synchronized (mLinks) {
+                mLinks.add(link);
+            }
+            return link;
+        }
+
+        /**
+         * Breaks every link this device opened, as if it went out of range.
+         *
+         * @return the number of links broken.
+         */
+        int dropLinks() {
+            synchronized (mLinks) {
+                int count = mLinks.size();
+                for (int i = 0; i < count; i++) {
+                    mLinks.get(i).close();
+                }
+                mLinks.clear();
+                return count;
+            }
+        }
+
+        /**
+         * Takes the listener of the device out of sListening once closed.
+         */
+        private final class Unlisten implements Listener {
+            private final MemoryListener mListener;
+
+            Unlisten(MemoryListener listener) {
+                mListener = listener;
+            }
+
+            public Link accept() throws IOException {
+                return mListener.accept();
+            }
+
+            public void close() {
+                sListening.remove(mAddress, mListener);
+                mListener.close();
+            }
+        }
+    }
+
+    /**
+     * Records what a service reports to its client.
+     */
+    private static final class Client extends IConnectionCallback.Stub {
+        private final String mName;
+
+        private final HashMap<String, List<Integer>> mReceived =
+                new HashMap<String, List<Integer>>();
+
+        private final ArrayList<String> mLost = new ArrayList<String>();
+
+        private Integer mConnectResult;
+
+        Client(String name) {
+            mName = name;
+        }
+
+        public void incomingConnection(String device) {
+        }
+
+        public synchronized void connectFinished(String device, int result) {
+            mConnectResult = Integer.valueOf(result);
+            notifyAll();
+        }
+
+        public void maxConnectionsReached() {
+        }
+
+        public void messageReceived(String device, String message) {
+            add(device, Integer.parseInt(message));
+        }
+
+        public void bytesReceived(String device, byte[] data) {
+            add(device, ((data[0] & 0xff) << 24) | ((data[1] & 0xff) << 16)
+                    | ((data[2] & 0xff) << 8) | (data[3] & 0xff));
+        }
+
+        public void messagesReceived(byte[] batch) {
+            throw new IllegalStateException("batching is off");
+        }
+
+        public void ringReady() {
+        }
+
+        public synchronized void connectionLost(String device) {
+            mLost.add(device);
+        }
+
+        synchronized int awaitConnect() throws InterruptedException {
+            while (mConnectResult == null) {
+                wait();
+            }
+            int result = mConnectResult.intValue();
+            mConnectResult = null;
+            return result;
+        }
+
+        private synchronized void add(String device, int value) {
+            List<Integer> received = mReceived.get(device);
+            if (received == null) {
+                received = new ArrayList<Integer>();
+                mReceived.put(device, received);
+            }
+            received.add(Integer.valueOf(value));
+        }
+
+        synchronized int count(String device) {
+            List<Integer> received = mReceived.get(device);
+            return received != null ? received.size() : 0;
+        }
+
+        synchronized boolean hasLost() {
+            return !mLost.isEmpty();
+        }
+
+        /**
+         * Checks that 0 to count-1 came from device, each once and in order.
+         */
+        synchronized void checkReceived(String device, int count) {
+            List<Integer> received = mReceived.get(device);
+            boolean ok = received != null && received.size() == count;
+            for (int i = 0; ok && i < count; i++) {
+                ok = received.get(i).intValue() == i;
+            }
+            check(ok, mName + " got 0.." + (count - 1) + " from " + device
+                    + " once each, in order");
+        }
+    }
+
+    private LinkLoopback() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        reliable();
+        relay();
+        System.out.println("all checks passed");
+        System.exit(0);
+    }
+
+    /**
+     * A dials B; both send while A keeps losing the link.
+     */
+    private static void reliable() throws Exception {
+        MemoryTransport transportA = new MemoryTransport("A");
+        IConnection a = bind(transportA);
+        IConnection b = bind(new MemoryTransport("B"));
+        Client clientA = new Client("A");
+        Client clientB = new Client("B");
+        a.setReliableDelivery(APP, 64);
+        b.setReliableDelivery(APP, 64);
+        b.startServer(APP, 1);
+        b.registerCallback(APP, clientB);
+        awaitListening("B");
+        check(connect(a, "B", clientA) == Connection.SUCCESS, "A connected to B");
+
+        Thread senderA = startSender(a, "B");
+        Thread senderB = startSender(b, "A");
+        Random random = new Random(3);
+        int drops = 0;
+        long deadline = System.currentTimeMillis() + 60000;
+        while (senderA.isAlive() || senderB.isAlive() || clientA.count("B") < MESSAGES
+                || clientB.count("A") < MESSAGES) {
+            if (System.currentTimeMillis() > deadline) {
+                check(false, "reliable exchange finished in 60 s");
+            }
+            Thread.sleep(2 + random.nextInt(8));
+            if (drops < 15) {
+                drops += transportA.dropLinks();
+            }
+            if (clientA.hasLost() || clientB.hasLost()) {
+                check(false, "no connection reported lost");
+            }
+        }
+        System.out.println(drops + " links dropped");
+        clientA.checkReceived("B", MESSAGES);
+        clientB.checkReceived("A", MESSAGES);
+        a.shutdown(APP);
+        b.shutdown(APP);
+    }
+
+    /**
+     * A and C connect to B, and only reach each other through it.
+     */
+    private static void relay() throws Exception {
+        IConnection a = bind(new MemoryTransport("A"));
+        IConnection b = bind(new MemoryTransport("B"));
+        IConnection c = bind(new MemoryTransport("C"));
+        Client clientA = new Client("A");
+        Client clientB = new Client("B");
+        Client clientC = new Client("C");
+        b.startServer(APP, 2);
+        b.registerCallback(APP, clientB);
+        b.setRelayMode(APP, true, 4);
+        awaitListening("B");
+        check(connect(a, "B", clientA) == Connection.SUCCESS, "A connected to B");
+        a.setRelayMode(APP, true, 4);
+        check(connect(c, "B", clientC) == Connection.SUCCESS, "C connected to B");
+        c.setRelayMode(APP, true, 4);
+
+        // Relayed frames are dropped when the forwarding queue is full, so
+        // they are sent in bursts.
+        for (int i = 0; i < 100; i++) {
+            a.sendMessage(APP, "C", Integer.toString(i));
+            if (i % 16 == 15) {
+                Thread.sleep(20);
+            }
+        }
+        for (int i = 0; i < 100; i++) {
+            c.broadcastMessage(APP, Integer.toString(i));
+            if (i % 16 == 15) {
+                Thread.sleep(20);
+            }
+        }
+        long deadline = System.currentTimeMillis() + 3000;
+        while (System.currentTimeMillis() < deadline
+                && (clientC.count("A") < 100 || clientA.count("C") < 100)) {
+            Thread.sleep(10);
+        }
+        clientC.checkReceived("A", 100);
+        clientA.checkReceived("C", 100);
+        clientB.checkReceived("C", 100);
+        a.shutdown(APP);
+        b.shutdown(APP);
+        c.shutdown(APP);
+    }
+
+    private static IConnection bind(PeerTransport transport) {
+        return (IConnection) new ConnectionService(transport).onBind(null);
+    }
+
+    private static int connect(IConnection connection, String device, Client client)
+            throws Exception {
+        int result = connection.connect(APP, device, client);
+        return result != Connection.SUCCESS ? result : client.awaitConnect();
+    }
+
+    private static void awaitListening(String address) throws InterruptedException {
+        while (!sListening.containsKey(address)) {
+            Thread.sleep(5);
+        }
+    }
+
+    private static Thread startSender(final IConnection connection, final String device) {
+        Thread sender = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 0; i < MESSAGES; i++) {
+                        byte[] data = {
+                                (byte) (i >>> 24), (byte) (i >>> 16), (byte) (i >>> 8), (byte) i
+                        };
+                        if (connection.sendBytes(APP, device, data) != Connection.SUCCESS) {
+                            check(false, "message " + i + " to " + device + " sent");
+                        }
+                    }
+                } catch (RemoteException e) {
+                    check(false, "no RemoteException sending to " + device);
+                }
+            }
+        }, "Sender to " + device);
+        sender.start();
+        return sender;
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            System.out.println("FAILED: " + what);
+            System.exit(1);
+        }
+        System.out.println("ok: " + what);
+    }
+}
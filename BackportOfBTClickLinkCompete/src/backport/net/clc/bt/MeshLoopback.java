@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.net.clc.bt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Runs {@link MeshRouter}s wired to each other in memory, with no
+ * Bluetooth: a 5x5 grid for flooding and routing, a chain for the hop
+ * limit, and a pair for replays and a restarted origin. Frames are passed
+ * one at a time in the order they were sent, and every link crossed is
+ * counted, so the cost of flooding and of a learned route can be compared.
+ * <p>
+ * Run it as a plain Java program; it exits with status 1 on the first
+ * failed check.
+ */
+final class MeshLoopback {
+    private static final int TYPE = FrameCodec.TYPE_BYTES;
+
+    /**
+     * Routers and the links between them. Sent frames wait on the wire
+     * until {@link #run()}.
+     */
+    private static final class Net {
+        final HashMap<String, MeshRouter> mRouters = new HashMap<String, MeshRouter>();
+
+        final HashMap<String, HashSet<String>> mLinks = new HashMap<String, HashSet<String>>();
+
+        final HashMap<String, List<String>> mDelivered = new HashMap<String, List<String>>();
+
+        /** from, to, frame. */
+        final LinkedList<Object[]> mWire = new LinkedList<Object[]>();
+
+        int mTransmissions;
+
+        /**
+         * Adds a device, or restarts it with a new router if it exists.
+         */
+        MeshRouter add(final String address) {
+            if (!mLinks.containsKey(address)) {
+                mLinks.put(address, new HashSet<String>());
+                mDelivered.put(address, new ArrayList<String>());
+            }
+            MeshRouter router = new MeshRouter(address, new MeshRouter.Transport() {
+                public boolean isNeighbor(String neighbor) {
+                    return mLinks.get(address).contains(neighbor);
+                }
+
+                public boolean send(String neighbor, byte[] frame, int policy) {
+                    if (!isNeighbor(neighbor)) {
+                        return false;
+                    }
+                    mWire.add(new Object[] {
+                            address, neighbor, frame
+                    });
+                    ++mTransmissions;
+                    return true;
+                }
+
+                public boolean sendToAll(String except, byte[] frame, int policy) {
+                    for (String neighbor : mLinks.get(address)) {
+                        if (!neighbor.equals(except)) {
+                            send(neighbor, frame, policy);
+                        }
+                    }
+                    return true;
+                }
+
+                public void deliver(String origin, int type, byte[] payload, int offset,
+                        int length) {
+                    mDelivered.get(address).add(origin + ":" + new String(payload, offset, length));
+                }
+            });
+            mRouters.put(address, router);
+            return router;
+        }
+
+        MeshRouter get(String address) {
+            return mRouters.get(address);
+        }
+
+        void link(String a, String b) {
+            mLinks.get(a).add(b);
+            mLinks.get(b).add(a);
+        }
+
+        void unlink(String a, String b) {
+            mLinks.get(a).remove(b);
+            mLinks.get(b).remove(a);
+            get(a).onNeighborLost(b);
+            get(b).onNeighborLost(a);
+        }
+
+        void setForwarding(int hopLimit) {
+            for (MeshRouter router : mRouters.values()) {
+                router.setForwarding(true, hopLimit);
+            }
+        }
+
+        /**
+         * Passes the frames on the wire, and those they cause, until none
+         * is left. Each is handed over at an offset, as a reader would.
+         */
+        void run() {
+            while (!mWire.isEmpty()) {
+                Object[] sent = mWire.removeFirst();
+                byte[] frame = (byte[]) sent[2];
+                byte[] buffer = new byte[frame.length + 3];
+                System.arraycopy(frame, 0, buffer, 3, frame.length);
+                get((String) sent[1]).onFrame((String) sent[0], buffer, 3, frame.length);
+            }
+        }
+
+        /**
+         * @return the frame last put on the wire.
+         */
+        byte[] lastSent() {
+            return (byte[]) mWire.getLast()[2];
+        }
+
+        void resend(String from, String to, byte[] frame) {
+            mWire.add(new Object[] {
+                    from, to, frame
+            });
+        }
+
+        List<String> delivered(String address) {
+            return mDelivered.get(address);
+        }
+
+        void clear() {
+            for (List<String> delivered : mDelivered.values()) {
+                delivered.clear();
+            }
+            mTransmissions = 0;
+        }
+    }
+
+    private MeshLoopback() {
+    }
+
+    public static void main(String[] args) {
+        grid();
+        chain();
+        pair();
+        System.out.println("all checks passed");
+    }
+
+    /**
+     * A 5x5 grid: N0 is a corner, N24 the opposite one, 8 links away.
+     */
+    private static void grid() {
+        final int size = 5;
+        Net net = new Net();
+        for (int i = 0; i < size * size; i++) {
+            net.add("N" + i);
+        }
+        for (int row = 0; row < size; row++) {
+            for (int column = 0; column < size; column++) {
+                int i = row * size + column;
+                if (column + 1 < size) {
+                    net.link("N" + i, "N" + (i + 1));
+                }
+                if (row + 1 < size) {
+                    net.link("N" + i, "N" + (i + size));
+                }
+            }
+        }
+        net.setForwarding(8);
+
+        net.get("N0").broadcast(TYPE, "hello".getBytes(), Connection.OVERFLOW_FAIL);
+        net.run();
+        for (int i = 1; i < size * size; i++) {
+            check(net.delivered("N" + i).size() == 1, "broadcast reaches N" + i + " once");
+        }
+        check(net.delivered("N0").isEmpty(), "broadcast not echoed to its origin");
+        System.out.println("broadcast: " + net.mTransmissions + " transmissions");
+
+        net.clear();
+        net.get("N0").send("N24", TYPE, "u1".getBytes(), Connection.OVERFLOW_FAIL);
+        net.run();
+        check(net.delivered("N24").equals(Arrays.asList("N0:u1")),
+                "unicast without a route delivered once");
+        int elsewhere = 0;
+        for (int i = 0; i < size * size - 1; i++) {
+            elsewhere += net.delivered("N" + i).size();
+        }
+        check(elsewhere == 0, "flooded unicast not delivered elsewhere");
+        System.out.println("flooded unicast: " + net.mTransmissions + " transmissions");
+
+        net.clear();
+        net.get("N24").send("N0", TYPE, "back".getBytes(), Connection.OVERFLOW_FAIL);
+        net.run();
+        check(net.delivered("N0").equals(Arrays.asList("N24:back")), "reply routed back");
+        check(net.mTransmissions == 8, "reply takes the 8 links of a shortest path");
+
+        net.clear();
+        for (int k = 0; k < 200; k++) {
+            net.get("N0").send("N24", TYPE, ("m" + k).getBytes(), Connection.OVERFLOW_FAIL);
+        }
+        net.run();
+        check(net.delivered("N24").size() == 200, "200 routed unicasts, none taken for duplicates");
+        check(net.mTransmissions == 200 * 8, "routed unicasts cost 8 transmissions each");
+
+        net.clear();
+        net.unlink("N1", "N2");
+        net.unlink("N5", "N10");
+        net.get("N0").send("N24", TYPE, "after".getBytes(), Connection.OVERFLOW_FAIL);
+        net.run();
+        check(net.delivered("N24").equals(Arrays.asList("N0:after")),
+                "unicast delivered after links on its route were lost");
+    }
+
+    /**
+     * A chain of 10 with a hop limit of 3.
+     */
+    private static void chain() {
+        Net net = new Net();
+        for (int i = 0; i < 10; i++) {
+            net.add("C" + i);
+        }
+        for (int i = 0; i < 9; i++) {
+            net.link("C" + i, "C" + (i + 1));
+        }
+        net.setForwarding(3);
+
+        net.get("C0").broadcast(TYPE, "x".getBytes(), Connection.OVERFLOW_FAIL);
+        net.run();
+        for (int i = 1; i < 10; i++) {
+            check(net.delivered("C" + i).size() == (i <= 3 ? 1 : 0), "hop limit 3 at C" + i);
+        }
+
+        net.clear();
+        net.get("C2").setForwarding(false, 3);
+        net.get("C0").broadcast(TYPE, "y".getBytes(), Connection.OVERFLOW_FAIL);
+        net.run();
+        check(net.delivered("C2").size() == 1 && net.delivered("C3").isEmpty(),
+                "a device not forwarding takes the frame and stops it");
+    }
+
+    /**
+     * Two devices: replayed frames, then the origin restarting its ids.
+     */
+    private static void pair() {
+        Net net = new Net();
+        net.add("P0");
+        net.add("P1");
+        net.link("P0", "P1");
+
+        ArrayList<byte[]> sent = new ArrayList<byte[]>();
+        for (int i = 0; i < 100; i++) {
+            net.get("P0").broadcast(TYPE, ("" + i).getBytes(), Connection.OVERFLOW_FAIL);
+            sent.add(net.lastSent());
+            net.run();
+        }
+        check(net.delivered("P1").size() == 100, "100 broadcasts from P0");
+
+        net.clear();
+        net.resend("P0", "P1", sent.get(10));
+        net.resend("P0", "P1", sent.get(90));
+        net.run();
+        check(net.delivered("P1").isEmpty(), "old and recent replays dropped");
+
+        // P0 restarts, and counts its ids from 0 again
+        net.add("P0");
+        for (int i = 0; i < 5; i++) {
+            net.get("P0").broadcast(TYPE, ("r" + i).getBytes(), Connection.OVERFLOW_FAIL);
+            net.run();
+        }
+        check(net.delivered("P1").size() == 5, "restarted origin delivered");
+
+        net.clear();
+        net.resend("P0", "P1", sent.get(99));
+        net.run();
+        check(net.delivered("P1").isEmpty(), "frame from before the restart dropped");
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            System.out.println("FAILED: " + what);
+            System.exit(1);
+        }
+        System.out.println("ok: " + what);
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.net.clc.bt;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Routes {@link FrameCodec#TYPE_RELAY} frames, so that a session can span
+ * more devices than one piconet holds: a device connected to two hosts
+ * passes frames between them.
+ * <p>
+ * A relay frame carries its origin, its destination (none for every
+ * device), the epoch of the origin's router, an id that the origin counts
+ * up, how many links it crossed and how many it may cross. Each device
+ * remembers, per origin, the neighbor through which its frames arrive in
+ * the fewest links, and sends frames for that origin back the same way;
+ * frames without a known route, and frames for every device, are flooded to
+ * all neighbors but the one they came from. The ids of the last
+ * {@link #WINDOW} frames of each origin are kept, so that a frame arriving
+ * over a second path is dropped, as is a frame older than that. The epoch
+ * is drawn at random for each router, so that an origin that starts a new
+ * session and counts from 0 again is told apart from old frames still
+ * going around.
+ * <p>
+ * The router only knows its neighbors through a {@link Transport}, so it can
+ * be wired to other routers in memory as well as to the peers of the
+ * {@link ConnectionService}. Its methods synchronize on it.
+ */
+final class MeshRouter {
+    private static final String TAG = "net.clc.bt.MeshRouter";
+
+    static final int DEFAULT_HOP_LIMIT = 4;
+
+    static final int MAX_HOP_LIMIT = 16;
+
+    /** ids kept per origin for duplicate suppression. */
+    static final int WINDOW = 64;
+
+    /** header: hop count, hop limit, epoch, id, inner type, then the addresses. */
+    private static final int HOP_COUNT = 0;
+
+    private static final int HOP_LIMIT = 1;
+
+    private static final int EPOCH = 2;
+
+    private static final int ID = 6;
+
+    private static final int INNER_TYPE = 10;
+
+    private static final int ADDRESSES = 11;
+
+    private static final Random sRandom = new Random();
+
+    /**
+     * The links of the router to its neighbors.
+     */
+    interface Transport {
+        boolean isNeighbor(String address);
+
+        /**
+         * Queues a relay frame for one neighbor.
+         *
+         * @param policy one of the OVERFLOW constants of {@link Connection}.
+         * @return false if it could not be queued.
+         */
+        boolean send(String neighbor, byte[] frame, int policy);
+
+        /**
+         * Queues a relay frame for every neighbor but except, which may be
+         * null.
+         *
+         * @return false if it could not be queued for some neighbor.
+         */
+        boolean sendToAll(String except, byte[] frame, int policy);
+
+        /**
+         * Hands a frame for this device to the app, as if origin had sent
+         * it directly.
+         */
+        void deliver(String origin, int type, byte[] payload, int offset, int length);
+    }
+
+    private static final class Route {
+        String mNextHop;
+
+        int mHops;
+
+        Route(String nextHop, int hops) {
+            mNextHop = nextHop;
+            mHops = hops;
+        }
+    }
+
+    /**
+     * The ids seen from one epoch of an origin: bit i of mSeen is set if
+     * mHighest - i was seen. Frames of the epoch before are dropped.
+     */
+    private static final class Window {
+        int mEpoch;
+
+        int mPreviousEpoch;
+
+        int mHighest;
+
+        long mSeen;
+    }
+
+    private final String mAddress;
+
+    private final Transport mTransport;
+
+    private final HashMap<String, Route> mRoutes = new HashMap<String, Route>();
+
+    private final HashMap<String, Window> mWindows = new HashMap<String, Window>();
+
+    /** never 0, which windows start from as their previous epoch. */
+    private final int mEpoch;
+
+    private int mNextId;
+
+    private boolean mForwarding;
+
+    private int mHopLimit = DEFAULT_HOP_LIMIT;
+
+    private long mForwardCount;
+
+    /**
+     * @param address the address of this device, the origin of its frames.
+     */
+    MeshRouter(String address, Transport transport) {
+        mAddress = address;
+        mTransport = transport;
+        int epoch;
+        synchronized (sRandom) {
+            do {
+                epoch = sRandom.nextInt();
+            } while (epoch == 0);
+        }
+        mEpoch = epoch;
+    }
+
+    /**
+     * Turns relaying on or off. While on, this device forwards the frames of
+     * others, and hopLimit, clamped to 1..{@link #MAX_HOP_LIMIT}, bounds the
+     * links its own frames may cross.
+     */
+    synchronized void setForwarding(boolean forwarding, int hopLimit) {
+        mForwarding = forwarding;
+        mHopLimit = Math.max(1, Math.min(hopLimit, MAX_HOP_LIMIT));
+    }
+
+    synchronized boolean isForwarding() {
+        return mForwarding;
+    }
+
+    /**
+     * @return how many frames of others this device passed on.
+     */
+    synchronized long getForwardCount() {
+        return mForwardCount;
+    }
+
+    /**
+     * Sends a frame to destination, which need not be a neighbor.
+     *
+     * @return false if it could not be queued, or is too large.
+     */
+    boolean send(String destination, int type, byte[] payload, int policy) {
+        byte[] frame;
+        String nextHop;
+        synchronized (this) {
+            frame = encode(destination, type, payload);
+            if (frame == null) {
+                return false;
+            }
+            nextHop = getNextHop(destination, null);
+        }
+        if (nextHop != null) {
+            return mTransport.send(nextHop, frame, policy);
+        }
+        return mTransport.sendToAll(null, frame, policy);
+    }
+
+    /**
+     * Sends a frame to every device within the hop limit.
+     *
+     * @return false if it could not be queued for some neighbor.
+     */
+    boolean broadcast(int type, byte[] payload, int policy) {
+        byte[] frame;
+        synchronized (this) {
+            frame = encode("", type, payload);
+        }
+        return frame != null && mTransport.sendToAll(null, frame, policy);
+    }
+
+    /**
+     * Handles a relay frame received from neighbor: delivers it if it is for
+     * this device and forwards it if it is for others. Forwarded frames never
+     * wait for room, so that a slow link does not stall the reader.
+     */
+    void onFrame(String neighbor, byte[] b, int offset, int length) {
+        int end = offset + length;
+        if (length < ADDRESSES + 2) {
+            Log.w(TAG, "Dropped a short relay frame from " + neighbor);
+            return;
+        }
+        int hopCount = b[offset + HOP_COUNT] & 0xff;
+        int hopLimit = b[offset + HOP_LIMIT] & 0xff;
+        int epoch = readInt(b, offset + EPOCH);
+        int id = readInt(b, offset + ID);
+        int type = b[offset + INNER_TYPE] & 0xff;
+        int n = offset + ADDRESSES;
+        int originLength = b[n++] & 0xff;
+        if (n + originLength >= end) {
+            Log.w(TAG, "Dropped a malformed relay frame from " + neighbor);
+            return;
+        }
+        String origin = readAddress(b, n, originLength);
+        n += originLength;
+        int destinationLength = b[n++] & 0xff;
+        if (n + destinationLength > end) {
+            Log.w(TAG, "Dropped a malformed relay frame from " + neighbor);
+            return;
+        }
+        String destination = readAddress(b, n, destinationLength);
+        n += destinationLength;
+
+        byte[] forward = null;
+        String nextHop = null;
+        synchronized (this) {
+            if (origin.equals(mAddress)) {
+                return;
+            }
+            learnRoute(origin, neighbor, hopCount + 1);
+            if (isDuplicate(origin, epoch, id)) {
+                return;
+            }
+            if (mForwarding && hopCount + 1 < hopLimit && !destination.equals(mAddress)) {
+                forward = new byte[length];
+                System.arraycopy(b, offset, forward, 0, length);
+                forward[HOP_COUNT] = (byte) (hopCount + 1);
+                if (destination.length() > 0) {
+                    nextHop = getNextHop(destination, neighbor);
+                }
+                ++mForwardCount;
+            }
+        }
+        if (destination.length() == 0 || destination.equals(mAddress)) {
+            mTransport.deliver(origin, type, b, n, end - n);
+        }
+        if (forward != null) {
+            if (nextHop != null) {
+                mTransport.send(nextHop, forward, Connection.OVERFLOW_FAIL);
+            } else {
+                mTransport.sendToAll(neighbor, forward, Connection.OVERFLOW_FAIL);
+            }
+        }
+    }
+
+    /**
+     * Forgets the routes through a lost neighbor; frames for the origins
+     * behind it are flooded until a new route is learned.
+     */
+    synchronized void onNeighborLost(String neighbor) {
+        Iterator<Route> routes = mRoutes.values().iterator();
+        while (routes.hasNext()) {
+            if (routes.next().mNextHop.equals(neighbor)) {
+                routes.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the neighbor to send a frame for destination to, or null to
+     *         flood it; never from, the neighbor it came from.
+     */
+    private String getNextHop(String destination, String from) {
+        if (mTransport.isNeighbor(destination)) {
+            return destination;
+        }
+        Route route = mRoutes.get(destination);
+        if (route == null || route.mNextHop.equals(from)
+                || !mTransport.isNeighbor(route.mNextHop)) {
+            return null;
+        }
+        return route.mNextHop;
+    }
+
+    private void learnRoute(String origin, String neighbor, int hops) {
+        Route route = mRoutes.get(origin);
+        if (route == null) {
+            mRoutes.put(origin, new Route(neighbor, hops));
+        } else if (hops <= route.mHops || route.mNextHop.equals(neighbor)
+                || !mTransport.isNeighbor(route.mNextHop)) {
+            route.mNextHop = neighbor;
+            route.mHops = hops;
+        }
+    }
+
+    /**
+     * Records id as seen from origin. A new epoch means the origin started
+     * a new session, and resets the window; an id behind the window, or of
+     * the epoch before, is taken for a duplicate, since it can no longer be
+     * told apart from one.
+     */
+    private boolean isDuplicate(String origin, int epoch, int id) {
+        Window window = mWindows.get(origin);
+        if (window == null) {
+            window = new Window();
+            mWindows.put(origin, window);
+        } else if (window.mEpoch == epoch) {
+            int delta = id - window.mHighest;
+            if (delta > 0) {
+                window.mSeen = delta < WINDOW ? (window.mSeen << delta) | 1 : 1;
+                window.mHighest = id;
+                return false;
+            }
+            if (-delta >= WINDOW) {
+                return true;
+            }
+            long bit = 1L << -delta;
+            if ((window.mSeen & bit) != 0) {
+                return true;
+            }
+            window.mSeen |= bit;
+            return false;
+        } else if (window.mPreviousEpoch == epoch) {
+            return true;
+        }
+        window.mPreviousEpoch = window.mEpoch;
+        window.mEpoch = epoch;
+        window.mHighest = id;
+        window.mSeen = 1;
+        return false;
+    }
+
+    /**
+     * @return the relay frame, or null if it would be too large.
+     */
+    private byte[] encode(String destination, int type, byte[] payload) {
+        int originLength = mAddress.length();
+        int destinationLength = destination.length();
+        int header = ADDRESSES + 2 + originLength + destinationLength;
+        if (payload.length > FrameCodec.MAX_PAYLOAD - header) {
+            Log.w(TAG, "Relay frame too long: " + payload.length);
+            return null;
+        }
+        byte[] frame = new byte[header + payload.length];
+        frame[HOP_COUNT] = 0;
+        frame[HOP_LIMIT] = (byte) mHopLimit;
+        putInt(frame, EPOCH, mEpoch);
+        putInt(frame, ID, mNextId++);
+        frame[INNER_TYPE] = (byte) type;
+        int n = ADDRESSES;
+        frame[n++] = (byte) originLength;
+        for (int i = 0; i < originLength; i++) {
+            frame[n++] = (byte) mAddress.charAt(i);
+        }
+        frame[n++] = (byte) destinationLength;
+        for (int i = 0; i < destinationLength; i++) {
+            frame[n++] = (byte) destination.charAt(i);
+        }
+        System.arraycopy(payload, 0, frame, n, payload.length);
+        return frame;
+    }
+
+    private static void putInt(byte[] b, int n, int value) {
+        b[n] = (byte) (value >>> 24);
+        b[n + 1] = (byte) (value >>> 16);
+        b[n + 2] = (byte) (value >>> 8);
+        b[n + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] b, int n) {
+        return ((b[n] & 0xff) << 24) | ((b[n + 1] & 0xff) << 16) | ((b[n + 2] & 0xff) << 8)
+                | (b[n + 3] & 0xff);
+    }
+
+    private static String readAddress(byte[] b, int n, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) (b[n + i] & 0xff);
+        }
+        return new String(chars);
+    }
+}
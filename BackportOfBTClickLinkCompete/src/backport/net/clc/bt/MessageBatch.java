@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.net.clc.bt;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Packs received frames into one byte array, so that a burst of messages
+ * crosses to the client in a single {@link IConnectionCallback} call.
+ * <p>
+ * Each entry is the {@link FrameCodec} type byte, the length of the device
+ * address and its ASCII characters, the payload length as a four byte big
+ * endian int, and the payload as it was received. The {@link SharedRing}
+ * uses the same entries.
+ */
+final class MessageBatch {
+    /** entry type of a lost connection, with an empty payload. */
+    static final int TYPE_LOST = 0;
+
+    /** bytes of an entry besides the address and the payload. */
+    static final int ENTRY_OVERHEAD = 6;
+
+    /**
+     * Receives the entries of a batch, in order.
+     */
+    interface Handler {
+        void onText(String device, String message);
+
+        void onBytes(String device, byte[] data);
+
+        void onConnectionLost(String device);
+    }
+
+    private byte[] mBuffer = new byte[1024];
+
+    private int mLength;
+
+    private int mCount;
+
+    /**
+     * Appends a frame of one of the {@link FrameCodec} types, or a
+     * {@link #TYPE_LOST} entry.
+     */
+    void add(String device, int type, byte[] payload, int offset, int length) {
+        ensureCapacity(mLength + entrySize(device, length));
+        mLength = putEntry(mBuffer, mLength, device, type, payload, offset, length);
+        ++mCount;
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the size of the packed entries.
+     */
+    int getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return the packed entries, and empties the batch.
+     */
+    byte[] take() {
+        byte[] batch = new byte[mLength];
+        System.arraycopy(mBuffer, 0, batch, 0, mLength);
+        mLength = 0;
+        mCount = 0;
+        return batch;
+    }
+
+    static int entrySize(String device, int payloadLength) {
+        return ENTRY_OVERHEAD + device.length() + payloadLength;
+    }
+
+    /**
+     * Writes an entry into b at n, which must have room for it.
+     *
+     * @return the offset after the entry.
+     */
+    static int putEntry(byte[] b, int n, String device, int type, byte[] payload, int offset,
+            int length) {
+        int addressLength = device.length();
+        b[n++] = (byte) type;
+        b[n++] = (byte) addressLength;
+        for (int i = 0; i < addressLength; i++) {
+            b[n++] = (byte) device.charAt(i);
+        }
+        b[n++] = (byte) (length >>> 24);
+        b[n++] = (byte) (length >>> 16);
+        b[n++] = (byte) (length >>> 8);
+        b[n++] = (byte) length;
+        System.arraycopy(payload, offset, b, n, length);
+        return n + length;
+    }
+
+    /**
+     * @return the size of the entry at n, of which at least
+     *         {@link #ENTRY_OVERHEAD} plus the address bytes are in b.
+     */
+    static int getEntrySize(byte[] b, int n) {
+        int addressLength = b[n + 1] & 0xff;
+        int p = n + 2 + addressLength;
+        int length = ((b[p] & 0xff) << 24) | ((b[p + 1] & 0xff) << 16)
+                | ((b[p + 2] & 0xff) << 8) | (b[p + 3] & 0xff);
+        return ENTRY_OVERHEAD + addressLength + length;
+    }
+
+    /**
+     * Hands each entry of a packed batch to handler.
+     *
+     * @throws IllegalArgumentException if the batch is malformed.
+     */
+    static void unpack(byte[] batch, Handler handler) {
+        unpack(batch, 0, batch.length, handler);
+    }
+
+    /**
+     * Hands each entry of batch[offset, offset + length) to handler.
+     *
+     * @throws IllegalArgumentException if the entries are malformed.
+     */
+    static void unpack(byte[] batch, int offset, int length, Handler handler) {
+        int n = offset;
+        int end = offset + length;
+        String lastDevice = null;
+        try {
+            while (n < end) {
+                int type = batch[n++] & 0xff;
+                int addressLength = batch[n++] & 0xff;
+                String device = new String(batch, n, addressLength, "US-ASCII");
+                // Most batches hold a few devices; share their strings.
+                if (device.equals(lastDevice)) {
+                    device = lastDevice;
+                }
+                lastDevice = device;
+                n += addressLength;
+                int payloadLength = ((batch[n] & 0xff) << 24) | ((batch[n + 1] & 0xff) << 16)
+                        | ((batch[n + 2] & 0xff) << 8) | (batch[n + 3] & 0xff);
+                n += 4;
+                if (payloadLength < 0 || payloadLength > end - n) {
+                    throw new IllegalArgumentException("Bad entry length " + payloadLength);
+                }
+                if (type == FrameCodec.TYPE_TEXT) {
+                    handler.onText(device, new String(batch, n, payloadLength, "UTF-8"));
+                } else if (type == TYPE_LOST) {
+                    handler.onConnectionLost(device);
+                } else {
+                    byte[] data = new byte[payloadLength];
+                    System.arraycopy(batch, n, data, 0, payloadLength);
+                    handler.onBytes(device, data);
+                }
+                n += payloadLength;
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated batch");
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mBuffer.length) {
+            byte[] buffer = new byte[Math.max(capacity, mBuffer.length * 2)];
+            System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+            mBuffer = buffer;
+        }
+    }
+}
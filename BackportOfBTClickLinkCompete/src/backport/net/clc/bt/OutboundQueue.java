@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.net.clc.bt;
+
+/**
+ * The bounded queue of frames waiting to be written to one peer.
+ * <p>
+ * What happens when it is full depends on the overflow policy of the frame
+ * offered: {@link Connection#OVERFLOW_BLOCK} waits for room,
+ * {@link Connection#OVERFLOW_FAIL} gives up at once, and
+ * {@link Connection#OVERFLOW_DROP_OLDEST} drops the oldest queued frame that
+ * was itself offered with that policy, so stale state updates make way for
+ * newer ones but reliable frames are never dropped.
+ * <p>
+ * One more frame can be set aside with {@link #offerUrgent}; it goes out
+ * next, whatever the queue holds.
+ */
+final class OutboundQueue {
+    static final int DEFAULT_CAPACITY = 64;
+
+    /** longest wait for room with {@link Connection#OVERFLOW_BLOCK}. */
+    static final long BLOCK_TIMEOUT_MS = 2000;
+
+    /**
+     * One queued frame.
+     */
+    static final class Frame {
+        final int mType;
+
+        /** a String for {@link FrameCodec#TYPE_TEXT}, else a byte[]. */
+        final Object mPayload;
+
+        final boolean mDroppable;
+
+        Frame(int type, Object payload, boolean droppable) {
+            mType = type;
+            mPayload = payload;
+            mDroppable = droppable;
+        }
+    }
+
+    private final Frame[] mFrames;
+
+    /** sent before the queued frames; see {@link #offerUrgent}. */
+    private Frame mUrgent;
+
+    /** index of the oldest frame. */
+    private int mHead;
+
+    private int mCount;
+
+    private long mDropCount;
+
+    private boolean mClosed;
+
+    OutboundQueue(int capacity) {
+        mFrames = new Frame[capacity];
+    }
+
+    /**
+     * Queues a frame.
+     *
+     * @param policy one of the OVERFLOW constants of {@link Connection}.
+     * @param mayWait false to return at once instead of waiting for room
+     *            with {@link Connection#OVERFLOW_BLOCK}. The frame is then
+     *            not counted as dropped, so that it can be offered again.
+     * @return false if the frame was not queued: the queue is closed, it
+     *         stayed full, or it is full of frames that cannot be dropped.
+     */
+    synchronized boolean offer(int type, Object payload, int policy, boolean mayWait) {
+        if (mClosed) {
+            return false;
+        }
+        if (mCount == mFrames.length) {
+            switch (policy) {
+                case Connection.OVERFLOW_DROP_OLDEST:
+                    if (!dropOldest()) {
+                        ++mDropCount;
+                        return false;
+                    }
+                    break;
+                case Connection.OVERFLOW_BLOCK:
+                    if (!mayWait) {
+                        return false;
+                    }
+                    if (!awaitRoom()) {
+                        if (!mClosed) {
+                            ++mDropCount;
+                        }
+                        return false;
+                    }
+                    break;
+                default:
+                    ++mDropCount;
+                    return false;
+            }
+        }
+        mFrames[(mHead + mCount) % mFrames.length] = new Frame(type, payload,
+                policy == Connection.OVERFLOW_DROP_OLDEST);
+        if (mCount++ == 0) {
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Sends a frame ahead of the queued ones, replacing the urgent frame not
+     * taken yet, if any. It never waits nor fails for room, so it suits a
+     * cumulative ack, which the next one makes obsolete.
+     *
+     * @return false if the queue is closed.
+     */
+    synchronized boolean offerUrgent(int type, Object payload) {
+        if (mClosed) {
+            return false;
+        }
+        if (mUrgent == null && mCount == 0) {
+            notifyAll();
+        }
+        mUrgent = new Frame(type, payload, false);
+        return true;
+    }
+
+    /**
+     * Waits for the next frame.
+     *
+     * @return the frame, or null once the queue is closed.
+     */
+    synchronized Frame take() throws InterruptedException {
+        while (mCount == 0 && mUrgent == null && !mClosed) {
+            wait();
+        }
+        if (mClosed) {
+            return null;
+        }
+        if (mUrgent != null) {
+            Frame urgent = mUrgent;
+            mUrgent = null;
+            return urgent;
+        }
+        Frame frame = mFrames[mHead];
+        mFrames[mHead] = null;
+        mHead = (mHead + 1) % mFrames.length;
+        if (mCount-- == mFrames.length) {
+            notifyAll();
+        }
+        return frame;
+    }
+
+    /**
+     * Drops the queued frames and wakes up the writer and blocked senders.
+     */
+    synchronized void close() {
+        mClosed = true;
+        for (int i = 0; i < mFrames.length; i++) {
+            mFrames[i] = null;
+        }
+        mCount = 0;
+        mUrgent = null;
+        notifyAll();
+    }
+
+    synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * @return how many frames were dropped or refused because the queue was
+     *         full.
+     */
+    synchronized long getDropCount() {
+        return mDropCount;
+    }
+
+    /**
+     * Removes the oldest droppable frame, moving the frames queued before it
+     * up by one.
+     */
+    private boolean dropOldest() {
+        int length = mFrames.length;
+        for (int i = 0; i < mCount; i++) {
+            int index = (mHead + i) % length;
+            if (mFrames[index].mDroppable) {
+                for (int j = i; j > 0; j--) {
+                    mFrames[(mHead + j) % length] = mFrames[(mHead + j - 1) % length];
+                }
+                mFrames[mHead] = null;
+                mHead = (mHead + 1) % length;
+                --mCount;
+                ++mDropCount;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean awaitRoom() {
+        long deadline = System.currentTimeMillis() + BLOCK_TIMEOUT_MS;
+        try {
+            while (mCount == mFrames.length && !mClosed) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                wait(wait);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return !mClosed;
+    }
+}
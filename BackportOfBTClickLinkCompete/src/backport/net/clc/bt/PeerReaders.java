@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.net.clc.bt;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Reads every peer socket of the {@link ConnectionService}, with one thread
+ * per peer blocked in its read. The peers themselves are registered in the
+ * {@link PeerRegistry}; the readers own their sockets and update their
+ * counters. Writes go through the {@link OutboundQueue} of each peer instead,
+ * since a write to a peer with a full buffer blocks.
+ * <p>
+ * The RFCOMM streams of the library we link against only offer blocking
+ * reads. A thread blocked in one costs nothing while its peer is quiet and
+ * handles a frame as soon as it arrives, where a single thread would have to
+ * poll available() on every peer. A piconet holds at most
+ * {@link Connection#MAX_SUPPORTED} peers, so the threads stay few.
+ * <p>
+ * Closing a socket ends the read blocked on it. A peer closed by
+ * {@link #closePeer(PeerRegistry.Peer)} is reported lost at once, one
+ * replaced or closed by {@link #closeAll()} is not reported.
+ */
+final class PeerReaders {
+    private static final String TAG = "net.clc.bt.PeerReaders";
+
+    /**
+     * Receives the frames and disconnections, on the reader thread of the
+     * peer.
+     */
+    interface Listener {
+        /**
+         * A frame of any type was read. The reader holds it until this
+         * returns.
+         */
+        void onFrame(PeerRegistry.Peer peer, FrameCodec.Reader reader);
+
+        /**
+         * The peer disconnected or failed, and its socket is closed.
+         */
+        void onPeerLost(PeerRegistry.Peer peer);
+    }
+
+    private final Listener mListener;
+
+    /** the peers read, by address; guarded by this. */
+    private final HashMap<String, PeerRegistry.Peer> mPeers =
+            new HashMap<String, PeerRegistry.Peer>();
+
+    /** set by shutdown(); guarded by this. */
+    private boolean mShutdown;
+
+    PeerReaders(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Starts reading a connected peer, which owns its socket from now on. A
+     * peer already read for the same address is closed. After
+     * {@link #shutdown()} the socket is only closed.
+     */
+    void addPeer(PeerRegistry.Peer peer) {
+        PeerRegistry.Peer old;
+        synchronized (this) {
+            if (mShutdown) {
+                old = peer;
+            } else {
+                old = mPeers.put(peer.getAddress(), peer);
+            }
+        }
+        if (old != null) {
+            closeSocket(old);
+        }
+        if (old != peer) {
+            new Thread(new Reader(peer), "PeerReader " + peer.getAddress()).start();
+        }
+    }
+
+    /**
+     * Closes the socket of a peer, e.g. once its ACL link is down or a write
+     * failed, and reports it lost.
+     */
+    void closePeer(PeerRegistry.Peer peer) {
+        if (remove(peer)) {
+            closeSocket(peer);
+            mListener.onPeerLost(peer);
+        }
+    }
+
+    /**
+     * Closes every peer without reporting them lost, e.g. at the end of a
+     * session.
+     */
+    void closeAll() {
+        PeerRegistry.Peer[] peers;
+        synchronized (this) {
+            peers = mPeers.values().toArray(new PeerRegistry.Peer[mPeers.size()]);
+            mPeers.clear();
+        }
+        for (int i = 0; i < peers.length; i++) {
+            closeSocket(peers[i]);
+        }
+    }
+
+    /**
+     * Closes every peer, and the sockets of the peers added later, without
+     * reporting them lost. Their readers end with their reads.
+     */
+    void shutdown() {
+        synchronized (this) {
+            mShutdown = true;
+        }
+        closeAll();
+    }
+
+    /**
+     * @return true if peer was still read, and is no longer.
+     */
+    private synchronized boolean remove(PeerRegistry.Peer peer) {
+        if (mPeers.get(peer.getAddress()) != peer) {
+            return false;
+        }
+        mPeers.remove(peer.getAddress());
+        return true;
+    }
+
+    /**
+     * Reads the frames of one peer until its stream fails or ends.
+     */
+    private class Reader implements Runnable {
+        private PeerRegistry.Peer peer;
+
+        public Reader(PeerRegistry.Peer thePeer) {
+            peer = thePeer;
+        }
+
+        public void run() {
+            try {
+                FrameCodec.Reader reader = new FrameCodec.Reader(peer.getLink()
+                        .getInputStream());
+                while (reader.next()) {
+                    peer.countReceived(reader.getLength());
+                    mListener.onFrame(peer, reader);
+                }
+            } catch (IOException e) {
+                Log.i(TAG, "IOException reading from " + peer.getAddress()
+                        + " - probably caused by normal disconnection", e);
+            }
+            // A peer that was closed on purpose is no longer read here.
+            closePeer(peer);
+        }
+    }
+
+    private static void closeSocket(PeerRegistry.Peer peer) {
+        try {
+            peer.getLink().close();
+        } catch (IOException e) {
+            Log.i(TAG, "IOException closing the socket of " + peer.getAddress(), e);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.net.clc.bt;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The connected peers of the {@link ConnectionService}, shared by the binder
+ * threads, the connection waiter and the {@link PeerReaders}.
+ * <p>
+ * Lookups go through a concurrent map. Changes are serialized and publish a
+ * new array of the peers in connection order, so {@link #getPeers()} hands
+ * out a snapshot that can be iterated without a lock.
+ */
+final class PeerRegistry {
+    private static final Peer[] NO_PEERS = new Peer[0];
+
+    /**
+     * One connected peer, its outbound queue and its counters.
+     */
+    static final class Peer {
+        private final String mAddress;
+
+        private final PeerTransport.Link mLink;
+
+        private final long mConnectedAt = System.currentTimeMillis();
+
+        private final OutboundQueue mQueue = new OutboundQueue(OutboundQueue.DEFAULT_CAPACITY);
+
+        private final AtomicLong mFramesSent = new AtomicLong();
+
+        private final AtomicLong mBytesSent = new AtomicLong();
+
+        private final AtomicLong mFramesReceived = new AtomicLong();
+
+        private final AtomicLong mBytesReceived = new AtomicLong();
+
+        Peer(String address, PeerTransport.Link link) {
+            mAddress = address;
+            mLink = link;
+        }
+
+        String getAddress() {
+            return mAddress;
+        }
+
+        PeerTransport.Link getLink() {
+            return mLink;
+        }
+
+        long getConnectedAt() {
+            return mConnectedAt;
+        }
+
+        OutboundQueue getQueue() {
+            return mQueue;
+        }
+
+        long getFramesSent() {
+            return mFramesSent.get();
+        }
+
+        long getBytesSent() {
+            return mBytesSent.get();
+        }
+
+        long getFramesReceived() {
+            return mFramesReceived.get();
+        }
+
+        long getBytesReceived() {
+            return mBytesReceived.get();
+        }
+
+        void countSent(int payloadLength) {
+            mFramesSent.incrementAndGet();
+            mBytesSent.addAndGet(payloadLength);
+        }
+
+        void countReceived(int payloadLength) {
+            mFramesReceived.incrementAndGet();
+            mBytesReceived.addAndGet(payloadLength);
+        }
+    }
+
+    private final ConcurrentHashMap<String, Peer> mPeers = new ConcurrentHashMap<String, Peer>();
+
+    /** written under this, in connection order. */
+    private volatile Peer[] mSnapshot = NO_PEERS;
+
+    /**
+     * Adds a peer, replacing any peer with the same address.
+     *
+     * @return the replaced peer, or null.
+     */
+    synchronized Peer add(Peer peer) {
+        Peer old = mPeers.put(peer.getAddress(), peer);
+        Peer[] snapshot = mSnapshot;
+        int length = snapshot.length;
+        Peer[] peers = new Peer[length + 1];
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            if (snapshot[i] != old) {
+                peers[n++] = snapshot[i];
+            }
+        }
+        peers[n++] = peer;
+        mSnapshot = trim(peers, n);
+        return old;
+    }
+
+    /**
+     * Removes peer if it is still the one registered for its address, so a
+     * late disconnect of a replaced peer does not drop its successor.
+     *
+     * @return true if it was removed.
+     */
+    synchronized boolean remove(Peer peer) {
+        if (!mPeers.remove(peer.getAddress(), peer)) {
+            return false;
+        }
+        Peer[] snapshot = mSnapshot;
+        Peer[] peers = new Peer[snapshot.length - 1];
+        int n = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            if (snapshot[i] != peer) {
+                peers[n++] = snapshot[i];
+            }
+        }
+        mSnapshot = peers;
+        return true;
+    }
+
+    /**
+     * Removes every peer.
+     *
+     * @return the removed peers.
+     */
+    synchronized Peer[] clear() {
+        Peer[] snapshot = mSnapshot;
+        mPeers.clear();
+        mSnapshot = NO_PEERS;
+        return snapshot;
+    }
+
+    Peer get(String address) {
+        return mPeers.get(address);
+    }
+
+    boolean contains(String address) {
+        return mPeers.containsKey(address);
+    }
+
+    /**
+     * @return the peers in connection order. The array must not be
+     *         modified; it is not affected by later changes.
+     */
+    Peer[] getPeers() {
+        return mSnapshot;
+    }
+
+    int size() {
+        return mSnapshot.length;
+    }
+
+    private static Peer[] trim(Peer[] peers, int length) {
+        if (length == peers.length) {
+            return peers;
+        }
+        Peer[] trimmed = new Peer[length];
+        System.arraycopy(peers, 0, trimmed, 0, length);
+        return trimmed;
+    }
+}
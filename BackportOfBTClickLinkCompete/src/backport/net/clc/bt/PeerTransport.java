@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.net.clc.bt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * The links the {@link ConnectionService} runs its sessions over.
+ * {@link BluetoothTransport} opens RFCOMM sockets; {@link LinkLoopback}
+ * joins services in memory to test them without Bluetooth.
+ * <p>
+ * The calls block like the sockets of the library we link against: connect
+ * until the link is up or failed, accept until a device connected or the
+ * listener is closed, and reads until data arrives or the link is closed.
+ */
+interface PeerTransport {
+    /**
+     * A connected link to one device.
+     */
+    interface Link {
+        String getRemoteAddress();
+
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        /**
+         * Closes the link, which also ends a read blocked on it.
+         */
+        void close() throws IOException;
+    }
+
+    /**
+     * Takes the links of the devices connecting to this one.
+     */
+    interface Listener {
+        Link accept() throws IOException;
+
+        /**
+         * Stops listening, which also ends an accept blocked on it.
+         */
+        void close() throws IOException;
+    }
+
+    /**
+     * @return the address of this device.
+     */
+    String getAddress();
+
+    /**
+     * @return the name of this device, or null.
+     */
+    String getName();
+
+    /**
+     * Stops a device inquiry, which slows down paging.
+     */
+    void cancelDiscovery();
+
+    /**
+     * Asks the user to make this device discoverable, so that clients can
+     * find the server.
+     */
+    void requestDiscoverable();
+
+    Listener listen(String name, UUID uuid) throws IOException;
+
+    /**
+     * @return the link to the service uuid of the device.
+     */
+    Link connect(String address, UUID uuid) throws IOException;
+}
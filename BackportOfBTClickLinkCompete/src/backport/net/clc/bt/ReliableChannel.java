@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.net.clc.bt;
+
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * The reliable session with one peer, which outlives the RFCOMM link it
+ * runs on so that a dropped link can be replaced without losing messages.
+ * <p>
+ * Each message goes out as a {@link FrameCodec#TYPE_RELIABLE} frame with a
+ * sequence number, and stays in a bounded buffer until the peer acks it:
+ * the peer sends a {@link FrameCodec#TYPE_ACK} with the next sequence
+ * number it expects every {@link #ACK_INTERVAL} messages. RFCOMM neither
+ * loses nor reorders frames on a link, so a receiver only drops the
+ * duplicates that a resume sends again.
+ * <p>
+ * A new link starts detached: messages are only buffered until the
+ * {@link FrameCodec#TYPE_RESUME} frame of the peer arrives. It carries the
+ * random epoch of its session, the epoch it knows of ours and the next
+ * sequence number it expects, so the unacked messages after that are sent
+ * again, in order, ahead of any new one. If the peer comes back with another
+ * epoch, it lost its session, and both sides start over from zero.
+ */
+final class ReliableChannel {
+    private static final String TAG = "net.clc.bt.ReliableChannel";
+
+    static final int DEFAULT_CAPACITY = 256;
+
+    /** messages received between two acks. */
+    static final int ACK_INTERVAL = 16;
+
+    static final int MIN_CAPACITY = 2 * ACK_INTERVAL;
+
+    /** reliable frame: sequence number, inner type, payload. */
+    static final int HEADER_SIZE = 5;
+
+    private static final int RESUME_SIZE = 20;
+
+    private static final Random sRandom = new Random();
+
+    private final String mAddress;
+
+    /** true if this side connected to the peer, and so reconnects. */
+    private final boolean mDialed;
+
+    private final PeerReaders mReaders;
+
+    private final long mEpoch;
+
+    /** orders the frames queued by concurrent senders and resends. */
+    private final Object mSendLock = new Object();
+
+    /** encoded frames not acked yet, from sequence number mAcked on. */
+    private final byte[][] mUnacked;
+
+    private int mHead;
+
+    private int mCount;
+
+    private int mAcked;
+
+    private int mNextSeq;
+
+    private int mExpected;
+
+    private int mReceivedSinceAck;
+
+    private long mPeerEpoch;
+
+    /** the link frames are queued on; null while detached. */
+    private PeerRegistry.Peer mPeer;
+
+    /** true while a new link waits for the resume frame of the peer. */
+    private boolean mConnecting;
+
+    /**
+     * true while the unacked messages are queued again on a resumed link;
+     * new messages are only buffered meanwhile, and go out with them.
+     */
+    private boolean mResending;
+
+    private int mDetachCount;
+
+    ReliableChannel(String address, boolean dialed, int capacity, PeerReaders readers) {
+        mAddress = address;
+        mDialed = dialed;
+        mReaders = readers;
+        mUnacked = new byte[Math.max(capacity, MIN_CAPACITY)][];
+        long epoch;
+        synchronized (sRandom) {
+            do {
+                epoch = sRandom.nextLong();
+            } while (epoch == 0);
+        }
+        mEpoch = epoch;
+    }
+
+    String getAddress() {
+        return mAddress;
+    }
+
+    boolean isDialed() {
+        return mDialed;
+    }
+
+    /**
+     * Buffers a message and queues it on the link, if attached.
+     *
+     * @param policy {@link Connection#OVERFLOW_BLOCK} to wait for acks while
+     *            the buffer is full; other policies fail at once.
+     * @return false if the buffer stayed full.
+     */
+    boolean send(int type, byte[] payload, int policy) {
+        if (payload.length > FrameCodec.MAX_PAYLOAD - HEADER_SIZE) {
+            Log.w(TAG, "Reliable frame too long: " + payload.length);
+            return false;
+        }
+        while (true) {
+            synchronized (this) {
+                if (!awaitRoom(policy)) {
+                    return false;
+                }
+            }
+            synchronized (mSendLock) {
+                byte[] frame;
+                PeerRegistry.Peer peer;
+                synchronized (this) {
+                    if (mCount == mUnacked.length) {
+                        // Another sender took the room.
+                        continue;
+                    }
+                    frame = new byte[HEADER_SIZE + payload.length];
+                    putInt(frame, 0, mNextSeq++);
+                    frame[4] = (byte) type;
+                    System.arraycopy(payload, 0, frame, HEADER_SIZE, payload.length);
+                    mUnacked[(mHead + mCount++) % mUnacked.length] = frame;
+                    peer = mResending ? null : mPeer;
+                }
+                if (peer != null) {
+                    queue(peer, frame);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Handles a reliable frame received on peer.
+     *
+     * @return true if it is the next message, to be delivered; its type is
+     *         at offset + 4 and its payload after {@link #HEADER_SIZE}.
+     */
+    boolean receive(PeerRegistry.Peer peer, byte[] b, int offset, int length) {
+        if (length < HEADER_SIZE) {
+            Log.w(TAG, "Dropped a short reliable frame from " + mAddress);
+            return false;
+        }
+        int seq = getInt(b, offset);
+        boolean next;
+        int ack = -1;
+        synchronized (this) {
+            int ahead = seq - mExpected;
+            next = ahead == 0;
+            if (next) {
+                ++mExpected;
+            } else if (ahead > 0) {
+                Log.w(TAG, "Dropped message " + seq + " from " + mAddress + ", expected "
+                        + mExpected);
+                return false;
+            }
+            if (++mReceivedSinceAck >= ACK_INTERVAL) {
+                ack = mExpected;
+                mReceivedSinceAck = 0;
+            }
+        }
+        if (ack != -1) {
+            byte[] frame = new byte[4];
+            putInt(frame, 0, ack);
+            // Ahead of our own messages: a peer waiting for room in its
+            // buffer may be what keeps our queue full. The peer only sends
+            // on a link once it got our resume frame, so an ack never
+            // overtakes it.
+            peer.getQueue().offerUrgent(FrameCodec.TYPE_ACK, frame);
+        }
+        return next;
+    }
+
+    /**
+     * Frees the messages the peer acked.
+     */
+    void onAck(byte[] b, int offset, int length) {
+        if (length < 4) {
+            Log.w(TAG, "Dropped a short ack from " + mAddress);
+            return;
+        }
+        synchronized (this) {
+            ackTo(getInt(b, offset));
+        }
+    }
+
+    /**
+     * Starts a new link: queues our resume frame as its first frame, and
+     * keeps the session detached until the peer answers.
+     *
+     * @return the detach count, for {@link #isDetachedSince(int)}.
+     */
+    int connecting(PeerRegistry.Peer peer) {
+        byte[] frame = new byte[RESUME_SIZE];
+        int detachCount;
+        synchronized (this) {
+            mPeer = null;
+            mConnecting = true;
+            detachCount = ++mDetachCount;
+            putLong(frame, 0, mEpoch);
+            putLong(frame, 8, mPeerEpoch);
+            putInt(frame, 16, mExpected);
+            mReceivedSinceAck = 0;
+        }
+        peer.getQueue().offer(FrameCodec.TYPE_RESUME, frame, Connection.OVERFLOW_BLOCK, false);
+        return detachCount;
+    }
+
+    /**
+     * Attaches the session to the link the resume frame of the peer came
+     * on, and sends the messages it has not received again. They are queued
+     * by a thread of their own, since the reader that calls this must not
+     * wait for room in the queue.
+     */
+    void onResume(final PeerRegistry.Peer peer, byte[] b, int offset, int length) {
+        if (length < RESUME_SIZE) {
+            Log.w(TAG, "Dropped a short resume frame from " + mAddress);
+            return;
+        }
+        long epoch = getLong(b, offset);
+        long ourEpoch = getLong(b, offset + 8);
+        int next = getInt(b, offset + 16);
+        final int resendCount;
+        synchronized (this) {
+            if (mPeerEpoch != 0 && epoch != mPeerEpoch) {
+                Log.w(TAG, mAddress + " lost its session; dropping " + mCount
+                        + " unacked messages");
+                for (int i = 0; i < mUnacked.length; i++) {
+                    mUnacked[i] = null;
+                }
+                mHead = 0;
+                mCount = 0;
+                mAcked = 0;
+                mNextSeq = 0;
+                mExpected = 0;
+            }
+            mPeerEpoch = epoch;
+            // The peer only knows what it received from this session.
+            if (ourEpoch == mEpoch) {
+                ackTo(next);
+            }
+            mPeer = peer;
+            mConnecting = false;
+            mResending = true;
+            resendCount = mCount;
+        }
+        Log.i(TAG, "Resumed the session with " + mAddress + ", sending " + resendCount
+                + " messages again");
+        new Thread(new Runnable() {
+            public void run() {
+                resend(peer);
+            }
+        }, "ReliableResend").start();
+    }
+
+    /**
+     * Queues the unacked messages on peer, including those sent meanwhile,
+     * until it caught up or the link changed.
+     */
+    private void resend(PeerRegistry.Peer peer) {
+        synchronized (mSendLock) {
+            int seq;
+            synchronized (this) {
+                seq = mAcked;
+            }
+            while (true) {
+                byte[] frame;
+                synchronized (this) {
+                    if (mPeer != peer) {
+                        return;
+                    }
+                    if (seq - mAcked < 0) {
+                        seq = mAcked;
+                    }
+                    if (seq == mNextSeq) {
+                        mResending = false;
+                        return;
+                    }
+                    frame = mUnacked[(mHead + seq - mAcked) % mUnacked.length];
+                    ++seq;
+                }
+                if (!queue(peer, frame)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Detaches the session from its lost link.
+     *
+     * @return the detach count, for {@link #isDetachedSince(int)}.
+     */
+    synchronized int detach() {
+        mPeer = null;
+        mConnecting = false;
+        return ++mDetachCount;
+    }
+
+    /**
+     * @return true if the session did not resume since the given detach.
+     */
+    synchronized boolean isDetachedSince(int detachCount) {
+        return mPeer == null && mDetachCount == detachCount;
+    }
+
+    /**
+     * @return true if the session has no link, not even one resuming.
+     */
+    synchronized boolean isAwaitingLink() {
+        return mPeer == null && !mConnecting;
+    }
+
+    /**
+     * Queues a frame on its link. A link that takes no frame for the
+     * blocking timeout is closed, so that the messages go again with the
+     * resume that follows.
+     */
+    private boolean queue(PeerRegistry.Peer peer, byte[] frame) {
+        if (peer.getQueue().offer(FrameCodec.TYPE_RELIABLE, frame, Connection.OVERFLOW_BLOCK,
+                true)) {
+            return true;
+        }
+        mReaders.closePeer(peer);
+        return false;
+    }
+
+    private boolean awaitRoom(int policy) {
+        if (mCount < mUnacked.length) {
+            return true;
+        }
+        if (policy != Connection.OVERFLOW_BLOCK) {
+            return false;
+        }
+        long deadline = System.currentTimeMillis() + OutboundQueue.BLOCK_TIMEOUT_MS;
+        try {
+            while (mCount == mUnacked.length) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                wait(wait);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Frees the messages before sequence number next.
+     */
+    private void ackTo(int next) {
+        int count = next - mAcked;
+        if (count <= 0) {
+            return;
+        }
+        if (count > mCount) {
+            Log.w(TAG, mAddress + " acked " + next + " beyond " + mNextSeq);
+            count = mCount;
+        }
+        for (int i = 0; i < count; i++) {
+            mUnacked[mHead] = null;
+            mHead = (mHead + 1) % mUnacked.length;
+        }
+        mCount -= count;
+        mAcked += count;
+        notifyAll();
+    }
+
+    private static void putInt(byte[] b, int n, int value) {
+        b[n] = (byte) (value >>> 24);
+        b[n + 1] = (byte) (value >>> 16);
+        b[n + 2] = (byte) (value >>> 8);
+        b[n + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] b, int n) {
+        return ((b[n] & 0xff) << 24) | ((b[n + 1] & 0xff) << 16) | ((b[n + 2] & 0xff) << 8)
+                | (b[n + 3] & 0xff);
+    }
+
+    private static void putLong(byte[] b, int n, long value) {
+        putInt(b, n, (int) (value >>> 32));
+        putInt(b, n + 4, (int) value);
+    }
+
+    private static long getLong(byte[] b, int n) {
+        return ((long) getInt(b, n) << 32) | (getInt(b, n + 4) & 0xffffffffL);
+    }
+}
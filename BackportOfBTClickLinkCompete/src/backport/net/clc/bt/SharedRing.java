@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.net.clc.bt;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A single producer, single consumer ring of {@link MessageBatch} entries in
+ * memory shared by the {@link ConnectionService} and a {@link Connection}, so
+ * that received messages reach the client without a binder transaction each.
+ * <p>
+ * The memory is two mapped files, each written by one side only: the data
+ * file holds the ring and the tail, written by the {@link Writer} in the
+ * service, and the cursor file holds the head and the sleep generation of the
+ * {@link Reader} in the client. Each side creates its file, hands the other a
+ * read-only descriptor over binder, and unlinks it. Binder is then only used
+ * to wake the reader once it went to sleep, and to tell the writer that a
+ * full ring was drained.
+ * <p>
+ * The Java memory model does not cover mapped memory; the volatile accesses
+ * to {@link #sFence} order the entries and the indexes, since Dalvik puts
+ * barriers around them.
+ */
+final class SharedRing {
+    private static final String TAG = "net.clc.bt.SharedRing";
+
+    static final int MIN_CAPACITY = 4 * 1024;
+
+    /**
+     * bytes of entries the writer keeps while the ring is full. A client
+     * that stops reading loses the newer messages past this, rather than
+     * the service growing without bound.
+     */
+    static final int MAX_PENDING = 1 << 20;
+
+    /** data file: capacity, tail, writer waiting, then the ring. */
+    private static final int CAPACITY = 0;
+
+    private static final int TAIL = 4;
+
+    private static final int WRITER_WAITING = 8;
+
+    private static final int HEADER_SIZE = 16;
+
+    /** cursor file: head, sleep generation (odd while asleep). */
+    private static final int HEAD = 0;
+
+    private static final int GENERATION = 4;
+
+    private static final int CURSOR_SIZE = 8;
+
+    private static volatile int sFence;
+
+    private SharedRing() {
+    }
+
+    /**
+     * Creates the reader and its cursor file in dir. Pass
+     * {@link Reader#getCursorDescriptor()} to the writer, then
+     * {@link Reader#attach} the data descriptor it returns.
+     */
+    static Reader createReader(File dir) throws IOException {
+        File file = File.createTempFile("ring", ".cursor", dir);
+        try {
+            MappedByteBuffer cursor = map(file, CURSOR_SIZE);
+            return new Reader(cursor, ParcelFileDescriptor.open(file,
+                    ParcelFileDescriptor.MODE_READ_ONLY));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Creates the writer and its data file in dir.
+     *
+     * @param capacity ring size in bytes, rounded up to a power of two.
+     * @param cursor the cursor descriptor of the reader; it is closed once
+     *            mapped.
+     */
+    static Writer createWriter(File dir, int capacity, ParcelFileDescriptor cursor)
+            throws IOException {
+        int size = MIN_CAPACITY;
+        while (size < capacity && size < FrameCodec.MAX_PAYLOAD) {
+            size <<= 1;
+        }
+        MappedByteBuffer cursorBuffer;
+        try {
+            cursorBuffer = mapReadOnly(cursor);
+        } finally {
+            cursor.close();
+        }
+        File file = File.createTempFile("ring", ".data", dir);
+        try {
+            MappedByteBuffer data = map(file, HEADER_SIZE + size);
+            data.putInt(CAPACITY, size);
+            return new Writer(data, cursorBuffer, size, ParcelFileDescriptor.open(file,
+                    ParcelFileDescriptor.MODE_READ_ONLY));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Writes the entries in the service. Its methods synchronize on it.
+     */
+    static final class Writer {
+        private final MappedByteBuffer mData;
+
+        private final MappedByteBuffer mCursor;
+
+        private final int mCapacity;
+
+        private final ParcelFileDescriptor mDataFd;
+
+        private int mTail;
+
+        /** encoded entries waiting for room, mPending[mPendingStart, mPendingEnd). */
+        private byte[] mPending = new byte[1024];
+
+        private int mPendingStart;
+
+        private int mPendingEnd;
+
+        private boolean mWaiting;
+
+        /** set while entries are dropped for want of room; logged once. */
+        private boolean mDropping;
+
+        /** the sleep generation of the reader last woken. */
+        private int mWokenGeneration;
+
+        private long mDropCount;
+
+        Writer(MappedByteBuffer data, MappedByteBuffer cursor, int capacity,
+                ParcelFileDescriptor dataFd) {
+            mData = data;
+            mCursor = cursor;
+            mCapacity = capacity;
+            mDataFd = dataFd;
+        }
+
+        /**
+         * @return the read-only descriptor of the data file, for the reader,
+         *         which closes it.
+         */
+        ParcelFileDescriptor getDataDescriptor() {
+            return mDataFd;
+        }
+
+        /**
+         * Adds an entry. Entries that do not fit wait in memory, in order,
+         * until the reader drains the ring; past {@link #MAX_PENDING} bytes
+         * of them the entry is dropped.
+         *
+         * @return true if the reader must be woken up.
+         */
+        synchronized boolean write(String device, int type, byte[] payload, int offset,
+                int length) {
+            int size = MessageBatch.entrySize(device, length);
+            if (size > mCapacity) {
+                ++mDropCount;
+                Log.w(TAG, "Dropped a " + length + " byte message larger than the ring");
+                return false;
+            }
+            if (mPendingEnd - mPendingStart + size > MAX_PENDING) {
+                ++mDropCount;
+                if (!mDropping) {
+                    mDropping = true;
+                    Log.w(TAG, "The client does not drain the ring; dropping messages");
+                }
+                return pump();
+            }
+            ensurePending(size);
+            mPendingEnd = MessageBatch.putEntry(mPending, mPendingEnd, device, type, payload,
+                    offset, length);
+            return pump();
+        }
+
+        /**
+         * Moves the waiting entries into the ring, e.g. once the reader
+         * drained it.
+         *
+         * @return true if the reader must be woken up.
+         */
+        synchronized boolean pump() {
+            boolean wrote = false;
+            while (true) {
+                int free = mCapacity - (mTail - mCursor.getInt(HEAD));
+                int start = mPendingStart;
+                while (mPendingStart < mPendingEnd) {
+                    int size = MessageBatch.getEntrySize(mPending, mPendingStart);
+                    if (size > free) {
+                        break;
+                    }
+                    mPendingStart += size;
+                    free -= size;
+                }
+                if (mPendingStart > start) {
+                    copyIn(start, mPendingStart - start);
+                    wrote = true;
+                }
+                if (mPendingStart == mPendingEnd) {
+                    mPendingStart = 0;
+                    mPendingEnd = 0;
+                    if (mDropping) {
+                        mDropping = false;
+                        Log.i(TAG, mDropCount + " messages dropped so far");
+                    }
+                    if (mWaiting) {
+                        setWaiting(false);
+                    }
+                    break;
+                }
+                if (mWaiting) {
+                    break;
+                }
+                // Ask for a drained notice, then look again in case the
+                // reader drained the ring before it could see the request.
+                setWaiting(true);
+            }
+            return wrote && isReaderAsleep();
+        }
+
+        /**
+         * @return how many messages were dropped, as too large for the ring
+         *         or past {@link #MAX_PENDING}.
+         */
+        synchronized long getDropCount() {
+            return mDropCount;
+        }
+
+        /**
+         * Copies mPending[offset, offset + length) to the tail and publishes
+         * it.
+         */
+        private void copyIn(int offset, int length) {
+            int index = mTail & (mCapacity - 1);
+            int first = Math.min(length, mCapacity - index);
+            mData.position(HEADER_SIZE + index);
+            mData.put(mPending, offset, first);
+            if (first < length) {
+                mData.position(HEADER_SIZE);
+                mData.put(mPending, offset + first, length - first);
+            }
+            mTail += length;
+            sFence = mTail;
+            mData.putInt(TAIL, mTail);
+        }
+
+        private void setWaiting(boolean waiting) {
+            mWaiting = waiting;
+            mData.putInt(WRITER_WAITING, waiting ? 1 : 0);
+            sFence = 0;
+        }
+
+        private boolean isReaderAsleep() {
+            int generation = mCursor.getInt(GENERATION);
+            if ((generation & 1) == 0 || generation == mWokenGeneration) {
+                return false;
+            }
+            mWokenGeneration = generation;
+            return true;
+        }
+
+        private void ensurePending(int size) {
+            if (mPendingStart > 0 && mPendingEnd + size > mPending.length) {
+                System.arraycopy(mPending, mPendingStart, mPending, 0, mPendingEnd - mPendingStart);
+                mPendingEnd -= mPendingStart;
+                mPendingStart = 0;
+            }
+            if (mPendingEnd + size > mPending.length) {
+                byte[] pending = new byte[Math.max(mPendingEnd + size, mPending.length * 2)];
+                System.arraycopy(mPending, 0, pending, 0, mPendingEnd);
+                mPending = pending;
+            }
+        }
+    }
+
+    /**
+     * Reads the entries in the client; not to be shared between threads
+     * without holding it.
+     */
+    static final class Reader {
+        private final MappedByteBuffer mCursor;
+
+        private ParcelFileDescriptor mCursorFd;
+
+        private MappedByteBuffer mData;
+
+        private int mCapacity;
+
+        private int mHead;
+
+        private int mGeneration;
+
+        private byte[] mEntries = new byte[1024];
+
+        Reader(MappedByteBuffer cursor, ParcelFileDescriptor cursorFd) {
+            mCursor = cursor;
+            mCursorFd = cursorFd;
+        }
+
+        /**
+         * @return the read-only descriptor of the cursor file, for the
+         *         writer.
+         */
+        ParcelFileDescriptor getCursorDescriptor() {
+            return mCursorFd;
+        }
+
+        void closeCursorDescriptor() {
+            if (mCursorFd == null) {
+                return;
+            }
+            try {
+                mCursorFd.close();
+            } catch (IOException e) {
+                Log.i(TAG, "IOException closing the cursor descriptor", e);
+            }
+            mCursorFd = null;
+        }
+
+        /**
+         * Maps the data file of the writer, and closes data.
+         */
+        void attach(ParcelFileDescriptor data) throws IOException {
+            try {
+                mData = mapReadOnly(data);
+            } finally {
+                data.close();
+            }
+            mCapacity = mData.getInt(CAPACITY);
+        }
+
+        /**
+         * Hands every entry in the ring to handler and frees their room.
+         *
+         * @return false if the ring was empty.
+         */
+        boolean drain(MessageBatch.Handler handler) {
+            int tail = mData.getInt(TAIL);
+            int fence = sFence;
+            int length = tail - mHead;
+            if (length == 0) {
+                return false;
+            }
+            if (length > mEntries.length) {
+                mEntries = new byte[Math.max(length, mEntries.length * 2)];
+            }
+            int index = mHead & (mCapacity - 1);
+            int first = Math.min(length, mCapacity - index);
+            mData.position(HEADER_SIZE + index);
+            mData.get(mEntries, 0, first);
+            if (first < length) {
+                mData.position(HEADER_SIZE);
+                mData.get(mEntries, first, length - first);
+            }
+            mHead = tail;
+            sFence = fence;
+            mCursor.putInt(HEAD, mHead);
+            MessageBatch.unpack(mEntries, 0, length, handler);
+            return true;
+        }
+
+        /**
+         * Marks the reader awake, before draining.
+         */
+        void wake() {
+            if ((mGeneration & 1) != 0) {
+                ++mGeneration;
+                mCursor.putInt(GENERATION, mGeneration);
+            }
+        }
+
+        /**
+         * Marks the reader asleep, so that the writer wakes it for the next
+         * entry.
+         *
+         * @return false if entries arrived meanwhile; the reader stays awake.
+         */
+        boolean sleep() {
+            ++mGeneration;
+            mCursor.putInt(GENERATION, mGeneration);
+            sFence = mGeneration;
+            if (mData.getInt(TAIL) != mHead) {
+                wake();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return true if the writer has entries waiting for room and wants
+         *         to hear when the ring was drained.
+         */
+        boolean isWriterWaiting() {
+            return mData.getInt(WRITER_WAITING) != 0;
+        }
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static MappedByteBuffer mapReadOnly(ParcelFileDescriptor fd) throws IOException {
+        FileInputStream in = new FileInputStream(fd.getFileDescriptor());
+        FileChannel channel = in.getChannel();
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+}
@@ -33,12 +33,15 @@
 package backport.android.bluetooth;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 
 import android.bluetooth.BluetoothError;
 import android.bluetooth.IBluetoothDevice;
+import android.content.Context;
 import android.os.RemoteException;
 import android.util.Log;
 
@@ -651,24 +654,82 @@ public final class BluetoothAdapter {
 	public BluetoothServerSocket listenUsingRfcommWithServiceRecord(
 			String name, UUID uuid) throws IOException {
 
-		for (int port = 12; port <= 30; port++) {
+		RfcommChannelAllocator allocator = RfcommChannelAllocator.getInstance();
+		int preferred = RfcommChannelAllocator.preferredChannel(uuid);
+		List<Integer> inUse = null;
+		BluetoothServerSocket socket = null;
+		int port = -1;
+		boolean listening = false;
 
-			try {
+		try {
+
+			while (true) {
+
+				port = allocator.allocate(preferred);
+
+				if (port == -1) {
+
+					throw new IOException("No available channels");
+				}
+
+				try {
+
+					socket = BluetoothServerSocket.listenUsingRfcommOn(port);
+
+					break;
+				} catch (BluetoothSocket.ChannelInUseException e) {
+
+					// bound by another process. keep it until we are done so
+					// that the allocator does not hand it out again. any other
+					// failure, e.g. Bluetooth off, is thrown to the caller.
+					if (inUse == null) {
+
+						inUse = new ArrayList<Integer>();
+					}
+
+					inUse.add(port);
+					port = -1;
+				}
+			}
+
+			socket.setRegistration(ServiceRecordRegistry.getInstance()
+					.register(name, uuid, port));
+			listening = true;
+		} finally {
+
+			if (inUse != null) {
+
+				for (int p : inUse) {
+
+					allocator.discard(p);
+				}
+			}
+
+			// until registered, closing the socket does not give the port
+			// back.
+			if (!listening) {
 
-				BluetoothServerSocket socket = BluetoothServerSocket
-						.listenUsingRfcommOn(port);
+				if (port != -1) {
+
+					allocator.release(port);
+				}
 
-				Log.i(TAG, uuid + " listen on " + port);
+				if (socket != null) {
 
-				return socket;
-			} catch (IOException e) {
+					try {
 
-				// ignore;
+						socket.close();
+					} catch (IOException e) {
+
+						// ignore;
+					}
+				}
 			}
 		}
 
-		throw new IOException();
-		// return BluetoothServerSocket.listenUsingRfcommOn(-1);
+		Log.i(TAG, uuid + " listen on " + port);
+
+		return socket;
 	}
 
 	/**
@@ -737,6 +798,32 @@ public final class BluetoothAdapter {
 		}
 	}
 
+	/**
+	 * Start a discovery and follow it until it finishes.
+	 * 
+	 * The devices found are merged by address and handed to the callback in
+	 * batches on the main thread. The returned session completes when the
+	 * adapter broadcasts ACTION_DISCOVERY_FINISHED, when the timeout expires
+	 * (the discovery is then canceled) or when the session is canceled; its
+	 * get() then returns every device found.
+	 * 
+	 * Requires BLUETOOTH_ADMIN.
+	 * 
+	 * @param timeout
+	 *            milliseconds, or 0 to wait for the adapter to finish.
+	 * @param callback
+	 *            receives the devices as they are found, may be null.
+	 */
+	public DiscoverySession startDiscoverySession(Context context,
+			long timeout, DiscoveryAggregator.Callback callback) {
+
+		DiscoverySession session = new DiscoverySession(this, context,
+				callback);
+		session.start(timeout);
+
+		return session;
+	}
+
 	private static IBluetoothDevice getBluetoothService() {
 
 		return (IBluetoothDevice) BluetoothServiceLocator.getBluetoothService();
@@ -17,7 +17,9 @@
 package backport.android.bluetooth;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import android.bluetooth.BluetoothIntent;
 import android.content.BroadcastReceiver;
@@ -30,6 +32,8 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 	private static final String TAG = BluetoothIntentRedirector.class
 			.getSimpleName();
 
+	private static final boolean DBG = false;
+
 	public static final int BLUETOOTH_STATE_OFF = 0;
 	public static final int BLUETOOTH_STATE_ON = 2;
 	public static final int BLUETOOTH_STATE_TURNING_OFF = 3;
@@ -48,26 +52,19 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 
 	private static interface Converter {
 
-		boolean convertIntent(Intent src, Intent dest);
+		String getSourceAction();
+
+		void convertIntent(Intent src, Intent dest);
 	}
 
 	private static abstract class ConverterTemplate implements Converter {
 
-		public final boolean convertIntent(Intent src, Intent dest) {
-
-			String action = src.getAction();
-
-			if (!hasResponsibility(action)) {
-
-				return false;
-			}
+		public final void convertIntent(Intent src, Intent dest) {
 
 			convertIntentInternal(src, dest);
-
-			return true;
 		}
 
-		protected abstract boolean hasResponsibility(String action);
+		public abstract String getSourceAction();
 
 		protected abstract String getAction();
 
@@ -82,9 +79,9 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 			ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
+		public String getSourceAction() {
 
-			return action.equals(BluetoothIntent.DISCOVERY_COMPLETED_ACTION);
+			return BluetoothIntent.DISCOVERY_COMPLETED_ACTION;
 		}
 
 		@Override
@@ -98,9 +95,9 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 			ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
+		public String getSourceAction() {
 
-			return action.equals(BluetoothIntent.DISCOVERY_STARTED_ACTION);
+			return BluetoothIntent.DISCOVERY_STARTED_ACTION;
 		}
 
 		@Override
@@ -114,9 +111,9 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 			ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
+		public String getSourceAction() {
 
-			return action.equals(BluetoothIntent.NAME_CHANGED_ACTION);
+			return BluetoothIntent.NAME_CHANGED_ACTION;
 		}
 
 		@Override
@@ -138,9 +135,9 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 			ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
+		public String getSourceAction() {
 
-			return action.equals(BluetoothIntent.SCAN_MODE_CHANGED_ACTION);
+			return BluetoothIntent.SCAN_MODE_CHANGED_ACTION;
 		}
 
 		@Override
@@ -184,10 +181,9 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 	private static final class StateChangedConverter extends ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
+		public String getSourceAction() {
 
-			return action
-					.equals(BluetoothIntent.BLUETOOTH_STATE_CHANGED_ACTION);
+			return BluetoothIntent.BLUETOOTH_STATE_CHANGED_ACTION;
 		}
 
 		@Override
@@ -236,10 +232,9 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 	private static final class AclConnectedConverter extends ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
+		public String getSourceAction() {
 
-			return action
-					.equals(BluetoothIntent.REMOTE_DEVICE_CONNECTED_ACTION);
+			return BluetoothIntent.REMOTE_DEVICE_CONNECTED_ACTION;
 		}
 
 		@Override
@@ -263,10 +258,9 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 			ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
+		public String getSourceAction() {
 
-			return action
-					.equals(BluetoothIntent.REMOTE_DEVICE_DISCONNECTED_ACTION);
+			return BluetoothIntent.REMOTE_DEVICE_DISCONNECTED_ACTION;
 		}
 
 		@Override
@@ -290,10 +284,9 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 			ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
+		public String getSourceAction() {
 
-			return action
-					.equals(BluetoothIntent.REMOTE_DEVICE_DISCONNECT_REQUESTED_ACTION);
+			return BluetoothIntent.REMOTE_DEVICE_DISCONNECT_REQUESTED_ACTION;
 		}
 
 		@Override
@@ -317,9 +310,9 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 			ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
+		public String getSourceAction() {
 
-			return action.equals(BluetoothIntent.BOND_STATE_CHANGED_ACTION);
+			return BluetoothIntent.BOND_STATE_CHANGED_ACTION;
 		}
 
 		@Override
@@ -370,10 +363,9 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 	private static final class BondStateChangedBondingConverter extends ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
+		public String getSourceAction() {
 
-			return action
-					.equals(BluetoothIntent.PAIRING_REQUEST_ACTION);
+			return BluetoothIntent.PAIRING_REQUEST_ACTION;
 		}
 
 		@Override
@@ -398,10 +390,9 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 	private static final class BondStateChangedBondNoneConverter extends ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
+		public String getSourceAction() {
 
-			return action
-					.equals(BluetoothIntent.PAIRING_CANCEL_ACTION);
+			return BluetoothIntent.PAIRING_CANCEL_ACTION;
 		}
 
 		@Override
@@ -426,10 +417,9 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 	private static final class ClassChangedConverter extends ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
+		public String getSourceAction() {
 
-			return action
-					.equals(BluetoothIntent.REMOTE_DEVICE_CLASS_UPDATED_ACTION);
+			return BluetoothIntent.REMOTE_DEVICE_CLASS_UPDATED_ACTION;
 		}
 
 		@Override
@@ -455,9 +445,9 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 	private static final class FoundConverter extends ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
+		public String getSourceAction() {
 
-			return action.equals(BluetoothIntent.REMOTE_DEVICE_FOUND_ACTION);
+			return BluetoothIntent.REMOTE_DEVICE_FOUND_ACTION;
 		}
 
 		@Override
@@ -485,9 +475,9 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 	private static final class NameChangedConverter extends ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
+		public String getSourceAction() {
 
-			return action.equals(BluetoothIntent.REMOTE_NAME_UPDATED_ACTION);
+			return BluetoothIntent.REMOTE_NAME_UPDATED_ACTION;
 		}
 
 		@Override
@@ -509,7 +499,8 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 		}
 	}
 
-	private static final Converter[] CONVERTERS;
+	/** legacy action to the converter handling it. */
+	private static final Map<String, Converter> CONVERTERS = new HashMap<String, Converter>();
 
 	static {
 
@@ -533,30 +524,32 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 		temp.add(new FoundConverter());
 		temp.add(new NameChangedConverter());
 
-		CONVERTERS = temp.toArray(new Converter[temp.size()]);
+		for (Converter converter : temp) {
+			CONVERTERS.put(converter.getSourceAction(), converter);
+		}
 	}
 
 	@Override
 	public void onReceive(Context context, Intent intent) {
 
-		Log.d(TAG, "receive:" + intent.toString());
-
-		Intent convertedIntent = new Intent();
-
-		for (int i = 0, size = CONVERTERS.length; i < size; ++i) {
+		if (DBG) {
+			Log.d(TAG, "receive:" + intent.toString());
+		}
 
-			Converter converter = CONVERTERS[i];
-			boolean converted = converter
-					.convertIntent(intent, convertedIntent);
+		String action = intent.getAction();
+		Converter converter = (action == null) ? null : CONVERTERS.get(action);
 
-			if (converted) {
+		if (converter == null) {
 
-				context.sendBroadcast(convertedIntent, BLUETOOTH_PERM);
+			return;
+		}
 
-				Log.d(TAG, "redirect:" + convertedIntent.toString());
+		Intent convertedIntent = new Intent();
+		converter.convertIntent(intent, convertedIntent);
+		context.sendBroadcast(convertedIntent, BLUETOOTH_PERM);
 
-				return;
-			}
+		if (DBG) {
+			Log.d(TAG, "redirect:" + convertedIntent.toString());
 		}
 	}
 }
@@ -107,6 +107,8 @@ public final class BluetoothServerSocket implements Closeable {
 
 	private volatile BluetoothSocket mServerSocket;
 
+	private ServiceRecordRegistry.Registration mRegistration;
+
 	/**
 	 * Construct a socket for incoming connections.
 	 * 
@@ -227,6 +229,20 @@ public final class BluetoothServerSocket implements Closeable {
 
 			// mSocket.closeNative();
 			mSocket.close();
+
+			if (mRegistration != null) {
+
+				ServiceRecordRegistry.getInstance().unregister(mRegistration);
+				mRegistration = null;
+			}
+		}
+	}
+
+	void setRegistration(ServiceRecordRegistry.Registration registration) {
+
+		synchronized (mSocket) {
+
+			mRegistration = registration;
 		}
 	}
 }
@@ -188,8 +188,31 @@ public final class BluetoothSocket implements Closeable {
 	// /* package */native void bindListenNative(int port) throws IOException;
 	/* package */void bindListenNative(int port) throws IOException {
 
-		mRfcommSocket.bind(null, port);
-		mRfcommSocket.listen(-1);
+		// RfcommSocket only throws when the socket could not be created, e.g.
+		// with Bluetooth off; a bind that fails on a created socket means the
+		// channel is taken.
+		if (!mRfcommSocket.bind(null, port)) {
+
+			throw new ChannelInUseException(port);
+		}
+
+		if (!mRfcommSocket.listen(-1)) {
+
+			throw new IOException("listen failed on channel " + port);
+		}
+	}
+
+	/**
+	 * Thrown when the channel to listen on is bound by another socket.
+	 */
+	/* package */static final class ChannelInUseException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		ChannelInUseException(int port) {
+
+			super("channel " + port + " in use");
+		}
 	}
 
 	/**
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+/**
+ * What a discovery has seen of one remote device so far. Instances are
+ * snapshots handed out by {@link DiscoveryAggregator} and do not change.
+ */
+public final class DiscoveredDevice {
+
+	/** RSSI value of a device whose reports carried no RSSI. */
+	public static final short NO_RSSI = Short.MIN_VALUE;
+
+	private final BluetoothDevice mDevice;
+
+	private final String mName;
+
+	private final short mRssi;
+
+	private final short mMinRssi;
+
+	private final short mMaxRssi;
+
+	private final float mAverageRssi;
+
+	private final int mReportCount;
+
+	private final long mFirstSeen;
+
+	private final long mLastSeen;
+
+	DiscoveredDevice(BluetoothDevice device, String name, short rssi,
+			short minRssi, short maxRssi, float averageRssi, int reportCount,
+			long firstSeen, long lastSeen) {
+
+		mDevice = device;
+		mName = name;
+		mRssi = rssi;
+		mMinRssi = minRssi;
+		mMaxRssi = maxRssi;
+		mAverageRssi = averageRssi;
+		mReportCount = reportCount;
+		mFirstSeen = firstSeen;
+		mLastSeen = lastSeen;
+	}
+
+	public BluetoothDevice getDevice() {
+
+		return mDevice;
+	}
+
+	/**
+	 * @return the friendly name reported during discovery, or null.
+	 */
+	public String getName() {
+
+		return mName;
+	}
+
+	/**
+	 * @return the RSSI of the last report, or {@link #NO_RSSI}.
+	 */
+	public short getRssi() {
+
+		return mRssi;
+	}
+
+	public short getMinRssi() {
+
+		return mMinRssi;
+	}
+
+	public short getMaxRssi() {
+
+		return mMaxRssi;
+	}
+
+	/**
+	 * @return the exponentially weighted moving average of the RSSI reports,
+	 *         or {@link #NO_RSSI}.
+	 */
+	public float getAverageRssi() {
+
+		return mAverageRssi;
+	}
+
+	/**
+	 * @return how many times the device was reported.
+	 */
+	public int getReportCount() {
+
+		return mReportCount;
+	}
+
+	/**
+	 * @return {@link android.os.SystemClock#elapsedRealtime()} of the first
+	 *         report.
+	 */
+	public long getFirstSeen() {
+
+		return mFirstSeen;
+	}
+
+	/**
+	 * @return {@link android.os.SystemClock#elapsedRealtime()} of the last
+	 *         report.
+	 */
+	public long getLastSeen() {
+
+		return mLastSeen;
+	}
+
+	@Override
+	public String toString() {
+
+		return mDevice + " " + mName + " rssi=" + mRssi + " [" + mMinRssi
+				+ ", " + mMaxRssi + "] avg=" + mAverageRssi + " n="
+				+ mReportCount;
+	}
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Coalesces the {@link BluetoothDevice#ACTION_FOUND} reports of a discovery.
+ * <p>
+ * Reports are merged per device address, keeping the RSSI range and a moving
+ * average. The devices that appeared or changed since the last delivery are
+ * handed to the {@link Callback} at most once per interval, on the thread of
+ * the given {@link Handler}, and once more when the discovery finishes.
+ */
+public class DiscoveryAggregator {
+
+	public interface Callback {
+
+		/**
+		 * @param added
+		 *            devices reported for the first time, in discovery order.
+		 * @param changed
+		 *            devices reported again since the last delivery.
+		 */
+		void onDevicesUpdated(List<DiscoveredDevice> added,
+				List<DiscoveredDevice> changed);
+	}
+
+	/** default delivery interval, in milliseconds. */
+	public static final long DEFAULT_INTERVAL = 500;
+
+	/** weight of a new report in the RSSI moving average. */
+	private static final float RSSI_WEIGHT = 0.25f;
+
+	private static final class Entry {
+
+		final BluetoothDevice mDevice;
+
+		String mName;
+
+		short mRssi = DiscoveredDevice.NO_RSSI;
+
+		short mMinRssi = DiscoveredDevice.NO_RSSI;
+
+		short mMaxRssi = DiscoveredDevice.NO_RSSI;
+
+		float mAverageRssi = DiscoveredDevice.NO_RSSI;
+
+		int mReportCount;
+
+		final long mFirstSeen;
+
+		long mLastSeen;
+
+		/** not delivered yet. */
+		boolean mAdded = true;
+
+		/** changed since the last delivery. */
+		boolean mDirty = true;
+
+		Entry(BluetoothDevice device, long now) {
+
+			mDevice = device;
+			mFirstSeen = now;
+		}
+
+		void report(String name, short rssi, long now) {
+
+			if (name != null) {
+				mName = name;
+			}
+
+			if (rssi != DiscoveredDevice.NO_RSSI) {
+
+				if (mRssi == DiscoveredDevice.NO_RSSI) {
+
+					mMinRssi = rssi;
+					mMaxRssi = rssi;
+					mAverageRssi = rssi;
+				} else {
+
+					mMinRssi = (short) Math.min(mMinRssi, rssi);
+					mMaxRssi = (short) Math.max(mMaxRssi, rssi);
+					mAverageRssi += RSSI_WEIGHT * (rssi - mAverageRssi);
+				}
+
+				mRssi = rssi;
+			}
+
+			++mReportCount;
+			mLastSeen = now;
+			mDirty = true;
+		}
+
+		DiscoveredDevice snapshot() {
+
+			return new DiscoveredDevice(mDevice, mName, mRssi, mMinRssi,
+					mMaxRssi, mAverageRssi, mReportCount, mFirstSeen,
+					mLastSeen);
+		}
+	}
+
+	private final Handler mHandler;
+
+	private final long mInterval;
+
+	private final Callback mCallback;
+
+	/** by address, in discovery order. */
+	private final Map<String, Entry> mEntries = new LinkedHashMap<String, Entry>();
+
+	private final List<Entry> mDirtyEntries = new ArrayList<Entry>();
+
+	private boolean mFlushScheduled;
+
+	private final Runnable mFlusher = new Runnable() {
+
+		public void run() {
+
+			flush();
+		}
+	};
+
+	private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+
+		@Override
+		public void onReceive(Context context, Intent intent) {
+
+			String action = intent.getAction();
+
+			if (BluetoothDevice.ACTION_FOUND.equals(action)) {
+
+				BluetoothDevice device = intent
+						.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+				String name = intent.getStringExtra(BluetoothDevice.EXTRA_NAME);
+				short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI,
+						DiscoveredDevice.NO_RSSI);
+				deviceFound(device, name, rssi);
+			} else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED
+					.equals(action)) {
+
+				mHandler.post(mFlusher);
+			}
+		}
+	};
+
+	public DiscoveryAggregator(Handler handler, Callback callback) {
+
+		this(handler, DEFAULT_INTERVAL, callback);
+	}
+
+	/**
+	 * @param interval
+	 *            minimum time between two deliveries, in milliseconds.
+	 */
+	public DiscoveryAggregator(Handler handler, long interval,
+			Callback callback) {
+
+		mHandler = handler;
+		mInterval = interval;
+		mCallback = callback;
+	}
+
+	/**
+	 * Starts receiving the discovery broadcasts.
+	 */
+	public void register(Context context) {
+
+		IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
+		filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+		context.registerReceiver(mReceiver, filter);
+	}
+
+	public void unregister(Context context) {
+
+		context.unregisterReceiver(mReceiver);
+		mHandler.removeCallbacks(mFlusher);
+
+		synchronized (this) {
+			mFlushScheduled = false;
+		}
+	}
+
+	/**
+	 * Merges one report.
+	 *
+	 * @param name
+	 *            the reported name, or null.
+	 * @param rssi
+	 *            the reported RSSI, or {@link DiscoveredDevice#NO_RSSI}.
+	 */
+	public void deviceFound(BluetoothDevice device, String name, short rssi) {
+
+		if (device == null) {
+
+			return;
+		}
+
+		long now = SystemClock.elapsedRealtime();
+
+		synchronized (this) {
+
+			Entry entry = mEntries.get(device.getAddress());
+
+			if (entry == null) {
+
+				entry = new Entry(device, now);
+				mEntries.put(device.getAddress(), entry);
+				mDirtyEntries.add(entry);
+			} else if (!entry.mDirty) {
+
+				mDirtyEntries.add(entry);
+			}
+
+			entry.report(name, rssi, now);
+
+			if (mFlushScheduled) {
+
+				return;
+			}
+
+			mFlushScheduled = true;
+		}
+
+		mHandler.postDelayed(mFlusher, mInterval);
+	}
+
+	/**
+	 * Delivers the pending changes now. Must be called on the thread of the
+	 * handler.
+	 */
+	public void flush() {
+
+		List<DiscoveredDevice> added;
+		List<DiscoveredDevice> changed;
+
+		synchronized (this) {
+
+			mFlushScheduled = false;
+
+			if (mDirtyEntries.isEmpty()) {
+
+				return;
+			}
+
+			added = new ArrayList<DiscoveredDevice>();
+			changed = new ArrayList<DiscoveredDevice>();
+
+			for (int i = 0, size = mDirtyEntries.size(); i < size; ++i) {
+
+				Entry entry = mDirtyEntries.get(i);
+
+				if (entry.mAdded) {
+
+					added.add(entry.snapshot());
+				} else {
+
+					changed.add(entry.snapshot());
+				}
+
+				entry.mAdded = false;
+				entry.mDirty = false;
+			}
+
+			mDirtyEntries.clear();
+		}
+
+		mHandler.removeCallbacks(mFlusher);
+		mCallback.onDevicesUpdated(Collections.unmodifiableList(added),
+				Collections.unmodifiableList(changed));
+	}
+
+	/**
+	 * @return every device seen so far, in discovery order.
+	 */
+	public synchronized List<DiscoveredDevice> getDevices() {
+
+		List<DiscoveredDevice> devices = new ArrayList<DiscoveredDevice>(
+				mEntries.size());
+
+		for (Entry entry : mEntries.values()) {
+			devices.add(entry.snapshot());
+		}
+
+		return devices;
+	}
+
+	/**
+	 * Forgets every device, e.g. before the next discovery.
+	 */
+	public synchronized void clear() {
+
+		mEntries.clear();
+		mDirtyEntries.clear();
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * One device discovery, started by
+ * {@link BluetoothAdapter#startDiscoverySession(Context, long, DiscoveryAggregator.Callback)}.
+ * <p>
+ * The session is also the future of its result: {@link #get()} blocks until
+ * the adapter broadcasts {@link BluetoothAdapter#ACTION_DISCOVERY_FINISHED},
+ * the timeout expires or the session is canceled, and then returns every
+ * device found.
+ */
+public final class DiscoverySession implements Future<List<DiscoveredDevice>> {
+
+	private static final String TAG = DiscoverySession.class.getSimpleName();
+
+	private final BluetoothAdapter mAdapter;
+
+	private final Context mContext;
+
+	private final Handler mHandler;
+
+	private final DiscoveryAggregator mAggregator;
+
+	private final CountDownLatch mDone = new CountDownLatch(1);
+
+	/** guarded by this. */
+	private boolean mFinished;
+
+	private volatile boolean mCancelled;
+
+	private volatile boolean mFailed;
+
+	private final BroadcastReceiver mFinishedReceiver = new BroadcastReceiver() {
+
+		@Override
+		public void onReceive(Context context, Intent intent) {
+
+			finish();
+		}
+	};
+
+	private final Runnable mTimeout = new Runnable() {
+
+		public void run() {
+
+			Log.d(TAG, "discovery timed out");
+			mAdapter.cancelDiscovery();
+			finish();
+		}
+	};
+
+	DiscoverySession(BluetoothAdapter adapter, Context context,
+			DiscoveryAggregator.Callback callback) {
+
+		mAdapter = adapter;
+		mContext = context;
+		mHandler = new Handler(context.getMainLooper());
+
+		if (callback == null) {
+
+			callback = new DiscoveryAggregator.Callback() {
+
+				public void onDevicesUpdated(List<DiscoveredDevice> added,
+						List<DiscoveredDevice> changed) {
+
+					// nop.
+				}
+			};
+		}
+
+		mAggregator = new DiscoveryAggregator(mHandler, callback);
+	}
+
+	void start(long timeout) {
+
+		mAggregator.register(mContext);
+		mContext.registerReceiver(mFinishedReceiver, new IntentFilter(
+				BluetoothAdapter.ACTION_DISCOVERY_FINISHED));
+
+		if (!mAdapter.startDiscovery()) {
+
+			mFailed = true;
+			mHandler.post(new Runnable() {
+
+				public void run() {
+
+					finish();
+				}
+			});
+
+			return;
+		}
+
+		if (timeout > 0) {
+
+			mHandler.postDelayed(mTimeout, timeout);
+		}
+	}
+
+	/**
+	 * Stops the discovery. The devices found so far stay available from
+	 * {@link #getDevices()}.
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+
+		if (isDone()) {
+
+			return false;
+		}
+
+		mCancelled = true;
+		mAdapter.cancelDiscovery();
+		mHandler.post(new Runnable() {
+
+			public void run() {
+
+				finish();
+			}
+		});
+
+		return true;
+	}
+
+	public boolean isCancelled() {
+
+		return mCancelled;
+	}
+
+	public boolean isDone() {
+
+		return mDone.getCount() == 0;
+	}
+
+	/**
+	 * @throws ExecutionException
+	 *             if the discovery could not be started.
+	 */
+	public List<DiscoveredDevice> get() throws InterruptedException,
+			ExecutionException {
+
+		mDone.await();
+
+		return getResult();
+	}
+
+	public List<DiscoveredDevice> get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+
+		if (!mDone.await(timeout, unit)) {
+
+			throw new TimeoutException();
+		}
+
+		return getResult();
+	}
+
+	/**
+	 * @return the devices found so far, in discovery order.
+	 */
+	public List<DiscoveredDevice> getDevices() {
+
+		return mAggregator.getDevices();
+	}
+
+	/**
+	 * Runs on the main thread, once.
+	 */
+	private void finish() {
+
+		synchronized (this) {
+
+			if (mFinished) {
+
+				return;
+			}
+
+			mFinished = true;
+		}
+
+		mHandler.removeCallbacks(mTimeout);
+		mAggregator.unregister(mContext);
+		mContext.unregisterReceiver(mFinishedReceiver);
+		mAggregator.flush();
+		mDone.countDown();
+	}
+
+	private List<DiscoveredDevice> getResult() throws ExecutionException {
+
+		if (mFailed) {
+
+			throw new ExecutionException(new IllegalStateException(
+					"discovery could not be started"));
+		}
+
+		return Collections.unmodifiableList(mAggregator.getDevices());
+	}
+}
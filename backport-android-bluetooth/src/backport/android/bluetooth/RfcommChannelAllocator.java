@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.util.UUID;
+
+/**
+ * Process-wide allocator of local RFCOMM server channels.
+ * <p>
+ * Free channels are kept in a bitmap (bit n-1 for channel n), so allocation
+ * and release are constant time. The most recently released channel is handed
+ * out first, which lets a server that is restarted in a loop bind the same
+ * channel again.
+ */
+final class RfcommChannelAllocator {
+
+	/** Channels used by the system profiles (HFAG, HSAG, OPUSH, PBAP). */
+	private static final int[] RESERVED_RFCOMM_CHANNELS = { 10, 11, 12, 19 };
+
+	private static final int MAX_RFCOMM_CHANNEL = 30;
+
+	private static final int ALL_CHANNELS = (1 << MAX_RFCOMM_CHANNEL) - 1;
+
+	private static final int[] USABLE_CHANNELS;
+
+	static {
+
+		int mask = ALL_CHANNELS;
+
+		for (int reserved : RESERVED_RFCOMM_CHANNELS) {
+			mask &= ~bit(reserved);
+		}
+
+		USABLE_CHANNELS = new int[Integer.bitCount(mask)];
+
+		for (int i = 0, channel = 1; channel <= MAX_RFCOMM_CHANNEL; ++channel) {
+
+			if ((mask & bit(channel)) != 0) {
+				USABLE_CHANNELS[i++] = channel;
+			}
+		}
+	}
+
+	private static final RfcommChannelAllocator INSTANCE = new RfcommChannelAllocator();
+
+	/** bit n-1 is set while channel n is free. */
+	private int mFree;
+
+	/** last released channel, or -1. */
+	private int mLastReleased = -1;
+
+	private RfcommChannelAllocator() {
+
+		for (int channel : USABLE_CHANNELS) {
+			mFree |= bit(channel);
+		}
+	}
+
+	static RfcommChannelAllocator getInstance() {
+
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns the channel a service with the given UUID listens on when
+	 * nothing else holds it.
+	 */
+	static int preferredChannel(UUID uuid) {
+
+		int hash = (uuid == null) ? 0 : uuid.hashCode();
+
+		return USABLE_CHANNELS[(hash & Integer.MAX_VALUE)
+				% USABLE_CHANNELS.length];
+	}
+
+	/**
+	 * Takes a free channel, trying {@code preferred} first, then the most
+	 * recently released one, then the lowest free one.
+	 *
+	 * @return the channel, or -1 if every channel is taken.
+	 */
+	synchronized int allocate(int preferred) {
+
+		int channel;
+
+		if (isFree(preferred)) {
+			channel = preferred;
+		} else if (isFree(mLastReleased)) {
+			channel = mLastReleased;
+		} else if (mFree != 0) {
+			channel = Integer.numberOfTrailingZeros(mFree) + 1;
+		} else {
+			return -1;
+		}
+
+		mFree &= ~bit(channel);
+
+		if (channel == mLastReleased) {
+			mLastReleased = -1;
+		}
+
+		return channel;
+	}
+
+	/**
+	 * Gives back a channel obtained from {@link #allocate(int)}.
+	 */
+	synchronized void release(int channel) {
+
+		if (!isUsable(channel) || isFree(channel)) {
+			return;
+		}
+
+		mFree |= bit(channel);
+		mLastReleased = channel;
+	}
+
+	/**
+	 * Gives back a channel that could not be bound because another process
+	 * holds it. Unlike {@link #release(int)} it is not handed out first next
+	 * time.
+	 */
+	synchronized void discard(int channel) {
+
+		if (isUsable(channel)) {
+			mFree |= bit(channel);
+		}
+	}
+
+	synchronized int getFreeCount() {
+
+		return Integer.bitCount(mFree);
+	}
+
+	private boolean isFree(int channel) {
+
+		return isUsable(channel) && (mFree & bit(channel)) != 0;
+	}
+
+	private static boolean isUsable(int channel) {
+
+		if (channel < 1 || channel > MAX_RFCOMM_CHANNEL) {
+			return false;
+		}
+
+		for (int reserved : RESERVED_RFCOMM_CHANNELS) {
+
+			if (reserved == channel) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static int bit(int channel) {
+
+		return 1 << (channel - 1);
+	}
+}
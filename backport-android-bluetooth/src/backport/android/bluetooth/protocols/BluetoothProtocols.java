@@ -34,37 +34,157 @@ public class BluetoothProtocols {
 	/** Personal Area Networking User 0x1115 16-bit */
 	public static final UUID PERSONAL_AREA_NETWORKING_PROTOCOL_UUID = fromUUID16(0x1115);
 
-	private static final String UUID_BASE = "0000-1000-8000-00805F9B34FB";
+	/** Dial-up Networking 0x1103 16-bit */
+	public static final UUID DIALUP_NETWORKING_PROTOCOL_UUID = fromUUID16(0x1103);
 
-	private static final int MASK_UUID16 = 0x0000FFFF;
+	/** Headset 0x1108 16-bit */
+	public static final UUID HEADSET_PROTOCOL_UUID = fromUUID16(0x1108);
+
+	/** Audio Source 0x110A 16-bit */
+	public static final UUID AUDIO_SOURCE_PROTOCOL_UUID = fromUUID16(0x110A);
+
+	/** Audio Sink 0x110B 16-bit */
+	public static final UUID AUDIO_SINK_PROTOCOL_UUID = fromUUID16(0x110B);
+
+	/** A/V Remote Control Target 0x110C 16-bit */
+	public static final UUID AV_REMOTE_CONTROL_TARGET_PROTOCOL_UUID = fromUUID16(0x110C);
+
+	/** Advanced Audio Distribution 0x110D 16-bit */
+	public static final UUID ADVANCED_AUDIO_PROTOCOL_UUID = fromUUID16(0x110D);
+
+	/** A/V Remote Control 0x110E 16-bit */
+	public static final UUID AV_REMOTE_CONTROL_PROTOCOL_UUID = fromUUID16(0x110E);
+
+	/** Headset Audio Gateway 0x1112 16-bit */
+	public static final UUID HEADSET_AUDIO_GATEWAY_PROTOCOL_UUID = fromUUID16(0x1112);
+
+	/** Network Access Point 0x1116 16-bit */
+	public static final UUID NETWORK_ACCESS_POINT_PROTOCOL_UUID = fromUUID16(0x1116);
+
+	/** Handsfree 0x111E 16-bit */
+	public static final UUID HANDSFREE_PROTOCOL_UUID = fromUUID16(0x111E);
+
+	/** Handsfree Audio Gateway 0x111F 16-bit */
+	public static final UUID HANDSFREE_AUDIO_GATEWAY_PROTOCOL_UUID = fromUUID16(0x111F);
+
+	/** Phonebook Access Server 0x112F 16-bit */
+	public static final UUID PHONEBOOK_ACCESS_SERVER_PROTOCOL_UUID = fromUUID16(0x112F);
+
+	/** Bluetooth base UUID 00000000-0000-1000-8000-00805F9B34FB */
+	private static final long BASE_UUID_MOST_SIG_BITS = 0x0000000000001000L;
+
+	private static final long BASE_UUID_LEAST_SIG_BITS = 0x800000805F9B34FBL;
+
+	private static final long MASK_UUID32 = 0x00000000FFFFFFFFL;
 
-	private static final int MASK_UUID128 = 0x0000FFFF;
+	private static final int MASK_UUID16 = 0x0000FFFF;
 
 	public static final UUID fromUUID16(int uuid16) {
 
-		String s = uuidStringFromUuid16(uuid16);
-		UUID uuid = UUID.fromString(s);
+		uuid16 &= MASK_UUID16;
+		UUID uuid = wellKnownUUID(uuid16);
+
+		// null also while the constants above are being initialized.
+		if (uuid == null) {
+			uuid = fromUUID32(uuid16);
+		}
 
 		return uuid;
 	}
 
+	public static final UUID fromUUID32(long uuid32) {
+
+		return new UUID(((uuid32 & MASK_UUID32) << 32)
+				| BASE_UUID_MOST_SIG_BITS, BASE_UUID_LEAST_SIG_BITS);
+	}
+
 	public static final int toUUID16(UUID uuid128) {
 
 		long bits = uuid128.getMostSignificantBits();
 
-		return (int) ((bits >> 32) & MASK_UUID128);
+		return (int) ((bits >> 32) & MASK_UUID16);
+	}
+
+	public static final long toUUID32(UUID uuid128) {
+
+		long bits = uuid128.getMostSignificantBits();
+
+		return (bits >>> 32) & MASK_UUID32;
 	}
 
-	private static final String uuidStringFromUuid16(int uuid16) {
+	/**
+	 * @return true if {@code uuid} is derived from the Bluetooth base UUID,
+	 *         i.e. it has a 16 or 32-bit short form.
+	 */
+	public static final boolean isShortUUID(UUID uuid) {
 
-		StringBuilder b = new StringBuilder();
-		String hex = Integer.toHexString(uuid16 & MASK_UUID16);
-		b.append("00000000".substring(hex.length()));
-		b.append(hex);
-		b.append('-');
-		b.append(UUID_BASE);
+		return uuid.getLeastSignificantBits() == BASE_UUID_LEAST_SIG_BITS
+				&& (uuid.getMostSignificantBits() & MASK_UUID32) == BASE_UUID_MOST_SIG_BITS;
+	}
+
+	/**
+	 * @return true if {@code uuid} has a 16-bit short form.
+	 */
+	public static final boolean isUUID16(UUID uuid) {
+
+		return isShortUUID(uuid)
+				&& (uuid.getMostSignificantBits() >>> 48) == 0;
+	}
 
-		return b.toString();
+	/**
+	 * Returns the shared instance of a well-known protocol or profile UUID, so
+	 * that looking one up does not allocate.
+	 */
+	private static final UUID wellKnownUUID(int uuid16) {
+
+		switch (uuid16) {
+		case 0x0001:
+			return SDP_PROTOCOL_UUID;
+		case 0x0003:
+			return RFCOMM_PROTOCOL_UUID;
+		case 0x0008:
+			return OBEX_PROTOCOL_UUID;
+		case 0x000C:
+			return HTTP_PROTOCOL_UUID;
+		case 0x000F:
+			return BNEP_PROTOCOL_UUID;
+		case 0x0100:
+			return L2CAP_PROTOCOL_UUID;
+		case 0x1101:
+			return SERIAL_PORT_PROTOCOL_UUID;
+		case 0x1103:
+			return DIALUP_NETWORKING_PROTOCOL_UUID;
+		case 0x1105:
+			return OBEX_OBJECT_PUSH_PROTOCOL_UUID;
+		case 0x1106:
+			return OBEX_FILE_TRANSFER_PROTOCOL_UUID;
+		case 0x1108:
+			return HEADSET_PROTOCOL_UUID;
+		case 0x110A:
+			return AUDIO_SOURCE_PROTOCOL_UUID;
+		case 0x110B:
+			return AUDIO_SINK_PROTOCOL_UUID;
+		case 0x110C:
+			return AV_REMOTE_CONTROL_TARGET_PROTOCOL_UUID;
+		case 0x110D:
+			return ADVANCED_AUDIO_PROTOCOL_UUID;
+		case 0x110E:
+			return AV_REMOTE_CONTROL_PROTOCOL_UUID;
+		case 0x1112:
+			return HEADSET_AUDIO_GATEWAY_PROTOCOL_UUID;
+		case 0x1115:
+			return PERSONAL_AREA_NETWORKING_PROTOCOL_UUID;
+		case 0x1116:
+			return NETWORK_ACCESS_POINT_PROTOCOL_UUID;
+		case 0x111E:
+			return HANDSFREE_PROTOCOL_UUID;
+		case 0x111F:
+			return HANDSFREE_AUDIO_GATEWAY_PROTOCOL_UUID;
+		case 0x112F:
+			return PHONEBOOK_ACCESS_SERVER_PROTOCOL_UUID;
+		default:
+			return null;
+		}
 	}
 
 }
@@ -2,13 +2,11 @@ package backport.android.bluetooth.samples;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import android.app.ListActivity;
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.DialogInterface.OnDismissListener;
 import android.os.Bundle;
 import android.os.Handler;
@@ -18,6 +16,9 @@ import android.widget.ArrayAdapter;
 import android.widget.ListView;
 import backport.android.bluetooth.BluetoothAdapter;
 import backport.android.bluetooth.BluetoothDevice;
+import backport.android.bluetooth.DiscoveredDevice;
+import backport.android.bluetooth.DiscoveryAggregator;
+import backport.android.bluetooth.DiscoverySession;
 import backport.android.bluetooth.R;
 
 public class DiscoveryActivity extends ListActivity {
@@ -28,54 +29,27 @@ public class DiscoveryActivity extends ListActivity {
 
 	private List<BluetoothDevice> _devices = new ArrayList<BluetoothDevice>();
 
-	private volatile boolean _discoveryFinished;
+	private ArrayAdapter<String> _adapter;
+
+	private DiscoverySession _session;
 
 	private Runnable _discoveryWorkder = new Runnable() {
 
 		public void run() {
 
-			_bluetooth.startDiscovery();
-
-			for (;;) {
+			try {
 
-				if (_discoveryFinished) {
+				_session.get();
+			} catch (InterruptedException e) {
 
-					break;
-				}
+				// nop.
+			} catch (ExecutionException e) {
 
-				try {
-					Thread.sleep(100);
-				} catch (InterruptedException e) {
-
-					// nop.
-				}
+				// nop.
 			}
 		}
 	};
 
-	private BroadcastReceiver _foundReceiver = new BroadcastReceiver() {
-
-		@Override
-		public void onReceive(Context context, Intent intent) {
-
-			BluetoothDevice device = intent
-					.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-			_devices.add(device);
-			showDevices();
-		}
-	};
-
-	private BroadcastReceiver _discoveryReceiver = new BroadcastReceiver() {
-
-		@Override
-		public void onReceive(Context context, Intent intent) {
-
-			unregisterReceiver(_foundReceiver);
-			unregisterReceiver(this);
-			_discoveryFinished = true;
-		}
-	};
-
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 
@@ -91,53 +65,74 @@ public class DiscoveryActivity extends ListActivity {
 			return;
 		}
 
-		IntentFilter discoveryFilter = new IntentFilter(
-				BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
-		registerReceiver(_discoveryReceiver, discoveryFilter);
-		IntentFilter foundFilter = new IntentFilter(
-				BluetoothDevice.ACTION_FOUND);
-		registerReceiver(_foundReceiver, foundFilter);
+		_adapter = new ArrayAdapter<String>(this,
+				android.R.layout.simple_list_item_1, new ArrayList<String>());
+		setListAdapter(_adapter);
+
+		_session = _bluetooth.startDiscoverySession(this, 0,
+				new DiscoveryAggregator.Callback() {
+
+					public void onDevicesUpdated(
+							List<DiscoveredDevice> added,
+							List<DiscoveredDevice> changed) {
+
+						showDevices(added, changed);
+					}
+				});
 
 		SamplesUtils.indeterminate(DiscoveryActivity.this, _handler,
 				"Scanning...", _discoveryWorkder, new OnDismissListener() {
 
 					public void onDismiss(DialogInterface dialog) {
 
-						for (; _bluetooth.isDiscovering();) {
-
-							_bluetooth.cancelDiscovery();
-						}
-
-						_discoveryFinished = true;
+						_session.cancel(true);
 					}
 				}, true);
 	}
 
-	protected void showDevices() {
+	/**
+	 * Called on the UI thread with the devices found since the last call.
+	 */
+	protected void showDevices(List<DiscoveredDevice> added,
+			List<DiscoveredDevice> changed) {
 
-		List<String> list = new ArrayList<String>();
+		for (int i = 0, size = added.size(); i < size; ++i) {
 
-		for (int i = 0, size = _devices.size(); i < size; ++i) {
-
-			StringBuilder b = new StringBuilder();
-			BluetoothDevice d = _devices.get(i);
-			b.append(d.getAddress());
-			b.append('\n');
-			b.append(d.getName());
-			String s = b.toString();
-			list.add(s);
+			DiscoveredDevice d = added.get(i);
+			_devices.add(d.getDevice());
+			_adapter.add(toLabel(d));
 		}
 
-		final ArrayAdapter<String> adapter = new ArrayAdapter<String>(this,
-				android.R.layout.simple_list_item_1, list);
+		for (int i = 0, size = changed.size(); i < size; ++i) {
 
-		_handler.post(new Runnable() {
+			DiscoveredDevice d = changed.get(i);
+			int position = _devices.indexOf(d.getDevice());
 
-			public void run() {
+			if (position < 0) {
 
-				setListAdapter(adapter);
+				continue;
 			}
-		});
+
+			_adapter.remove(_adapter.getItem(position));
+			_adapter.insert(toLabel(d), position);
+		}
+	}
+
+	private static String toLabel(DiscoveredDevice d) {
+
+		StringBuilder b = new StringBuilder();
+		b.append(d.getDevice().getAddress());
+		b.append('\n');
+		b.append(d.getName());
+
+		if (d.getRssi() != DiscoveredDevice.NO_RSSI) {
+
+			b.append(" (");
+			b.append(Math.round(d.getAverageRssi()));
+			b.append(" dBm)");
+		}
+
+		return b.toString();
 	}
 
 	@Override
@@ -69,6 +69,8 @@ public abstract class AtCommandHandler {
      * element will be an Integer (if it can be parsed with parseInt()) or
      * String.<p>
      * Missing arguments ",," are set to empty Strings.<p>
+     * The array is reused by the parser for later commands, so it must not
+     * be kept after this method returns.<p>
      * @param args Array of String and/or Integer's. There will always be at
      *             least one element in this array.
      * @return     The result of this command.
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts, error counts and latency histograms of the AT commands handled by
+ * an {@link AtParser}, one set per registered command name.<p>
+ *
+ * Every command has its own atomic counters, so recording takes no lock and
+ * commands handled on different threads do not contend. snapshot() copies
+ * the counters without stopping the recording; a snapshot taken while
+ * commands are handled may be off by the commands in progress.<p>
+ * @hide
+ */
+public final class AtCommandMetrics {
+
+    /**
+     * Upper bounds of the latency buckets, in microseconds. The last bucket
+     * holds everything slower than the last bound.
+     */
+    private static final long[] BUCKET_LIMITS_US = {
+        250, 500, 1000, 2000, 4000, 8000, 16000, 32000, 64000, 128000,
+        256000, 512000
+    };
+
+    /**
+     * The counters of one command name.
+     */
+    static final class Counter {
+        final String mName;
+        final AtomicLong mCount = new AtomicLong();
+        final AtomicLong mErrors = new AtomicLong();
+        final AtomicLong mTotalNanos = new AtomicLong();
+        final AtomicLong mMaxNanos = new AtomicLong();
+        final AtomicLongArray mBuckets =
+                new AtomicLongArray(BUCKET_LIMITS_US.length + 1);
+
+        Counter(String name) {
+            mName = name;
+        }
+
+        void record(long nanos, boolean error) {
+            mCount.incrementAndGet();
+            if (error) {
+                mErrors.incrementAndGet();
+            }
+            mTotalNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = mMaxNanos.get())) {
+                if (mMaxNanos.compareAndSet(max, nanos)) {
+                    break;
+                }
+            }
+            long us = nanos / 1000;
+            int bucket = 0;
+            while (bucket < BUCKET_LIMITS_US.length && us > BUCKET_LIMITS_US[bucket]) {
+                bucket++;
+            }
+            mBuckets.incrementAndGet(bucket);
+        }
+
+        void reset() {
+            mCount.set(0);
+            mErrors.set(0);
+            mTotalNanos.set(0);
+            mMaxNanos.set(0);
+            for (int i = 0; i < mBuckets.length(); i++) {
+                mBuckets.set(i, 0);
+            }
+        }
+    }
+
+    /**
+     * The counters of one command at the time of snapshot().
+     */
+    public static final class Snapshot {
+        private final String mName;
+        private final long mCount;
+        private final long mErrors;
+        private final long mTotalNanos;
+        private final long mMaxNanos;
+        private final long[] mBuckets;
+
+        Snapshot(Counter counter) {
+            mName = counter.mName;
+            mCount = counter.mCount.get();
+            mErrors = counter.mErrors.get();
+            mTotalNanos = counter.mTotalNanos.get();
+            mMaxNanos = counter.mMaxNanos.get();
+            mBuckets = new long[counter.mBuckets.length()];
+            for (int i = 0; i < mBuckets.length; i++) {
+                mBuckets[i] = counter.mBuckets.get(i);
+            }
+        }
+
+        /** The command name, e.g. "+CIND", or "D" for a basic command. */
+        public String getName() {
+            return mName;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getErrorCount() {
+            return mErrors;
+        }
+
+        /** Errors per command, 0 if the command was never handled. */
+        public double getErrorRate() {
+            return (mCount == 0) ? 0 : (double) mErrors / mCount;
+        }
+
+        public long getTotalTimeMicros() {
+            return mTotalNanos / 1000;
+        }
+
+        public long getMeanTimeMicros() {
+            return (mCount == 0) ? 0 : mTotalNanos / mCount / 1000;
+        }
+
+        public long getMaxTimeMicros() {
+            return mMaxNanos / 1000;
+        }
+
+        /**
+         * The upper bounds of the histogram buckets, in microseconds. The
+         * last bucket of getBucketCounts() has no bound.
+         */
+        public static long[] getBucketLimitsMicros() {
+            return BUCKET_LIMITS_US.clone();
+        }
+
+        public long[] getBucketCounts() {
+            return mBuckets.clone();
+        }
+
+        /**
+         * Estimate a latency percentile from the histogram: the upper bound
+         * of the bucket it falls in, or the maximum for the last bucket.
+         * @param percentile Between 0 and 100.
+         */
+        public long getPercentileMicros(double percentile) {
+            long total = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                total += mBuckets[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_LIMITS_US.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return Math.min(BUCKET_LIMITS_US[i], getMaxTimeMicros());
+                }
+            }
+            return getMaxTimeMicros();
+        }
+
+        public String toString() {
+            return mName + " count=" + mCount + " errors=" + mErrors
+                    + " mean=" + getMeanTimeMicros() + "us p90="
+                    + getPercentileMicros(90) + "us max="
+                    + getMaxTimeMicros() + "us";
+        }
+    }
+
+    private final List<Counter> mCounters = new CopyOnWriteArrayList<Counter>();
+    private final AtomicLong mUnknown = new AtomicLong();
+
+    AtCommandMetrics() {
+    }
+
+    Counter newCounter(String name) {
+        Counter counter = new Counter(name);
+        mCounters.add(counter);
+        return counter;
+    }
+
+    void recordUnknown() {
+        mUnknown.incrementAndGet();
+    }
+
+    /**
+     * The number of commands that had no registered handler.
+     */
+    public long getUnknownCount() {
+        return mUnknown.get();
+    }
+
+    /**
+     * Copy the counters of every command handled at least once, in the
+     * order the commands were registered.
+     */
+    public List<Snapshot> snapshot() {
+        List<Snapshot> snapshots = new ArrayList<Snapshot>();
+        for (Counter counter : mCounters) {
+            if (counter.mCount.get() > 0) {
+                snapshots.add(new Snapshot(counter));
+            }
+        }
+        return snapshots;
+    }
+
+    public void reset() {
+        for (Counter counter : mCounters) {
+            counter.reset();
+        }
+        mUnknown.set(0);
+    }
+}
@@ -19,7 +19,7 @@ package android.bluetooth;
 import android.bluetooth.AtCommandHandler;
 import android.bluetooth.AtCommandResult;
 
-import java.util.*;
+import java.util.Arrays;
 
 /**
  * An AT (Hayes command) Parser based on (a subset of) the ITU-T V.250 standard.
@@ -78,6 +78,15 @@ import java.util.*;
  * the basic command character, and handlers for Extended commands should be
  * registered by String.<p>
  *
+ * Command lines are parsed in place: process() cleans the line into a buffer
+ * owned by the parser, Extended command names are matched against a trie of
+ * the registered names and integer arguments are parsed without going through
+ * exceptions. The argument array passed to handleSetCommand() is reused for
+ * the next command with the same number of arguments.<p>
+ *
+ * The count, errors and latency of every registered command are recorded
+ * in the {@link AtCommandMetrics} returned by getMetrics().<p>
+ *
  * Refer to:<ul>
  * <li>ITU-T Recommendation V.250
  * <li>ETSI TS 127.007  (AT Comannd set for User Equipment, 3GPP TS 27.007)
@@ -94,19 +103,73 @@ public class AtParser {
     private static final int TYPE_SET = 2;      // AT+FOO=
     private static final int TYPE_TEST = 3;     // AT+FOO=?
 
-    private HashMap<String, AtCommandHandler> mExtHandlers;
-    private HashMap<Character, AtCommandHandler> mBasicHandlers;
+    // Characters V.250 allows in extended command names, and their index in
+    // the children of a trie node
+    private static final String NAME_CHARS =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789!%-./:_+";
+    private static final byte[] NAME_INDEX = new byte[128];
+
+    static {
+        Arrays.fill(NAME_INDEX, (byte) -1);
+        for (int i = 0; i < NAME_CHARS.length(); i++) {
+            NAME_INDEX[NAME_CHARS.charAt(i)] = (byte) i;
+        }
+    }
+
+    private static final long NO_INT = Long.MIN_VALUE;
+
+    /**
+     * A node of the trie of Extended command names.
+     */
+    private static final class Node {
+        Node[] children;
+        AtCommandHandler handler;
+        AtCommandMetrics.Counter counter;
+
+        Node child(int index, boolean create) {
+            if (children == null) {
+                if (!create) {
+                    return null;
+                }
+                children = new Node[NAME_CHARS.length()];
+            }
+            Node child = children[index];
+            if (child == null && create) {
+                child = new Node();
+                children[index] = child;
+            }
+            return child;
+        }
+    }
+
+    private final Node mExtHandlers;
+    private final AtCommandHandler[] mBasicHandlers;
+    private final AtCommandMetrics.Counter[] mBasicCounters;
+    private final AtCommandMetrics mMetrics;
+
+    // the cleaned command line being processed
+    private char[] mLine;
+    private int mLineLength;
 
-    private String mLastInput;  // for "A/" (repeat last command) support
+    // for "A/" (repeat last command) support
+    private char[] mLastInput;
+    private int mLastInputLength;
+
+    // argument arrays, by number of arguments
+    private Object[][] mArgs;
 
     /**
      * Create a new AtParser.<p>
      * No handlers are registered.
      */
     public AtParser() {
-        mBasicHandlers = new HashMap<Character, AtCommandHandler>();
-        mExtHandlers = new HashMap<String, AtCommandHandler>();
-        mLastInput = "";
+        mBasicHandlers = new AtCommandHandler['Z' - 'A' + 1];
+        mBasicCounters = new AtCommandMetrics.Counter[mBasicHandlers.length];
+        mMetrics = new AtCommandMetrics();
+        mExtHandlers = new Node();
+        mLine = new char[64];
+        mLastInput = new char[64];
+        mArgs = new Object[8][];
     }
 
     /**
@@ -117,7 +180,14 @@ public class AtParser {
      * @param  handler Handler to register
      */
     public void register(Character command, AtCommandHandler handler) {
-        mBasicHandlers.put(command, handler);
+        char c = command.charValue();
+        if (isAtoZ(c)) {
+            // other characters never start a basic command
+            mBasicHandlers[c - 'A'] = handler;
+            if (mBasicCounters[c - 'A'] == null) {
+                mBasicCounters[c - 'A'] = mMetrics.newCounter(String.valueOf(c));
+            }
+        }
     }
 
     /**
@@ -133,111 +203,171 @@ public class AtParser {
      * @param  handler Handler to register
      */
     public void register(String command, AtCommandHandler handler) {
-        mExtHandlers.put(command, handler);
+        Node node = mExtHandlers;
+        for (int i = 0; i < command.length(); i++) {
+            int index = nameIndex(command.charAt(i));
+            if (index < 0) {
+                // the name can never be matched, as with any name that has
+                // characters V.250 does not allow
+                return;
+            }
+            node = node.child(index, true);
+        }
+        node.handler = handler;
+        if (node.counter == null) {
+            node.counter = mMetrics.newCounter(command);
+        }
     }
 
+    /**
+     * The metrics of the commands handled by this parser.
+     */
+    public AtCommandMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Add the result of a handler to result, recording its latency.
+     */
+    static private void addResult(AtCommandResult result,
+            AtCommandResult handlerResult, AtCommandMetrics.Counter counter,
+            long startNanos) {
+        counter.record(System.nanoTime() - startNanos, handlerResult == null
+                || handlerResult.getResultCode() == AtCommandResult.ERROR);
+        result.addResult(handlerResult);
+    }
+
+    static private boolean isAtoZ(char c) {
+        return (c >= 'A' && c <= 'Z');
+    }
+
+    static private int nameIndex(char c) {
+        return (c < NAME_INDEX.length) ? NAME_INDEX[c] : -1;
+    }
 
     /**
-     * Strip input of whitespace and force Uppercase - except sections inside
-     * quotes. Also fixes unmatched quotes (by appending a quote). Double
-     * quotes " are the only quotes allowed by V.250
+     * Copy input to mLine, stripped of whitespace and forced to Uppercase -
+     * except sections inside quotes. Also fixes unmatched quotes (by
+     * appending a quote). Double quotes " are the only quotes allowed by
+     * V.250
      */
-    static private String clean(String input) {
-        StringBuilder out = new StringBuilder(input.length());
+    private void clean(CharSequence input) {
+        int length = input.length();
+        if (mLine.length < length + 1) {
+            mLine = new char[length + 1];
+        }
+        char[] out = mLine;
+        int n = 0;
+        boolean quoted = false;
 
-        for (int i = 0; i < input.length(); i++) {
+        for (int i = 0; i < length; i++) {
             char c = input.charAt(i);
             if (c == '"') {
-                int j = input.indexOf('"', i + 1 );  // search for closing "
-                if (j == -1) {  // unmatched ", insert one.
-                    out.append(input.substring(i, input.length()));
-                    out.append('"');
-                    break;
-                }
-                out.append(input.substring(i, j + 1));
-                i = j;
+                quoted = !quoted;
+                out[n++] = c;
+            } else if (quoted) {
+                out[n++] = c;
             } else if (c != ' ') {
-                out.append(Character.toUpperCase(c));
+                out[n++] = Character.toUpperCase(c);
             }
         }
+        if (quoted) {  // unmatched ", insert one.
+            out[n++] = '"';
+        }
 
-        return out.toString();
-    }
-
-    static private boolean isAtoZ(char c) {
-        return (c >= 'A' && c <= 'Z');
+        mLineLength = n;
     }
 
     /**
-     * Find a character ch, ignoring quoted sections.
-     * Return input.length() if not found.
+     * Find a character ch in mLine, ignoring quoted sections.
+     * Return end if not found.
      */
-    static private int findChar(char ch, String input, int fromIndex) {
-        for (int i = fromIndex; i < input.length(); i++) {
-            char c = input.charAt(i);
+    private int findChar(char ch, int fromIndex, int end) {
+        char[] line = mLine;
+        for (int i = fromIndex; i < end; i++) {
+            char c = line[i];
             if (c == '"') {
-                i = input.indexOf('"', i + 1);
-                if (i == -1) {
-                    return input.length();
+                // quotes are always matched after clean()
+                while (++i < end && line[i] != '"') {
+                }
+                if (i >= end) {
+                    return end;
                 }
             } else if (c == ch) {
                 return i;
             }
         }
-        return input.length();
+        return end;
     }
 
     /**
-     * Break an argument string into individual arguments (comma deliminated).
-     * Integer arguments are turned into Integer objects. Otherwise a String
-     * object is used.
+     * Parse a decimal int the way Integer.parseInt() does.
+     * Return NO_INT if mLine[start, end) is not one.
      */
-    static private Object[] generateArgs(String input) {
-        int i = 0;
-        int j;
-        ArrayList<Object> out = new ArrayList<Object>();
-        while (i <= input.length()) {
-            j = findChar(',', input, i);
-
-            String arg = input.substring(i, j);
-            try {
-                out.add(new Integer(arg));
-            } catch (NumberFormatException e) {
-                out.add(arg);
+    private long parseInt(int start, int end) {
+        char[] line = mLine;
+        boolean negative = (start < end && line[start] == '-');
+        int i = negative ? start + 1 : start;
+        if (i >= end) {
+            return NO_INT;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return NO_INT;
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                return NO_INT;  // overflow
             }
-
-            i = j + 1; // move past comma
         }
-        return out.toArray();
+        if (negative) {
+            value = -value;
+        }
+        if (value > Integer.MAX_VALUE) {
+            return NO_INT;
+        }
+        return value;
     }
 
     /**
-     * Return the index of the end of character after the last characeter in
-     * the extended command name. Uses the V.250 spec for allowed command
-     * names.
+     * Break an argument section mLine[start, end) into individual arguments
+     * (comma deliminated). Integer arguments are turned into Integer objects.
+     * Otherwise a String object is used.
      */
-    static private int findEndExtendedName(String input, int index) {
-        for (int i = index; i < input.length(); i++) {
-            char c = input.charAt(i);
+    private Object[] generateArgs(int start, int end) {
+        int count = 1;
+        for (int i = findChar(',', start, end); i < end;
+                i = findChar(',', i + 1, end)) {
+            count++;
+        }
 
-            // V.250 defines the following chars as legal extended command
-            // names
-            if (isAtoZ(c)) continue;
-            if (c >= '0' && c <= '9') continue;
-            switch (c) {
-            case '!':
-            case '%':
-            case '-':
-            case '.':
-            case '/':
-            case ':':
-            case '_':
-                continue;
-            default:
-                return i;
+        if (count >= mArgs.length) {
+            Object[][] args = new Object[count + 1][];
+            System.arraycopy(mArgs, 0, args, 0, mArgs.length);
+            mArgs = args;
+        }
+        Object[] out = mArgs[count];
+        if (out == null) {
+            out = new Object[count];
+            mArgs[count] = out;
+        }
+
+        int i = start;
+        for (int k = 0; k < count; k++) {
+            int j = findChar(',', i, end);
+
+            long value = parseInt(i, j);
+            if (value != NO_INT) {
+                out[k] = Integer.valueOf((int) value);
+            } else {
+                out[k] = new String(mLine, i, j - i);
             }
+
+            i = j + 1; // move past comma
         }
-        return input.length();
+        return out;
     }
 
     /**
@@ -249,23 +379,45 @@ public class AtParser {
      *                  converted to a String[] response with toStrings().
      */
     public AtCommandResult process(String raw_input) {
-        String input = clean(raw_input);
+        return process((CharSequence) raw_input);
+    }
+
+    /**
+     * Processes an incoming AT command line held in any CharSequence, such
+     * as a reused StringBuilder or a CharBuffer over the received bytes.
+     * @see #process(String)
+     */
+    public AtCommandResult process(CharSequence raw_input) {
+        clean(raw_input);
+
+        char[] line = mLine;
+        int length = mLineLength;
 
         // Handle "A/" (repeat previous line)
-        if (input.regionMatches(0, "A/", 0, 2)) {
-            input = new String(mLastInput);
+        if (length >= 2 && line[0] == 'A' && line[1] == '/') {
+            if (mLine.length < mLastInputLength) {
+                mLine = new char[mLastInputLength];
+                line = mLine;
+            }
+            System.arraycopy(mLastInput, 0, line, 0, mLastInputLength);
+            length = mLastInputLength;
+            mLineLength = length;
         } else {
-            mLastInput = new String(input);
+            if (mLastInput.length < length) {
+                mLastInput = new char[line.length];
+            }
+            System.arraycopy(line, 0, mLastInput, 0, length);
+            mLastInputLength = length;
         }
 
         // Handle empty line - no response necessary
-        if (input.equals("")) {
+        if (length == 0) {
             // Return []
             return new AtCommandResult(AtCommandResult.UNSOLICITED);
         }
 
         // Anything else deserves an error
-        if (!input.regionMatches(0, "AT", 0, 2)) {
+        if (length < 2 || line[0] != 'A' || line[1] != 'T') {
             // Return ["ERROR"]
             return new AtCommandResult(AtCommandResult.ERROR);
         }
@@ -274,20 +426,24 @@ public class AtParser {
         int index = 2;
         AtCommandResult result =
                 new AtCommandResult(AtCommandResult.UNSOLICITED);
-        while (index < input.length()) {
-            char c = input.charAt(index);
+        while (index < length) {
+            char c = line[index];
 
             if (isAtoZ(c)) {
                 // Option 1: Basic Command
                 // Pass the rest of the line as is to the handler. Do not
                 // look for any more commands on this line.
-                String args = input.substring(index + 1);
-                if (mBasicHandlers.containsKey((Character)c)) {
-                    result.addResult(mBasicHandlers.get(
-                            (Character)c).handleBasicCommand(args));
+                AtCommandHandler handler = mBasicHandlers[c - 'A'];
+                if (handler != null) {
+                    String args = new String(line, index + 1,
+                            length - index - 1);
+                    long start = System.nanoTime();
+                    addResult(result, handler.handleBasicCommand(args),
+                            mBasicCounters[c - 'A'], start);
                     return result;
                 } else {
                     // no handler
+                    mMetrics.recordUnknown();
                     result.addResult(
                             new AtCommandResult(AtCommandResult.ERROR));
                     return result;
@@ -297,21 +453,30 @@ public class AtParser {
 
             if (c == '+') {
                 // Option 2: Extended Command
-                // Search for first non-name character. Shortcircuit if we dont
-                // handle this command name.
-                int i = findEndExtendedName(input, index + 1);
-                String commandName = input.substring(index, i);
-                if (!mExtHandlers.containsKey(commandName)) {
+                // Walk the trie along the command name, up to the first
+                // non-name character. Shortcircuit if we dont handle this
+                // command name.
+                Node node = mExtHandlers;
+                int i = index;
+                for (; i < length && node != null; i++) {
+                    int nameIndex = nameIndex(line[i]);
+                    if (nameIndex < 0 || (i > index && line[i] == '+')) {
+                        break;
+                    }
+                    node = node.child(nameIndex, false);
+                }
+                AtCommandHandler handler = (node != null) ? node.handler : null;
+                if (handler == null) {
                     // no handler
+                    mMetrics.recordUnknown();
                     result.addResult(
                             new AtCommandResult(AtCommandResult.ERROR));
                     return result;
                 }
-                AtCommandHandler handler = mExtHandlers.get(commandName);
 
                 // Search for end of this command - this is usually the end of
                 // line
-                int endIndex = findChar(';', input, index);
+                int endIndex = findChar(';', index, length);
 
                 // Determine what type of command this is.
                 // Default to TYPE_ACTION if we can't find anything else
@@ -320,11 +485,11 @@ public class AtParser {
 
                 if (i >= endIndex) {
                     type = TYPE_ACTION;
-                } else if (input.charAt(i) == '?') {
+                } else if (line[i] == '?') {
                     type = TYPE_READ;
-                } else if (input.charAt(i) == '=') {
+                } else if (line[i] == '=') {
                     if (i + 1 < endIndex) {
-                        if (input.charAt(i + 1) == '?') {
+                        if (line[i + 1] == '?') {
                             type = TYPE_TEST;
                         } else {
                             type = TYPE_SET;
@@ -337,22 +502,24 @@ public class AtParser {
                 }
 
                 // Call this command. Short-circuit as soon as a command fails
+                long start = System.nanoTime();
+                AtCommandResult handlerResult = null;
                 switch (type) {
                 case TYPE_ACTION:
-                    result.addResult(handler.handleActionCommand());
+                    handlerResult = handler.handleActionCommand();
                     break;
                 case TYPE_READ:
-                    result.addResult(handler.handleReadCommand());
+                    handlerResult = handler.handleReadCommand();
                     break;
                 case TYPE_TEST:
-                    result.addResult(handler.handleTestCommand());
+                    handlerResult = handler.handleTestCommand();
                     break;
                 case TYPE_SET:
-                    Object[] args =
-                            generateArgs(input.substring(i + 1, endIndex));
-                    result.addResult(handler.handleSetCommand(args));
+                    Object[] args = generateArgs(i + 1, endIndex);
+                    handlerResult = handler.handleSetCommand(args);
                     break;
                 }
+                addResult(result, handlerResult, node.counter, start);
                 if (result.getResultCode() != AtCommandResult.OK) {
                     return result;   // short-circuit
                 }
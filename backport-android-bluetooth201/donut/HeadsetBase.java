@@ -19,8 +19,13 @@ package android.bluetooth;
 import android.os.Handler;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * The Android Bluetooth API is not finalized, and *will* change. Use at your
  * own risk.
@@ -40,7 +45,7 @@ public class HeadsetBase {
     public static final int DIRECTION_INCOMING = 1;
     public static final int DIRECTION_OUTGOING = 2;
 
-    private static int sAtInputCount = 0;  /* TODO: Consider not using a static variable */
+    private static final AtomicInteger sAtInputCount = new AtomicInteger();  /* TODO: Consider not using a static variable */
 
     private final BluetoothDevice mBluetooth;
     private final String mAddress;
@@ -55,7 +60,20 @@ public class HeadsetBase {
 
     protected AtParser mAtParser;
 
-    private WakeLock mWakeLock;  // held while processing an AT command
+    /* AT commands come in bursts, so the wake lock is kept between commands
+     * and released once no command has arrived for the quiet period. */
+    public static final int DEFAULT_WAKE_LOCK_QUIET_MS = 1000;
+    private static Timer sWakeLockTimer;  // releases idle wake locks
+
+    private WakeLock mWakeLock;  // held during a burst of AT commands
+    private final Object mWakeLockSync = new Object();
+    private int mWakeLockQuietMs = DEFAULT_WAKE_LOCK_QUIET_MS;
+    private int mCommandsInProgress;
+    private long mLastCommandTime;
+    private TimerTask mWakeLockRelease;
+    private long mWakeLockAcquireTime;
+    private long mWakeLockHeldMs;  // not counting the current hold
+    private int mWakeLockAcquireCount;
 
     private native static void classInitNative();
     static {
@@ -109,28 +127,24 @@ public class HeadsetBase {
      */
     protected void handleInput(String input) {
         acquireWakeLock();
-        long timestamp;
-
-        synchronized(HeadsetBase.class) {
-            if (sAtInputCount == Integer.MAX_VALUE) {
-                sAtInputCount = 0;
-            } else {
-                sAtInputCount++;
-            }
-        }
+        try {
+            long timestamp;
 
-        if (DBG) timestamp = System.currentTimeMillis();
-        AtCommandResult result = mAtParser.process(input);
-        if (DBG) Log.d(TAG, "Processing " + input + " took " +
-                       (System.currentTimeMillis() - timestamp) + " ms");
+            sAtInputCount.incrementAndGet();
 
-        if (result.getResultCode() == AtCommandResult.ERROR) {
-            Log.i(TAG, "Error pocessing <" + input + ">");
-        }
+            if (DBG) timestamp = System.currentTimeMillis();
+            AtCommandResult result = mAtParser.process(input);
+            if (DBG) Log.d(TAG, "Processing " + input + " took " +
+                           (System.currentTimeMillis() - timestamp) + " ms");
 
-        sendURC(result.toString());
+            if (result.getResultCode() == AtCommandResult.ERROR) {
+                Log.i(TAG, "Error pocessing <" + input + ">");
+            }
 
-        releaseWakeLock();
+            sendURC(result.toString());
+        } finally {
+            scheduleWakeLockRelease();
+        }
     }
 
     /**
@@ -235,6 +249,7 @@ public class HeadsetBase {
             stopEventThread();
         }
         disconnectNative();
+        releaseWakeLock();
     }
     private native void disconnectNative();
 
@@ -277,20 +292,120 @@ public class HeadsetBase {
     }
     private native boolean sendURCNative(String urc);
 
-    private synchronized void acquireWakeLock() {
-        if (!mWakeLock.isHeld()) {
-            mWakeLock.acquire();
+    /**
+     * Set how long the wake lock is kept after the last AT command of a
+     * burst. 0 releases it after every command.
+     */
+    public void setWakeLockQuietPeriod(int ms) {
+        synchronized (mWakeLockSync) {
+            mWakeLockQuietMs = ms;
+        }
+    }
+
+    public int getWakeLockQuietPeriod() {
+        synchronized (mWakeLockSync) {
+            return mWakeLockQuietMs;
+        }
+    }
+
+    /**
+     * How many times the wake lock was acquired.
+     */
+    public int getWakeLockAcquireCount() {
+        synchronized (mWakeLockSync) {
+            return mWakeLockAcquireCount;
+        }
+    }
+
+    /**
+     * Total time the wake lock was held, in milliseconds, including the
+     * current hold.
+     */
+    public long getWakeLockHeldTime() {
+        synchronized (mWakeLockSync) {
+            long held = mWakeLockHeldMs;
+            if (mWakeLock.isHeld()) {
+                held += SystemClock.elapsedRealtime() - mWakeLockAcquireTime;
+            }
+            return held;
+        }
+    }
+
+    private void acquireWakeLock() {
+        synchronized (mWakeLockSync) {
+            mCommandsInProgress++;
+            if (!mWakeLock.isHeld()) {
+                mWakeLock.acquire();
+                mWakeLockAcquireTime = SystemClock.elapsedRealtime();
+                mWakeLockAcquireCount++;
+            }
         }
     }
 
-    private synchronized void releaseWakeLock() {
+    /* Called at the end of each AT command.
+     */
+    private void scheduleWakeLockRelease() {
+        synchronized (mWakeLockSync) {
+            mCommandsInProgress--;
+            mLastCommandTime = SystemClock.elapsedRealtime();
+            if (mWakeLockQuietMs <= 0) {
+                if (mCommandsInProgress == 0) {
+                    releaseWakeLockLocked();
+                }
+            } else if (mWakeLockRelease == null) {
+                scheduleWakeLockReleaseLocked(mWakeLockQuietMs);
+            }
+        }
+    }
+
+    private void scheduleWakeLockReleaseLocked(long delayMs) {
+        mWakeLockRelease = new TimerTask() {
+            public void run() {
+                synchronized (mWakeLockSync) {
+                    if (mWakeLockRelease != this) {
+                        return;
+                    }
+                    long quietMs = SystemClock.elapsedRealtime() - mLastCommandTime;
+                    if (mCommandsInProgress > 0 || quietMs < mWakeLockQuietMs) {
+                        // the burst goes on, check again when it may be over
+                        scheduleWakeLockReleaseLocked(
+                                Math.max(mWakeLockQuietMs - quietMs, 1));
+                    } else {
+                        releaseWakeLockLocked();
+                    }
+                }
+            }
+        };
+        synchronized (HeadsetBase.class) {
+            if (sWakeLockTimer == null) {
+                sWakeLockTimer = new Timer("HeadsetBase WakeLock Timer", true);
+            }
+            sWakeLockTimer.schedule(mWakeLockRelease, delayMs);
+        }
+    }
+
+    /* Release the wake lock now, e.g. on disconnect.
+     */
+    private void releaseWakeLock() {
+        synchronized (mWakeLockSync) {
+            releaseWakeLockLocked();
+        }
+    }
+
+    private void releaseWakeLockLocked() {
+        if (mWakeLockRelease != null) {
+            mWakeLockRelease.cancel();
+            mWakeLockRelease = null;
+        }
         if (mWakeLock.isHeld()) {
             mWakeLock.release();
+            mWakeLockHeldMs += SystemClock.elapsedRealtime() - mWakeLockAcquireTime;
         }
     }
 
     public static int getAtInputCount() {
-        return sAtInputCount;
+        // wraps from Integer.MAX_VALUE to 0
+        return sAtInputCount.get() & Integer.MAX_VALUE;
     }
 
     private static void log(String msg) {
@@ -31,6 +31,10 @@ import java.util.*;
  * int enum, converted to a string when toString() is called. Only a single
  * final response is sent from multiple commands chained into a single command
  * line.<p>
+ *
+ * The response can also be encoded straight into an {@link AtResultSink}
+ * with {@link #encode(AtResultSink)}, without building intermediate
+ * strings.<p>
  * @hide
  */
 public class AtCommandResult {
@@ -84,7 +88,11 @@ public class AtCommandResult {
      */
     public void addResult(AtCommandResult result) {
         if (result != null) {
-            appendWithCrlf(mResponse, result.mResponse.toString());
+            StringBuilder response = result.mResponse;
+            if (mResponse.length() > 0 && response.length() > 0) {
+                mResponse.append("\r\n\r\n");
+            }
+            mResponse.append(response);
             mResultCode = result.mResultCode;
         }
     }
@@ -93,16 +101,43 @@ public class AtCommandResult {
      * Generate the string response ready to send
      */
     public String toString() {
-        StringBuilder result = new StringBuilder(mResponse.toString());
+        String code = getResultString();
+        if (code == null) {
+            return mResponse.toString();
+        }
+        StringBuilder result =
+                new StringBuilder(mResponse.length() + 4 + code.length());
+        result.append(mResponse);
+        appendWithCrlf(result, code);
+        return result.toString();
+    }
+
+    /**
+     * Append the response ready to send to sink, encoded as by
+     * {@link AtResultSink}. The bytes appended are those of toString().
+     * @param sink The sink to append to.
+     */
+    public void encode(AtResultSink sink) {
+        sink.append(mResponse);
+        String code = getResultString();
+        if (code != null) {
+            if (mResponse.length() > 0) {
+                sink.append("\r\n\r\n");
+            }
+            sink.append(code);
+        }
+    }
+
+    /** The final result code as sent, or null for UNSOLICITED.
+     */
+    private String getResultString() {
         switch (mResultCode) {
         case OK:
-            appendWithCrlf(result, OK_STRING);
-            break;
+            return OK_STRING;
         case ERROR:
-            appendWithCrlf(result, ERROR_STRING);
-            break;
+            return ERROR_STRING;
         }
-        return result.toString();
+        return null;
     }
 
     /** Append a string to a string builder, joining with a double
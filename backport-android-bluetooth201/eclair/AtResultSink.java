@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A reusable byte buffer that AT responses are encoded into, ready to be
+ * written to an RFCOMM link.<p>
+ *
+ * Characters are encoded as UTF-8 as they are appended, so responses with
+ * many lines (phonebook reads, call lists) are encoded in a single pass and
+ * without creating String objects. Call reset() before encoding the next
+ * response into the same sink.<p>
+ * @hide
+ */
+public final class AtResultSink {
+
+    private byte[] mBuffer;
+    private int mLength;
+
+    public AtResultSink() {
+        this(256);
+    }
+
+    /**
+     * @param capacity Initial size of the buffer, in bytes.
+     */
+    public AtResultSink(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    /**
+     * Empty the sink, keeping its buffer.
+     */
+    public void reset() {
+        mLength = 0;
+    }
+
+    /**
+     * The number of bytes encoded since the last reset().
+     */
+    public int length() {
+        return mLength;
+    }
+
+    /**
+     * The buffer holding the encoded bytes, valid up to length(). It is
+     * replaced when the sink grows.
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Append one line of response, joining it to the previous one with a
+     * double CRLF as AtCommandResult.appendWithCrlf() does.
+     */
+    public void appendWithCrlf(CharSequence line) {
+        if (mLength > 0 && line.length() > 0) {
+            append("\r\n\r\n");
+        }
+        append(line);
+    }
+
+    /**
+     * Append chars as UTF-8.
+     */
+    public void append(CharSequence chars) {
+        int length = chars.length();
+        // most responses are ASCII, make room for them at once
+        ensureCapacity(mLength + length);
+        for (int i = 0; i < length; i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                if (mLength == mBuffer.length) {
+                    ensureCapacity(mLength + 1);
+                }
+                mBuffer[mLength++] = (byte) c;
+            } else if (c < 0x800) {
+                ensureCapacity(mLength + 2);
+                mBuffer[mLength++] = (byte) (0xc0 | (c >> 6));
+                mBuffer[mLength++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, chars.charAt(++i));
+                ensureCapacity(mLength + 4);
+                mBuffer[mLength++] = (byte) (0xf0 | (cp >> 18));
+                mBuffer[mLength++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                mBuffer[mLength++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                mBuffer[mLength++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (c >= '\ud800' && c <= '\udfff') {
+                ensureCapacity(mLength + 1);
+                mBuffer[mLength++] = '?';  // unpaired surrogate
+            } else {
+                ensureCapacity(mLength + 3);
+                mBuffer[mLength++] = (byte) (0xe0 | (c >> 12));
+                mBuffer[mLength++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                mBuffer[mLength++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    /**
+     * Write the encoded bytes to out.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(mBuffer, 0, mLength);
+    }
+
+    /**
+     * Decode the bytes, for native code that takes a String.
+     */
+    public String toString() {
+        try {
+            return new String(mBuffer, 0, mLength, "UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mBuffer.length) {
+            byte[] buffer = new byte[Math.max(capacity, mBuffer.length * 2)];
+            System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+            mBuffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import java.util.ArrayList;
+
+/**
+ * The HFP indicators of an audio gateway, and the +CIEV unsolicited results
+ * that report their changes.<p>
+ *
+ * Handlers only set the current values, e.g. on every call state change.
+ * flush() then reports each indicator whose value differs from the one last
+ * reported, once, with its latest value. Changes that are undone before the
+ * next flush() are not reported at all. Nothing is reported while +CMER has
+ * indicator reporting off, and indicators turned off by +BIA are not
+ * reported unless they are mandatory; a change made while one is off is
+ * reported once it is turned back on.<p>
+ *
+ * register() installs the +CIND, +CMER and +BIA handlers on an AtParser.
+ * Indicators are numbered from 1 in the order they were added, as in +CIND
+ * and +CIEV.<p>
+ * @hide
+ */
+public final class HandsfreeIndicators {
+
+    public static final String SERVICE = "service";
+    public static final String CALL = "call";
+    public static final String CALLSETUP = "callsetup";
+    public static final String CALLHELD = "callheld";
+    public static final String SIGNAL = "signal";
+    public static final String ROAM = "roam";
+    public static final String BATTCHG = "battchg";
+
+    private static final class Indicator {
+        final String mName;
+        final int mMin;
+        final int mMax;
+        final boolean mMandatory;  // can not be turned off by +BIA
+        int mValue;
+        int mReported;  // value the remote device knows
+        boolean mActive = true;
+
+        Indicator(String name, int min, int max, boolean mandatory) {
+            mName = name;
+            mMin = min;
+            mMax = max;
+            mMandatory = mandatory;
+            mValue = min;
+            mReported = min;
+        }
+    }
+
+    private final ArrayList<Indicator> mIndicators = new ArrayList<Indicator>();
+    private boolean mReporting;  // +CMER mode 3 with ind 1
+    private int mDirty;  // indicators whose value differs from mReported
+    private int mUpdateCount;  // +CIEV lines sent
+    private int mSetCount;  // set() calls that changed a value
+
+    /**
+     * Create the indicators of HFP 1.5, in the usual order.
+     */
+    public static HandsfreeIndicators createDefault() {
+        HandsfreeIndicators indicators = new HandsfreeIndicators();
+        indicators.add(SERVICE, 0, 1, false);
+        indicators.add(CALL, 0, 1, true);
+        indicators.add(CALLSETUP, 0, 3, true);
+        indicators.add(CALLHELD, 0, 2, true);
+        indicators.add(SIGNAL, 0, 5, false);
+        indicators.add(ROAM, 0, 1, false);
+        indicators.add(BATTCHG, 0, 5, false);
+        return indicators;
+    }
+
+    /**
+     * Add an indicator, starting at min.
+     * @return Its index, from 1.
+     */
+    public synchronized int add(String name, int min, int max, boolean mandatory) {
+        mIndicators.add(new Indicator(name, min, max, mandatory));
+        return mIndicators.size();
+    }
+
+    /**
+     * @return The index of the indicator, from 1, or -1.
+     */
+    public synchronized int indexOf(String name) {
+        for (int i = 0; i < mIndicators.size(); i++) {
+            if (mIndicators.get(i).mName.equals(name)) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    public synchronized int get(int index) {
+        return mIndicators.get(index - 1).mValue;
+    }
+
+    /**
+     * Set the current value of an indicator. Values out of its range are
+     * clamped. It is reported by the next flush() if it differs from the
+     * value last reported.
+     */
+    public synchronized void set(int index, int value) {
+        Indicator indicator = mIndicators.get(index - 1);
+        value = Math.max(indicator.mMin, Math.min(indicator.mMax, value));
+        if (value == indicator.mValue) {
+            return;
+        }
+        mSetCount++;
+        boolean wasDirty = (indicator.mValue != indicator.mReported);
+        indicator.mValue = value;
+        boolean dirty = (value != indicator.mReported);
+        if (dirty && !wasDirty) {
+            mDirty++;
+        } else if (!dirty && wasDirty) {
+            mDirty--;
+        }
+    }
+
+    public void set(String name, int value) {
+        int index = indexOf(name);
+        if (index < 0) {
+            throw new IllegalArgumentException("no indicator " + name);
+        }
+        set(index, value);
+    }
+
+    /**
+     * Build the +CIEV results for the active indicators changed since the
+     * last flush, and consider them reported.
+     * @return The results ready to send, or null if there is nothing to
+     *         report.
+     */
+    public synchronized String flush() {
+        if (mDirty == 0 || !mReporting) {
+            return null;
+        }
+        AtCommandResult result = new AtCommandResult(AtCommandResult.UNSOLICITED);
+        StringBuilder line = new StringBuilder(16);
+        for (int i = 0; i < mIndicators.size(); i++) {
+            Indicator indicator = mIndicators.get(i);
+            if (indicator.mValue == indicator.mReported || !indicator.mActive) {
+                // an inactive indicator keeps the value the remote device
+                // knows, so it is reported once +BIA turns it back on
+                continue;
+            }
+            indicator.mReported = indicator.mValue;
+            mDirty--;
+            line.setLength(0);
+            line.append("+CIEV: ").append(i + 1).append(',').append(indicator.mValue);
+            result.addResponse(line.toString());
+            mUpdateCount++;
+        }
+        String urc = result.toString();
+        return (urc.length() > 0) ? urc : null;
+    }
+
+    /**
+     * Send the pending updates, if any, to headset.
+     */
+    public void flush(HeadsetBase headset) {
+        String urc = flush();
+        if (urc != null) {
+            headset.sendURC(urc);
+        }
+    }
+
+    public synchronized boolean isReporting() {
+        return mReporting;
+    }
+
+    /**
+     * The number of +CIEV results built by flush().
+     */
+    public synchronized int getUpdateCount() {
+        return mUpdateCount;
+    }
+
+    /**
+     * The number of set() calls that changed a value, i.e. the number of
+     * +CIEV results that reporting every change would have sent.
+     */
+    public synchronized int getChangeCount() {
+        return mSetCount;
+    }
+
+    /**
+     * Register the +CIND, +CMER and +BIA handlers with parser.
+     */
+    public void register(AtParser parser) {
+        parser.register("+CIND", new AtCommandHandler() {
+            public AtCommandResult handleReadCommand() {
+                return new AtCommandResult(readIndicators());
+            }
+            public AtCommandResult handleTestCommand() {
+                return new AtCommandResult(describeIndicators());
+            }
+        });
+        parser.register("+CMER", new AtCommandHandler() {
+            public AtCommandResult handleReadCommand() {
+                return new AtCommandResult("+CMER: " + (isReporting() ? "3,0,0,1" : "3,0,0,0"));
+            }
+            public AtCommandResult handleSetCommand(Object[] args) {
+                return setEventReporting(args);
+            }
+            public AtCommandResult handleTestCommand() {
+                return new AtCommandResult("+CMER: (3),(0),(0),(0,1)");
+            }
+        });
+        parser.register("+BIA", new AtCommandHandler() {
+            public AtCommandResult handleSetCommand(Object[] args) {
+                return activateIndicators(args);
+            }
+        });
+    }
+
+    /* "+CIND: 1,0,0,0,5,0,5" - the values, which are now reported.
+     */
+    private synchronized String readIndicators() {
+        StringBuilder b = new StringBuilder("+CIND: ");
+        for (int i = 0; i < mIndicators.size(); i++) {
+            Indicator indicator = mIndicators.get(i);
+            if (i > 0) {
+                b.append(',');
+            }
+            b.append(indicator.mValue);
+            if (indicator.mReported != indicator.mValue) {
+                indicator.mReported = indicator.mValue;
+                mDirty--;
+            }
+        }
+        return b.toString();
+    }
+
+    /* "+CIND: ("service",(0,1)),("call",(0,1)),...
+     */
+    private synchronized String describeIndicators() {
+        StringBuilder b = new StringBuilder("+CIND: ");
+        for (int i = 0; i < mIndicators.size(); i++) {
+            Indicator indicator = mIndicators.get(i);
+            if (i > 0) {
+                b.append(',');
+            }
+            b.append("(\"").append(indicator.mName).append("\",(").append(indicator.mMin);
+            b.append((indicator.mMax - indicator.mMin > 1) ? '-' : ',');
+            b.append(indicator.mMax).append("))");
+        }
+        return b.toString();
+    }
+
+    /* AT+CMER=<mode>[,<keyp>[,<disp>[,<ind>]]]
+     */
+    private synchronized AtCommandResult setEventReporting(Object[] args) {
+        int mode = intArg(args, 0, -1);
+        int ind = intArg(args, 3, 0);
+        if (mode == 3 && (ind == 0 || ind == 1)) {
+            // the remote device reads +CIND first, so changes made since
+            // then are reported by the next flush
+            mReporting = (ind == 1);
+            return new AtCommandResult(AtCommandResult.OK);
+        }
+        if (mode == 0) {
+            mReporting = false;
+            return new AtCommandResult(AtCommandResult.OK);
+        }
+        return new AtCommandResult(AtCommandResult.ERROR);
+    }
+
+    /* AT+BIA=[<1>[,<2>[...]]], empty arguments leave an indicator as it is.
+     */
+    private synchronized AtCommandResult activateIndicators(Object[] args) {
+        for (int i = 0; i < args.length && i < mIndicators.size(); i++) {
+            int state = intArg(args, i, -1);
+            Indicator indicator = mIndicators.get(i);
+            if (state == -1 || indicator.mMandatory) {
+                continue;
+            }
+            if (state != 0 && state != 1) {
+                return new AtCommandResult(AtCommandResult.ERROR);
+            }
+            indicator.mActive = (state == 1);
+        }
+        return new AtCommandResult(AtCommandResult.OK);
+    }
+
+    static private int intArg(Object[] args, int i, int missing) {
+        if (i < args.length && args[i] instanceof Integer) {
+            return ((Integer) args[i]).intValue();
+        }
+        return missing;
+    }
+}
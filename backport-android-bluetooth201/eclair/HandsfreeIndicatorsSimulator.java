@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import java.util.Random;
+
+/**
+ * Drives {@link HandsfreeIndicators} through a headset session on the JVM,
+ * with no headset: the +CIND/+CMER/+BIA handshake, then a run of calls whose
+ * indicator changes come in bursts, with a flush() after each burst as the
+ * phone state handlers would do.<p>
+ *
+ * It prints the +CIEV results sent against the changes made, which is how
+ * many results reporting every change would have sent, and checks that a
+ * change made while +BIA has an indicator off is reported once it is back
+ * on.<p>
+ *
+ * Run with: java android.bluetooth.HandsfreeIndicatorsSimulator [calls]
+ * @hide
+ */
+final class HandsfreeIndicatorsSimulator {
+
+    private HandsfreeIndicatorsSimulator() {
+    }
+
+    public static void main(String[] args) {
+        int calls = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+
+        HandsfreeIndicators indicators = HandsfreeIndicators.createDefault();
+        AtParser parser = new AtParser();
+        indicators.register(parser);
+        process(parser, "AT+CIND=?");
+        process(parser, "AT+CIND?");
+        process(parser, "AT+CMER=3,0,0,1");
+        process(parser, "AT+BIA=,,,,0");  // signal off
+
+        int call = indicators.indexOf(HandsfreeIndicators.CALL);
+        int callsetup = indicators.indexOf(HandsfreeIndicators.CALLSETUP);
+        int callheld = indicators.indexOf(HandsfreeIndicators.CALLHELD);
+        int signal = indicators.indexOf(HandsfreeIndicators.SIGNAL);
+        int battchg = indicators.indexOf(HandsfreeIndicators.BATTCHG);
+
+        // an incoming call that is answered, held twice and hung up, with
+        // the signal moving meanwhile
+        Random random = new Random(3);
+        for (int i = 0; i < calls; i++) {
+            int[][] changes = {
+                    {callsetup, 1}, {signal, random.nextInt(6)}, {signal, random.nextInt(6)},
+                    {call, 1}, {callsetup, 0}, {signal, random.nextInt(6)},
+                    {callheld, 1}, {callheld, 0}, {callheld, 1},
+                    {callheld, 0}, {call, 0}, {battchg, random.nextInt(6)},
+            };
+            for (int k = 0; k < changes.length; k++) {
+                indicators.set(changes[k][0], changes[k][1]);
+                if (k % 3 == 2) {
+                    indicators.flush();
+                }
+            }
+            indicators.flush();
+        }
+        System.out.println(calls + " calls: " + indicators.getChangeCount() + " changes, "
+                + indicators.getUpdateCount() + " +CIEV results");
+
+        // the remote device still knows the first value, 0
+        indicators.set(signal, (indicators.get(signal) == 5) ? 4 : 5);
+        String off = indicators.flush();
+        process(parser, "AT+BIA=,,,,1");  // signal on
+        String on = indicators.flush();
+        String expected = "+CIEV: " + signal + "," + indicators.get(signal);
+        boolean ok = (off == null) && (on != null) && on.contains(expected);
+        System.out.println("change made while off reported once on: " + (ok ? "ok" : "FAILED"));
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    private static void process(AtParser parser, String command) {
+        System.out.println(command + " -> " + parser.process(command).toString().trim());
+    }
+}
@@ -22,6 +22,20 @@ abstract class BackportProperties {
 		return null;
 	}
 
+	/**
+	 * @return true if the converted intents are broadcast as well as handed
+	 *         to {@link BluetoothEvents} listeners.
+	 */
+	public static final boolean isRebroadcast() {
+		String v = sProperties.getProperty("rebroadcast");
+
+		if (v != null) {
+			return Boolean.parseBoolean(v.trim());
+		}
+
+		return false;
+	}
+
 	public static final String getRequestEnable() {
 		String v = sProperties.getProperty("request_enable");
 
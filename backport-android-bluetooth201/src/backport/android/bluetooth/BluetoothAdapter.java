@@ -1,14 +1,15 @@
 package backport.android.bluetooth;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 
-import android.bluetooth.Database;
 import android.bluetooth.IBluetoothDevice;
-import android.os.Handler;
-import android.os.Message;
 import android.os.RemoteException;
 import android.util.Log;
 
@@ -251,23 +252,16 @@ public class BluetoothAdapter {
 
 	private final boolean mStandardImplementation;
 
-	private Handler mHandler = new Handler() {
-		public void handleMessage(Message msg) {
-			/* handle socket closing */
-			int handle = msg.what;
-			try {
-				Log.d(TAG, "Removing service record "
-						+ Integer.toHexString(handle));
-				Database.getInstance().removeServiceRecord(handle);
-				// mService.removeServiceRecord(handle);
-			} catch (Exception e) {
-				Log.e(TAG, "", e);
-			}
-		}
-	};
-
 	public boolean cancelDiscovery() {
 
+		boolean deferred = RadioScheduler.getInstance()
+				.cancelDeferredDiscovery();
+
+		return cancelDiscoveryNow() || deferred;
+	}
+
+	boolean cancelDiscoveryNow() {
+
 		try {
 
 			return mService.cancelDiscovery();
@@ -376,6 +370,41 @@ public class BluetoothAdapter {
 		}
 	}
 
+	/**
+	 * Returns the devices recorded by the {@link DeviceCache}, most recently
+	 * seen first. They can be connected to without a discovery.
+	 *
+	 * @return an empty set if no cache is open.
+	 */
+	public Set<BluetoothDevice> getCachedDevices() {
+
+		DeviceCache cache = DeviceCache.getInstance();
+
+		if (cache == null) {
+			return new LinkedHashSet<BluetoothDevice>();
+		}
+
+		List<DeviceCache.Entry> entries = new ArrayList<DeviceCache.Entry>(
+				cache.getEntries());
+		Collections.sort(entries, new Comparator<DeviceCache.Entry>() {
+
+			public int compare(DeviceCache.Entry a, DeviceCache.Entry b) {
+
+				return (a.getLastSeen() < b.getLastSeen()) ? 1 : (a
+						.getLastSeen() > b.getLastSeen()) ? -1 : 0;
+			}
+		});
+
+		Set<BluetoothDevice> devices = new LinkedHashSet<BluetoothDevice>(
+				entries.size());
+
+		for (DeviceCache.Entry entry : entries) {
+			devices.add(new BluetoothDevice(entry.getAddress()));
+		}
+
+		return devices;
+	}
+
 	public BluetoothAdapter(IBluetoothDevice service) {
 
 		if (service == null) {
@@ -506,87 +535,85 @@ public class BluetoothAdapter {
 	public BluetoothServerSocket listenUsingRfcommWithServiceRecord(
 			String name, UUID uuid) throws IOException {
 
-		BluetoothServerSocket socket;
-		int channel;
-		int errno;
-		while (true) {
-			// channel = picker.nextChannel();
-
-			// if (channel == -1) {
-			// throw new IOException("No available channels");
-			// }
+		RfcommChannelAllocator allocator = RfcommChannelAllocator.getInstance();
 
-			socket = new BluetoothServerSocket(uuid);
-			// errno = socket.mSocket.bindListen();
+		// サービスレコードの登録ができないため、UUIDから優先チャンネルを決定します.
+		// リモート側はSDPに失敗した場合に同じチャンネルへ接続します.
+		int preferred = RfcommChannelAllocator.preferredChannel(uuid);
+		List<Integer> inUse = null;
+		BluetoothServerSocket socket = null;
+		int channel = -1;
+		boolean listening = false;
 
-			// サービスレコードの登録ができないため、UUIDからチャンネルを決定します.
-			// channel = UUIDHelper.toUUID16(uuid) &
-			// BluetoothSocket.DEFAULT_CHANNEL;
-			channel = 1;
+		try {
+			while (true) {
+				channel = allocator.allocate(preferred);
 
-			// channel = BluetoothSocket.DEFAULT_CHANNEL;
+				if (channel == -1) {
+					throw new IOException("No available channels");
+				}
 
-			boolean bind = socket.mSocket.mRfcommSocket.bind(null, channel);
-			errno = bind ? 0 : BluetoothSocket.EADDRINUSE;
-			// EADDRINUSE
+				socket = new BluetoothServerSocket(uuid);
 
-			if (errno == 0) {
+				if (socket.mSocket.mRfcommSocket.bind(null, channel)) {
 
-				break; // success
-			} else if (errno == BluetoothSocket.EADDRINUSE) {
+					break; // success
+				}
 
+				// bound by another process. keep it until we are done so that
+				// the allocator does not hand it out again.
 				Log.d(TAG, "RFCOMM channel " + channel + " in use");
-				// Log.d(TAG, "any RFCOMM channel unavailable");
-				try {
-					socket.close();
-				} catch (IOException e) {
+
+				if (inUse == null) {
+					inUse = new ArrayList<Integer>();
 				}
-				break; // try another channel
-			} else {
+
+				inUse.add(channel);
+				channel = -1;
+
 				try {
 					socket.close();
 				} catch (IOException e) {
 				}
-				// socket.mSocket.throwErrnoNative(errno); // Exception as a
-				// result
-				throw new IOException(Integer.toString(errno));
-				// of bindListen()
+
+				socket = null;
 			}
 
+			if (!socket.mSocket.mRfcommSocket.listen(-1)) {
+				throw new IOException("Could not listen on RFCOMM channel "
+						+ channel);
+			}
+
+			// Database#advertiseRfcommService() can't get onto the system bus
+			// ("Could not get onto the system bus!"), so no SDP record is
+			// added.
+			socket.setRegistration(ServiceRecordRegistry.getInstance()
+					.register(name, uuid, channel,
+							ServiceRecordRegistry.NO_RECORD));
+			listening = true;
+		} finally {
+			if (inUse != null) {
+				for (int c : inUse) {
+					allocator.discard(c);
+				}
+			}
+
+			// until registered, closing the socket does not give the channel
+			// back.
+			if (!listening) {
+				if (channel != -1) {
+					allocator.release(channel);
+				}
+
+				if (socket != null) {
+					try {
+						socket.close();
+					} catch (IOException e) {
+					}
+				}
+			}
 		}
 
-		socket.mSocket.mRfcommSocket.listen(-1);
-		//
-		// ERROR/bluetooth_Database.cpp(505): Could not get onto the system bus!
-		// ERROR/libdbus(505): arguments to
-		// dbus_connection_set_exit_on_disconnect() were incorrect, assertion
-		// "connection != NULL" failed in file
-		// external/dbus/dbus/dbus-connection.c line 2830.
-		// ERROR/libdbus(505): This is normally a bug in some application using
-		// the D-Bus library.
-		//
-		// int handle = -1;
-		//
-		// try {
-		//
-		// Database database = Database.getInstance();
-		// handle = database.advertiseRfcommService(
-		// socket.mSocket.mRfcommSocket, name, uuid);
-		// } catch (IOException e) {
-		// Log.e(TAG, "", e);
-		// }
-		//
-		// if (handle == -1) {
-		// try {
-		// socket.close();
-		// } catch (IOException e) {
-		// }
-		// throw new IOException("Not able to register SDP record for " + name);
-		// }
-		//
-		// socket.setCloseHandler(mHandler, handle);
-
-		// channel = socket.mSocket.mRfcommSocket.getPort();
 		Log.d(TAG, "listening on RFCOMM channel " + channel);
 
 		return socket;
@@ -605,8 +632,24 @@ public class BluetoothAdapter {
 		return false;
 	}
 
+	/**
+	 * Starts a discovery. While a connect or a transfer is in progress the
+	 * discovery is deferred until it ends, see {@link RadioScheduler}.
+	 */
 	public boolean startDiscovery() {
 
+		if (RadioScheduler.getInstance().deferDiscovery()) {
+
+			Log.d(TAG, "discovery deferred");
+
+			return true;
+		}
+
+		return startDiscoveryNow();
+	}
+
+	boolean startDiscoveryNow() {
+
 		try {
 
 			return mService.startDiscovery(true);
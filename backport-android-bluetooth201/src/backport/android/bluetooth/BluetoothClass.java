@@ -30,6 +30,15 @@ public class BluetoothClass {
         return mClass;
     }
 
+    /**
+     * @return the whole class of device: the service, major and minor
+     * classes.
+     * @hide
+     */
+    public int getClassOfDevice() {
+        return mClass;
+    }
+
     @Override
     public String toString() {
         return Integer.toHexString(mClass);
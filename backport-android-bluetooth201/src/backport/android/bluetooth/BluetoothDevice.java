@@ -348,6 +348,18 @@ public class BluetoothDevice implements Parcelable {
 	 */
 	public static final String EXTRA_UUID = "android.bluetooth.device.extra.UUID";
 
+	/** RFCOMM profiles {@link #browseServices(UUID...)} always looks up. */
+	private static final UUID[] BROWSE_UUIDS = {
+			UUIDHelper.SERIAL_PORT_PROTOCOL_UUID,
+			UUIDHelper.DIALUP_NETWORKING_PROTOCOL_UUID,
+			UUIDHelper.OBEX_OBJECT_PUSH_PROTOCOL_UUID,
+			UUIDHelper.OBEX_FILE_TRANSFER_PROTOCOL_UUID,
+			UUIDHelper.HEADSET_PROTOCOL_UUID,
+			UUIDHelper.HEADSET_AUDIO_GATEWAY_PROTOCOL_UUID,
+			UUIDHelper.HANDSFREE_PROTOCOL_UUID,
+			UUIDHelper.HANDSFREE_AUDIO_GATEWAY_PROTOCOL_UUID,
+			UUIDHelper.PHONEBOOK_ACCESS_SERVER_PROTOCOL_UUID };
+
 	private static IBluetoothDevice sService;
 
 	private final String mAddress;
@@ -382,6 +394,43 @@ public class BluetoothDevice implements Parcelable {
 		return new BluetoothSocket(this, uuid);
 	}
 
+	/**
+	 * Looks up the RFCOMM channels of the common RFCOMM profiles and of
+	 * {@code uuids} on this device in one pass. The answers are kept, so that
+	 * sockets from {@link #createRfcommSocketToServiceRecord(UUID)} for any of
+	 * these services connect without another SDP query. Blocks until the
+	 * device has answered every lookup.
+	 * 
+	 * @return the services found on the device.
+	 */
+	public UUIDSet browseServices(UUID... uuids) throws IOException {
+
+		UUIDSet candidates = new UUIDSet(BROWSE_UUIDS);
+
+		if (uuids != null) {
+
+			for (UUID uuid : uuids) {
+				candidates.add(uuid);
+			}
+		}
+
+		ServiceCatalog catalog = getServiceCatalog();
+
+		for (UUID uuid : candidates.toArray()) {
+
+			if (catalog.getChannel(uuid) == ServiceCatalog.UNKNOWN) {
+				new BluetoothSocket.SdpHelper(this, uuid).lookup();
+			}
+		}
+
+		return catalog.getServices();
+	}
+
+	ServiceCatalog getServiceCatalog() {
+
+		return ServiceCatalog.get(mAddress);
+	}
+
 	public boolean equals(Object o) {
 
 		if (o instanceof BluetoothDevice) {
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.util.Log;
+
+/**
+ * In-process listeners for Bluetooth events.
+ * <p>
+ * {@link BluetoothIntentRedirector} calls the listeners directly on the thread
+ * that received the platform broadcast (the main thread), so they see an event
+ * without the second broadcast through the system server. The converted
+ * broadcasts are only sent when <code>rebroadcast = true</code> is set in
+ * backport_android_bluetooth.properties.
+ */
+public final class BluetoothEvents {
+
+	private static final String TAG = "BluetoothEvents";
+
+	public interface OnDiscoveryListener {
+
+		void onDiscoveryStarted();
+
+		void onDiscoveryFinished();
+	}
+
+	public interface OnDeviceFoundListener {
+
+		/**
+		 * @param name
+		 *            the friendly name, or null.
+		 * @param rssi
+		 *            the RSSI, or {@link Short#MIN_VALUE} if not available.
+		 */
+		void onDeviceFound(BluetoothDevice device, BluetoothClass deviceClass,
+				String name, short rssi);
+	}
+
+	public interface OnBondStateChangedListener {
+
+		/**
+		 * @param state
+		 *            one of {@link BluetoothDevice#BOND_NONE},
+		 *            {@link BluetoothDevice#BOND_BONDING},
+		 *            {@link BluetoothDevice#BOND_BONDED}.
+		 */
+		void onBondStateChanged(BluetoothDevice device, int state,
+				int previousState);
+	}
+
+	public interface OnAclConnectionListener {
+
+		void onAclConnected(BluetoothDevice device);
+
+		void onAclDisconnectRequested(BluetoothDevice device);
+
+		void onAclDisconnected(BluetoothDevice device);
+	}
+
+	public interface OnStateChangedListener {
+
+		/**
+		 * @param state
+		 *            one of the {@link BluetoothAdapter} STATE_ constants.
+		 */
+		void onStateChanged(int state, int previousState);
+	}
+
+	public interface OnScanModeChangedListener {
+
+		/**
+		 * @param scanMode
+		 *            one of the {@link BluetoothAdapter} SCAN_MODE_ constants.
+		 */
+		void onScanModeChanged(int scanMode);
+	}
+
+	private static final List<OnDiscoveryListener> sDiscoveryListeners = new CopyOnWriteArrayList<OnDiscoveryListener>();
+
+	private static final List<OnDeviceFoundListener> sDeviceFoundListeners = new CopyOnWriteArrayList<OnDeviceFoundListener>();
+
+	private static final List<OnBondStateChangedListener> sBondStateChangedListeners = new CopyOnWriteArrayList<OnBondStateChangedListener>();
+
+	private static final List<OnAclConnectionListener> sAclConnectionListeners = new CopyOnWriteArrayList<OnAclConnectionListener>();
+
+	private static final List<OnStateChangedListener> sStateChangedListeners = new CopyOnWriteArrayList<OnStateChangedListener>();
+
+	private static final List<OnScanModeChangedListener> sScanModeChangedListeners = new CopyOnWriteArrayList<OnScanModeChangedListener>();
+
+	/** number of registered listeners of all kinds. */
+	private static volatile int sListenerCount;
+
+	private BluetoothEvents() {
+	}
+
+	public static void addOnDiscoveryListener(OnDiscoveryListener l) {
+
+		add(sDiscoveryListeners, l);
+	}
+
+	public static void removeOnDiscoveryListener(OnDiscoveryListener l) {
+
+		remove(sDiscoveryListeners, l);
+	}
+
+	public static void addOnDeviceFoundListener(OnDeviceFoundListener l) {
+
+		add(sDeviceFoundListeners, l);
+	}
+
+	public static void removeOnDeviceFoundListener(OnDeviceFoundListener l) {
+
+		remove(sDeviceFoundListeners, l);
+	}
+
+	public static void addOnBondStateChangedListener(
+			OnBondStateChangedListener l) {
+
+		add(sBondStateChangedListeners, l);
+	}
+
+	public static void removeOnBondStateChangedListener(
+			OnBondStateChangedListener l) {
+
+		remove(sBondStateChangedListeners, l);
+	}
+
+	public static void addOnAclConnectionListener(OnAclConnectionListener l) {
+
+		add(sAclConnectionListeners, l);
+	}
+
+	public static void removeOnAclConnectionListener(OnAclConnectionListener l) {
+
+		remove(sAclConnectionListeners, l);
+	}
+
+	public static void addOnStateChangedListener(OnStateChangedListener l) {
+
+		add(sStateChangedListeners, l);
+	}
+
+	public static void removeOnStateChangedListener(OnStateChangedListener l) {
+
+		remove(sStateChangedListeners, l);
+	}
+
+	public static void addOnScanModeChangedListener(
+			OnScanModeChangedListener l) {
+
+		add(sScanModeChangedListeners, l);
+	}
+
+	public static void removeOnScanModeChangedListener(
+			OnScanModeChangedListener l) {
+
+		remove(sScanModeChangedListeners, l);
+	}
+
+	static boolean hasListeners() {
+
+		return sListenerCount > 0;
+	}
+
+	static void notifyDiscoveryStarted() {
+
+		for (OnDiscoveryListener l : sDiscoveryListeners) {
+
+			try {
+				l.onDiscoveryStarted();
+			} catch (RuntimeException e) {
+				Log.e(TAG, "", e);
+			}
+		}
+	}
+
+	static void notifyDiscoveryFinished() {
+
+		for (OnDiscoveryListener l : sDiscoveryListeners) {
+
+			try {
+				l.onDiscoveryFinished();
+			} catch (RuntimeException e) {
+				Log.e(TAG, "", e);
+			}
+		}
+	}
+
+	static void notifyDeviceFound(BluetoothDevice device,
+			BluetoothClass deviceClass, String name, short rssi) {
+
+		for (OnDeviceFoundListener l : sDeviceFoundListeners) {
+
+			try {
+				l.onDeviceFound(device, deviceClass, name, rssi);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "", e);
+			}
+		}
+	}
+
+	static void notifyBondStateChanged(BluetoothDevice device, int state,
+			int previousState) {
+
+		for (OnBondStateChangedListener l : sBondStateChangedListeners) {
+
+			try {
+				l.onBondStateChanged(device, state, previousState);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "", e);
+			}
+		}
+	}
+
+	static void notifyAclConnected(BluetoothDevice device) {
+
+		for (OnAclConnectionListener l : sAclConnectionListeners) {
+
+			try {
+				l.onAclConnected(device);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "", e);
+			}
+		}
+	}
+
+	static void notifyAclDisconnectRequested(BluetoothDevice device) {
+
+		for (OnAclConnectionListener l : sAclConnectionListeners) {
+
+			try {
+				l.onAclDisconnectRequested(device);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "", e);
+			}
+		}
+	}
+
+	static void notifyAclDisconnected(BluetoothDevice device) {
+
+		for (OnAclConnectionListener l : sAclConnectionListeners) {
+
+			try {
+				l.onAclDisconnected(device);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "", e);
+			}
+		}
+	}
+
+	static void notifyStateChanged(int state, int previousState) {
+
+		for (OnStateChangedListener l : sStateChangedListeners) {
+
+			try {
+				l.onStateChanged(state, previousState);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "", e);
+			}
+		}
+	}
+
+	static void notifyScanModeChanged(int scanMode) {
+
+		for (OnScanModeChangedListener l : sScanModeChangedListeners) {
+
+			try {
+				l.onScanModeChanged(scanMode);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "", e);
+			}
+		}
+	}
+
+	private static <T> void add(List<T> listeners, T l) {
+
+		if (l == null) {
+			throw new NullPointerException("listener");
+		}
+
+		synchronized (BluetoothEvents.class) {
+
+			if (!listeners.contains(l)) {
+				listeners.add(l);
+				++sListenerCount;
+			}
+		}
+	}
+
+	private static <T> void remove(List<T> listeners, T l) {
+
+		synchronized (BluetoothEvents.class) {
+
+			if (listeners.remove(l)) {
+				--sListenerCount;
+			}
+		}
+	}
+}
@@ -17,7 +17,9 @@
 package backport.android.bluetooth;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import android.bluetooth.BluetoothIntent;
 import android.content.BroadcastReceiver;
@@ -30,6 +32,8 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 	private static final String TAG = BluetoothIntentRedirector.class
 			.getSimpleName();
 
+	private static final boolean DBG = false;
+
 	public static final int BLUETOOTH_STATE_OFF = 0;
 	public static final int BLUETOOTH_STATE_ON = 2;
 	public static final int BLUETOOTH_STATE_TURNING_OFF = 3;
@@ -48,24 +52,31 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 	// private static final String BLUETOOTH_PERM =
 	// android.Manifest.permission.BLUETOOTH;
 
+	private static final String PERMISSION_NAME = BackportProperties
+			.getPermissionName();
+
+	private static final boolean REBROADCAST = BackportProperties
+			.isRebroadcast();
+
 	private static interface Converter {
-		boolean convertIntent(Intent src, Intent dest);
-	}
+		String getSourceAction();
 
-	private static abstract class ConverterTemplate implements Converter {
+		void convertIntent(Intent src, Intent dest);
 
-		public final boolean convertIntent(Intent src, Intent dest) {
-			String action = src.getAction();
+		/**
+		 * Notifies the in-process listeners of the event converted from
+		 * {@code src} to {@code dest}.
+		 */
+		void dispatch(Intent src, Intent dest);
+	}
 
-			if (!hasResponsibility(action)) {
-				return false;
-			}
+	private static abstract class ConverterTemplate implements Converter {
 
+		public final void convertIntent(Intent src, Intent dest) {
 			convertIntentInternal(src, dest);
-			return true;
 		}
 
-		protected abstract boolean hasResponsibility(String action);
+		public abstract String getSourceAction();
 
 		protected abstract String getAction();
 
@@ -73,42 +84,60 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 			String action = getAction();
 			dest.setAction(action);
 		}
+
+		public void dispatch(Intent src, Intent dest) {
+		}
+
+		protected static BluetoothDevice getDevice(Intent dest) {
+			return (BluetoothDevice) dest
+					.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+		}
 	}
 
 	private static final class DiscoveryFinishedConverter extends
 			ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
-			return action.equals(BluetoothIntent.DISCOVERY_COMPLETED_ACTION);
+		public String getSourceAction() {
+			return BluetoothIntent.DISCOVERY_COMPLETED_ACTION;
 		}
 
 		@Override
 		protected String getAction() {
 			return BluetoothAdapter.ACTION_DISCOVERY_FINISHED;
 		}
+
+		@Override
+		public void dispatch(Intent src, Intent dest) {
+			BluetoothEvents.notifyDiscoveryFinished();
+		}
 	}
 
 	private static final class DiscoveryStartedConverter extends
 			ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
-			return action.equals(BluetoothIntent.DISCOVERY_STARTED_ACTION);
+		public String getSourceAction() {
+			return BluetoothIntent.DISCOVERY_STARTED_ACTION;
 		}
 
 		@Override
 		protected String getAction() {
 			return BluetoothAdapter.ACTION_DISCOVERY_STARTED;
 		}
+
+		@Override
+		public void dispatch(Intent src, Intent dest) {
+			BluetoothEvents.notifyDiscoveryStarted();
+		}
 	}
 
 	private static final class LocalNameChangedConverter extends
 			ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
-			return action.equals(BluetoothIntent.NAME_CHANGED_ACTION);
+		public String getSourceAction() {
+			return BluetoothIntent.NAME_CHANGED_ACTION;
 		}
 
 		@Override
@@ -128,8 +157,8 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 			ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
-			return action.equals(BluetoothIntent.SCAN_MODE_CHANGED_ACTION);
+		public String getSourceAction() {
+			return BluetoothIntent.SCAN_MODE_CHANGED_ACTION;
 		}
 
 		@Override
@@ -160,14 +189,19 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 			}
 			return BluetoothAdapter.ERROR;
 		}
+
+		@Override
+		public void dispatch(Intent src, Intent dest) {
+			BluetoothEvents.notifyScanModeChanged(dest.getIntExtra(
+					BluetoothAdapter.EXTRA_SCAN_MODE, BluetoothAdapter.ERROR));
+		}
 	}
 
 	private static final class StateChangedConverter extends ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
-			return action
-					.equals(BluetoothIntent.BLUETOOTH_STATE_CHANGED_ACTION);
+		public String getSourceAction() {
+			return BluetoothIntent.BLUETOOTH_STATE_CHANGED_ACTION;
 		}
 
 		@Override
@@ -202,14 +236,21 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 			}
 			return BluetoothAdapter.ERROR;
 		}
+
+		@Override
+		public void dispatch(Intent src, Intent dest) {
+			BluetoothEvents.notifyStateChanged(dest.getIntExtra(
+					BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR), dest
+					.getIntExtra(BluetoothAdapter.EXTRA_PREVIOUS_STATE,
+							BluetoothAdapter.ERROR));
+		}
 	}
 
 	private static final class AclConnectedConverter extends ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
-			return action
-					.equals(BluetoothIntent.REMOTE_DEVICE_CONNECTED_ACTION);
+		public String getSourceAction() {
+			return BluetoothIntent.REMOTE_DEVICE_CONNECTED_ACTION;
 		}
 
 		@Override
@@ -225,15 +266,19 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 					.getRemoteDevice(address);
 			dest.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
 		}
+
+		@Override
+		public void dispatch(Intent src, Intent dest) {
+			BluetoothEvents.notifyAclConnected(getDevice(dest));
+		}
 	}
 
 	private static final class AclDisconnectedConverter extends
 			ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
-			return action
-					.equals(BluetoothIntent.REMOTE_DEVICE_DISCONNECTED_ACTION);
+		public String getSourceAction() {
+			return BluetoothIntent.REMOTE_DEVICE_DISCONNECTED_ACTION;
 		}
 
 		@Override
@@ -249,15 +294,19 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 					.getRemoteDevice(address);
 			dest.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
 		}
+
+		@Override
+		public void dispatch(Intent src, Intent dest) {
+			BluetoothEvents.notifyAclDisconnected(getDevice(dest));
+		}
 	}
 
 	private static final class AclDisconnectRequestedConverter extends
 			ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
-			return action
-					.equals(BluetoothIntent.REMOTE_DEVICE_DISCONNECT_REQUESTED_ACTION);
+		public String getSourceAction() {
+			return BluetoothIntent.REMOTE_DEVICE_DISCONNECT_REQUESTED_ACTION;
 		}
 
 		@Override
@@ -273,14 +322,19 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 					.getRemoteDevice(address);
 			dest.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
 		}
+
+		@Override
+		public void dispatch(Intent src, Intent dest) {
+			BluetoothEvents.notifyAclDisconnectRequested(getDevice(dest));
+		}
 	}
 
 	private static final class BondStateChangedConverter extends
 			ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
-			return action.equals(BluetoothIntent.BOND_STATE_CHANGED_ACTION);
+		public String getSourceAction() {
+			return BluetoothIntent.BOND_STATE_CHANGED_ACTION;
 		}
 
 		@Override
@@ -317,14 +371,23 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 			}
 			return BluetoothDevice.ERROR;
 		}
+
+		@Override
+		public void dispatch(Intent src, Intent dest) {
+			BluetoothEvents.notifyBondStateChanged(getDevice(dest), dest
+					.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE,
+							BluetoothDevice.ERROR), dest.getIntExtra(
+					BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE,
+					BluetoothDevice.ERROR));
+		}
 	}
 
 	private static final class BondStateChangedBondingConverter extends
 			ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
-			return action.equals(BluetoothIntent.PAIRING_REQUEST_ACTION);
+		public String getSourceAction() {
+			return BluetoothIntent.PAIRING_REQUEST_ACTION;
 		}
 
 		@Override
@@ -344,14 +407,23 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 			dest.putExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE,
 					BluetoothDevice.BOND_NONE);
 		}
+
+		@Override
+		public void dispatch(Intent src, Intent dest) {
+			BluetoothEvents.notifyBondStateChanged(getDevice(dest), dest
+					.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE,
+							BluetoothDevice.ERROR), dest.getIntExtra(
+					BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE,
+					BluetoothDevice.ERROR));
+		}
 	}
 
 	private static final class BondStateChangedBondNoneConverter extends
 			ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
-			return action.equals(BluetoothIntent.PAIRING_CANCEL_ACTION);
+		public String getSourceAction() {
+			return BluetoothIntent.PAIRING_CANCEL_ACTION;
 		}
 
 		@Override
@@ -371,14 +443,22 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 			dest.putExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE,
 					BluetoothDevice.BOND_BONDING);
 		}
+
+		@Override
+		public void dispatch(Intent src, Intent dest) {
+			BluetoothEvents.notifyBondStateChanged(getDevice(dest), dest
+					.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE,
+							BluetoothDevice.ERROR), dest.getIntExtra(
+					BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE,
+					BluetoothDevice.ERROR));
+		}
 	}
 
 	private static final class ClassChangedConverter extends ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
-			return action
-					.equals(BluetoothIntent.REMOTE_DEVICE_CLASS_UPDATED_ACTION);
+		public String getSourceAction() {
+			return BluetoothIntent.REMOTE_DEVICE_CLASS_UPDATED_ACTION;
 		}
 
 		@Override
@@ -402,8 +482,8 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 	private static final class FoundConverter extends ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
-			return action.equals(BluetoothIntent.REMOTE_DEVICE_FOUND_ACTION);
+		public String getSourceAction() {
+			return BluetoothIntent.REMOTE_DEVICE_FOUND_ACTION;
 		}
 
 		@Override
@@ -424,13 +504,24 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 					Short.MIN_VALUE);
 			dest.putExtra(BluetoothDevice.EXTRA_RSSI, rssi);
 		}
+
+		@Override
+		public void dispatch(Intent src, Intent dest) {
+			int deviceClass = src.getIntExtra(BluetoothIntent.CLASS,
+					BluetoothClass.ERROR);
+			BluetoothEvents.notifyDeviceFound(getDevice(dest),
+					new BluetoothClass(deviceClass), dest
+							.getStringExtra(BluetoothDevice.EXTRA_NAME), dest
+							.getShortExtra(BluetoothDevice.EXTRA_RSSI,
+									Short.MIN_VALUE));
+		}
 	}
 
 	private static final class NameChangedConverter extends ConverterTemplate {
 
 		@Override
-		protected boolean hasResponsibility(String action) {
-			return action.equals(BluetoothIntent.REMOTE_NAME_UPDATED_ACTION);
+		public String getSourceAction() {
+			return BluetoothIntent.REMOTE_NAME_UPDATED_ACTION;
 		}
 
 		@Override
@@ -450,7 +541,8 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 		}
 	}
 
-	private static final Converter[] CONVERTERS;
+	/** legacy action to the converter handling it. */
+	private static final Map<String, Converter> CONVERTERS = new HashMap<String, Converter>();
 
 	static {
 
@@ -474,38 +566,49 @@ public class BluetoothIntentRedirector extends BroadcastReceiver {
 		temp.add(new FoundConverter());
 		temp.add(new NameChangedConverter());
 
-		CONVERTERS = temp.toArray(new Converter[temp.size()]);
+		for (Converter converter : temp) {
+			CONVERTERS.put(converter.getSourceAction(), converter);
+		}
 	}
 
 	@Override
 	public void onReceive(Context context, Intent intent) {
-		Log.d(TAG, "receive:" + intent.toString());
+		if (DBG) {
+			Log.d(TAG, "receive:" + intent.toString());
+		}
+
+		String action = intent.getAction();
+		Converter converter = (action == null) ? null : CONVERTERS.get(action);
+
+		if (converter == null) {
+			return;
+		}
+
+		if (!REBROADCAST && !BluetoothEvents.hasListeners()) {
+			return;
+		}
+
 		Intent convertedIntent = new Intent();
+		converter.convertIntent(intent, convertedIntent);
+		converter.dispatch(intent, convertedIntent);
 
-		for (int i = 0, size = CONVERTERS.length; i < size; ++i) {
-			Converter converter = CONVERTERS[i];
-			boolean converted = converter
-					.convertIntent(intent, convertedIntent);
-
-			if (converted) {
-
-				String perm = BackportProperties.getPermissionName();
-
-				if (perm == null) {
-					context.sendBroadcast(convertedIntent);
-				} else {
-					//context.sendBroadcast(convertedIntent, perm);
-					//TODO パーミッション設定するとうまくいかんな…
-					context.sendBroadcast(convertedIntent);
-				}
-				//01-26 00:48:23.044: DEBUG/BluetoothIntentRedirector(23295): receive:Intent { act=android.bluetooth.intent.action.DISCOVERY_COMPLETED cmp=backport.android.bluetooth/.BluetoothIntentRedirector }
-				//01-26 00:48:23.054: DEBUG/BluetoothIntentRedirector(23295): redirect:Intent { act=android.bluetooth.adapter.action.DISCOVERY_FINISHED }
-				//01-26 00:48:23.084: WARN/ActivityManager(79): Permission Denial: receiving Intent { act=android.bluetooth.adapter.action.DISCOVERY_FINISHED } to ProcessRecord{43408908 23295:backport.android.bluetooth/10026} (pid=23295, uid=10026) requires com.example.bluetooth.PERMISSION_BLUETOOTH due to sender backport.android.bluetooth (uid 10026)
-
-				// context.sendBroadcast(convertedIntent);
-				Log.d(TAG, "redirect:" + convertedIntent.toString());
-				return;
-			}
+		if (!REBROADCAST) {
+			return;
+		}
+
+		if (PERMISSION_NAME == null) {
+			context.sendBroadcast(convertedIntent);
+		} else {
+			//context.sendBroadcast(convertedIntent, PERMISSION_NAME);
+			//TODO パーミッション設定するとうまくいかんな…
+			context.sendBroadcast(convertedIntent);
+		}
+		//01-26 00:48:23.044: DEBUG/BluetoothIntentRedirector(23295): receive:Intent { act=android.bluetooth.intent.action.DISCOVERY_COMPLETED cmp=backport.android.bluetooth/.BluetoothIntentRedirector }
+		//01-26 00:48:23.054: DEBUG/BluetoothIntentRedirector(23295): redirect:Intent { act=android.bluetooth.adapter.action.DISCOVERY_FINISHED }
+		//01-26 00:48:23.084: WARN/ActivityManager(79): Permission Denial: receiving Intent { act=android.bluetooth.adapter.action.DISCOVERY_FINISHED } to ProcessRecord{43408908 23295:backport.android.bluetooth/10026} (pid=23295, uid=10026) requires com.example.bluetooth.PERMISSION_BLUETOOTH due to sender backport.android.bluetooth (uid 10026)
+
+		if (DBG) {
+			Log.d(TAG, "redirect:" + convertedIntent.toString());
 		}
 	}
 }
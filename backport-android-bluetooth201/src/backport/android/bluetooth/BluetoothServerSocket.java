@@ -4,13 +4,10 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.util.UUID;
 
-import android.os.Handler;
-
 public class BluetoothServerSocket implements Closeable {
 
 	final BluetoothSocket mSocket;
-	private Handler mHandler;
-	private int mMessage;
+	private ServiceRecordRegistry.Registration mRegistration;
 
 	BluetoothServerSocket(UUID uuid) throws IOException {
 		mSocket = new BluetoothSocket(null, uuid);
@@ -28,17 +25,25 @@ public class BluetoothServerSocket implements Closeable {
 
 	public void close() throws IOException {
 
+		ServiceRecordRegistry.Registration registration;
+
 		synchronized (this) {
-			if (mHandler != null) {
-				mHandler.obtainMessage(mMessage).sendToTarget();
+			registration = mRegistration;
+			mRegistration = null;
+		}
+
+		try {
+			mSocket.close();
+		} finally {
+			if (registration != null) {
+				ServiceRecordRegistry.getInstance().unregister(registration);
 			}
 		}
-		mSocket.close();
 	}
 
-	synchronized void setCloseHandler(Handler handler, int message) {
-		mHandler = handler;
-		mMessage = message;
+	synchronized void setRegistration(
+			ServiceRecordRegistry.Registration registration) {
+		mRegistration = registration;
 	}
 
 }
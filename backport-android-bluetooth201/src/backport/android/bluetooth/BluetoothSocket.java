@@ -134,6 +134,19 @@ public class BluetoothSocket implements Closeable {
 
 	public void connect() throws IOException {
 
+		// pauses discovery and waits for the other page attempts.
+		RadioScheduler scheduler = RadioScheduler.getInstance();
+		scheduler.beginConnect();
+
+		try {
+			connectInternal();
+		} finally {
+			scheduler.endConnect();
+		}
+	}
+
+	private void connectInternal() throws IOException {
+
 		mLock.readLock().lock();
 		try {
 			if (mClosed)
@@ -143,7 +156,17 @@ public class BluetoothSocket implements Closeable {
 				mPort = mSdp.doSdp(); // blocks
 			}
 
-			mRfcommSocket.connect(mRemoteDevice.getAddress(), mPort); // blocks
+			try {
+				mRfcommSocket.connect(mRemoteDevice.getAddress(), mPort); // blocks
+			} catch (IOException e) {
+
+				if (mSdp != null) {
+					// the channel may be stale, ask the device next time.
+					mSdp.invalidate();
+				}
+
+				throw e;
+			}
 		} finally {
 			mLock.readLock().unlock();
 		}
@@ -246,15 +269,17 @@ public class BluetoothSocket implements Closeable {
 	}
 
 	/**
-	 * Helper to perform blocking SDP lookup.
+	 * Helper to perform blocking SDP lookup. Answers are kept in the
+	 * {@link ServiceCatalog} of the device.
 	 */
-	private static class SdpHelper extends IBluetoothDeviceCallback.Stub {
+	static class SdpHelper extends IBluetoothDeviceCallback.Stub {
 
 		private final IBluetoothDevice mService;
 		private final UUID mUuid;
 		private final BluetoothDevice mDevice;
 		private int mChannel;
 		private boolean mCanceled;
+		private boolean mFromCatalog;
 
 		public SdpHelper(BluetoothDevice device, UUID uuid) {
 
@@ -268,10 +293,66 @@ public class BluetoothSocket implements Closeable {
 		 * Returns the RFCOMM channel for the UUID, or throws IOException on
 		 * failure.
 		 */
-		public synchronized int doSdp() throws IOException {
+		public int doSdp() throws IOException {
+
+			int channel = lookup();
+
+			if (channel < 1) {
+
+				// the listening side has no SDP record, it binds the channel
+				// derived from the UUID.
+				channel = RfcommChannelAllocator.preferredChannel(mUuid);
+			}
+			// if (channel < 1)
+			// throw new IOException("Service discovery failed");
+
+			return channel;
+		}
+
+		/**
+		 * Returns the RFCOMM channel recorded for the UUID, from the catalog
+		 * when it is known. {@link ServiceCatalog#NOT_FOUND} if the device has
+		 * no record, {@link ServiceCatalog#UNKNOWN} if it did not answer.
+		 */
+		public int lookup() throws IOException {
+
+			ServiceCatalog catalog = mDevice.getServiceCatalog();
+			int channel = catalog.beginLookup(mUuid);
+
+			if (channel != ServiceCatalog.UNKNOWN) {
+
+				mFromCatalog = true;
+
+				return channel;
+			}
+
+			mFromCatalog = false;
+			channel = ServiceCatalog.UNKNOWN;
+
+			try {
+				channel = query();
+			} finally {
+				catalog.endLookup(mUuid, channel);
+			}
+
+			return channel;
+		}
+
+		/**
+		 * Drops the catalog entry this helper answered from, so the next
+		 * lookup asks the device again.
+		 */
+		void invalidate() {
+
+			if (mFromCatalog) {
+				mDevice.getServiceCatalog().invalidate(mUuid);
+			}
+		}
+
+		private synchronized int query() throws IOException {
 			if (mCanceled)
 				throw new IOException("Service discovery canceled");
-			mChannel = -1;
+			mChannel = ServiceCatalog.UNKNOWN;
 
 			boolean inProgress = false;
 			int uuid16 = UUIDHelper.toUUID16(mUuid);
@@ -296,20 +377,15 @@ public class BluetoothSocket implements Closeable {
 				wait(12000); // block
 
 			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+
+				throw new IOException("Service discovery interrupted");
 			}
 
 			if (mCanceled) {
 
 				throw new IOException("Service discovery canceled");
 			}
-			if (mChannel < 1) {
-
-				// mChannel = uuid16 & DEFAULT_CHANNEL;
-				mChannel = 1;
-				// mChannel = DEFAULT_CHANNEL;
-			}
-			// if (mChannel < 1)
-			// throw new IOException("Service discovery failed");
 
 			return mChannel;
 		}
@@ -318,7 +394,7 @@ public class BluetoothSocket implements Closeable {
 		public synchronized void cancel() {
 			if (!mCanceled) {
 				mCanceled = true;
-				mChannel = -1;
+				mChannel = ServiceCatalog.UNKNOWN;
 				notifyAll(); // unblock
 			}
 		}
@@ -333,7 +409,8 @@ public class BluetoothSocket implements Closeable {
 		public synchronized void onGetRemoteServiceChannelResult(
 				String address, int channel) throws RemoteException {
 			if (!mCanceled) {
-				this.mChannel = channel;
+				this.mChannel = (channel < 1) ? ServiceCatalog.NOT_FOUND
+						: channel;
 				notifyAll(); // unblock
 			}
 		}
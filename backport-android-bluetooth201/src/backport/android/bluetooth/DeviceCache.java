@@ -0,0 +1,710 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * On-disk cache of the remote devices this application has seen: name,
+ * class, last report and the RFCOMM channels of their services.
+ * <p>
+ * Open it once at startup with {@link #open(Context)}. From then on devices
+ * found by discovery and channels resolved by SDP are recorded, and
+ * {@link BluetoothDevice#createRfcommSocketToServiceRecord(UUID)} connects to
+ * a cached channel without asking the device first. A channel that does not
+ * accept the connection is dropped from the cache.
+ * <p>
+ * The file is an append-only log of fixed-layout records, read with a single
+ * read when it is opened and rewritten compactly when it holds too many
+ * superseded records. A discovery reports each device over and over, so
+ * devices seen are written {@link #SAVE_DELAY_MILLIS} later on a background
+ * thread, one record per device for all the reports in between.
+ */
+public final class DeviceCache {
+
+	private static final String TAG = "DeviceCache";
+
+	private static final String FILE_NAME = "backport_bluetooth_devices";
+
+	private static final int MAGIC = 0x42544443; // "BTDC"
+
+	private static final int VERSION = 1;
+
+	/** address, name, class, rssi, time. */
+	private static final int RECORD_SEEN = 1;
+
+	/** address, uuid, channel (0 = forget). */
+	private static final int RECORD_CHANNEL = 2;
+
+	/** rewrite the file once it holds this many records per entry. */
+	private static final int COMPACT_RATIO = 8;
+
+	private static final int COMPACT_MIN_RECORDS = 256;
+
+	private static final long SAVE_DELAY_MILLIS = 2000;
+
+	private static DeviceCache sInstance;
+
+	/**
+	 * What the cache knows of one remote device.
+	 */
+	public static final class Entry {
+
+		private final String mAddress;
+
+		private String mName;
+
+		private int mDeviceClass = BluetoothClass.ERROR;
+
+		private short mRssi = Short.MIN_VALUE;
+
+		private long mLastSeen;
+
+		private final Map<UUID, Integer> mChannels = new HashMap<UUID, Integer>();
+
+		Entry(String address) {
+
+			mAddress = address;
+		}
+
+		public String getAddress() {
+
+			return mAddress;
+		}
+
+		/**
+		 * @return the friendly name, or null.
+		 */
+		public String getName() {
+
+			return mName;
+		}
+
+		/**
+		 * @return the class of device, or {@link BluetoothClass#ERROR}.
+		 */
+		public int getDeviceClass() {
+
+			return mDeviceClass;
+		}
+
+		/**
+		 * @return the RSSI of the last report, or {@link Short#MIN_VALUE}.
+		 */
+		public short getRssi() {
+
+			return mRssi;
+		}
+
+		/**
+		 * @return {@link System#currentTimeMillis()} of the last report.
+		 */
+		public long getLastSeen() {
+
+			return mLastSeen;
+		}
+
+		/**
+		 * @return the RFCOMM channel of the service, or -1.
+		 */
+		public int getChannel(UUID uuid) {
+
+			Integer channel = mChannels.get(uuid);
+
+			return (channel == null) ? -1 : channel.intValue();
+		}
+
+		public UUIDSet getServices() {
+
+			return new UUIDSet(mChannels.keySet().toArray(new UUID[0]));
+		}
+
+		Entry copy() {
+
+			Entry copy = new Entry(mAddress);
+			copy.mName = mName;
+			copy.mDeviceClass = mDeviceClass;
+			copy.mRssi = mRssi;
+			copy.mLastSeen = mLastSeen;
+			copy.mChannels.putAll(mChannels);
+
+			return copy;
+		}
+	}
+
+	private final File mFile;
+
+	private final Map<String, Entry> mEntries = new LinkedHashMap<String, Entry>();
+
+	private int mRecordCount;
+
+	private OutputStream mOut;
+
+	private final ByteArrayOutputStream mRecord = new ByteArrayOutputStream(64);
+
+	private final DataOutputStream mRecordOut = new DataOutputStream(mRecord);
+
+	/** devices seen since the last save, in order. */
+	private final Set<String> mUnsaved = new LinkedHashSet<String>();
+
+	/** created with the first device seen. */
+	private Timer mTimer;
+
+	private TimerTask mSaveTask;
+
+	private final BluetoothEvents.OnDeviceFoundListener mFoundListener = new BluetoothEvents.OnDeviceFoundListener() {
+
+		public void onDeviceFound(BluetoothDevice device,
+				BluetoothClass deviceClass, String name, short rssi) {
+
+			if (device != null) {
+				recordSeen(device.getAddress(), name,
+						(deviceClass == null) ? BluetoothClass.ERROR : deviceClass
+								.getClassOfDevice(), rssi);
+			}
+		}
+	};
+
+	private DeviceCache(File file) {
+
+		mFile = file;
+	}
+
+	/**
+	 * Loads the cache of the application and starts recording.
+	 */
+	public static DeviceCache open(Context context) {
+
+		return open(new File(context.getFilesDir(), FILE_NAME));
+	}
+
+	public static synchronized DeviceCache open(File file) {
+
+		if (sInstance != null) {
+
+			if (sInstance.mFile.equals(file)) {
+				return sInstance;
+			}
+
+			sInstance.close();
+		}
+
+		DeviceCache cache = new DeviceCache(file);
+		cache.load();
+		BluetoothEvents.addOnDeviceFoundListener(cache.mFoundListener);
+		sInstance = cache;
+
+		return cache;
+	}
+
+	/**
+	 * @return the opened cache, or null.
+	 */
+	static synchronized DeviceCache getInstance() {
+
+		return sInstance;
+	}
+
+	/**
+	 * Stops recording and closes the file.
+	 */
+	public void close() {
+
+		BluetoothEvents.removeOnDeviceFoundListener(mFoundListener);
+
+		synchronized (DeviceCache.class) {
+
+			if (sInstance == this) {
+				sInstance = null;
+			}
+		}
+
+		synchronized (this) {
+			save();
+
+			if (mTimer != null) {
+				mTimer.cancel();
+				mTimer = null;
+			}
+
+			closeOutput();
+		}
+	}
+
+	/**
+	 * @return copies of the cached entries, least recently added first.
+	 */
+	public synchronized List<Entry> getEntries() {
+
+		List<Entry> entries = new ArrayList<Entry>(mEntries.size());
+
+		for (Entry entry : mEntries.values()) {
+			entries.add(entry.copy());
+		}
+
+		return Collections.unmodifiableList(entries);
+	}
+
+	/**
+	 * @return a copy of the entry of {@code address}, or null.
+	 */
+	public synchronized Entry getEntry(String address) {
+
+		Entry entry = mEntries.get(address);
+
+		return (entry == null) ? null : entry.copy();
+	}
+
+	/**
+	 * Forgets every device and truncates the file.
+	 */
+	public synchronized void clear() {
+
+		mEntries.clear();
+		mUnsaved.clear();
+		rewrite();
+	}
+
+	synchronized void recordSeen(String address, String name,
+			int deviceClass, short rssi) {
+
+		Entry entry = getOrCreate(address);
+		long now = System.currentTimeMillis();
+
+		if (name != null) {
+			entry.mName = name;
+		}
+
+		if (deviceClass != BluetoothClass.ERROR) {
+			entry.mDeviceClass = deviceClass;
+		}
+
+		if (rssi != Short.MIN_VALUE) {
+			entry.mRssi = rssi;
+		}
+
+		entry.mLastSeen = now;
+		mUnsaved.add(address);
+
+		if (mSaveTask == null) {
+
+			if (mTimer == null) {
+				mTimer = new Timer(TAG, true);
+			}
+
+			mSaveTask = new TimerTask() {
+
+				@Override
+				public void run() {
+
+					synchronized (DeviceCache.this) {
+						save();
+					}
+				}
+			};
+			mTimer.schedule(mSaveTask, SAVE_DELAY_MILLIS);
+		}
+	}
+
+	/**
+	 * Records the RFCOMM channel of a service, or forgets it if
+	 * {@code channel} is less than 1.
+	 */
+	synchronized void recordChannel(String address, UUID uuid, int channel) {
+
+		Entry entry = getOrCreate(address);
+
+		if (channel > 0) {
+
+			Integer old = entry.mChannels.put(uuid, channel);
+
+			if (old != null && old.intValue() == channel) {
+				return;
+			}
+		} else if (entry.mChannels.remove(uuid) == null) {
+			return;
+		}
+
+		try {
+			writeChannelRecord(mRecordOut, address, uuid, Math.max(channel, 0));
+		} catch (IOException e) {
+			// never thrown by a ByteArrayOutputStream.
+		}
+
+		append(1);
+	}
+
+	/**
+	 * @return the cached channel, or -1.
+	 */
+	synchronized int getChannel(String address, UUID uuid) {
+
+		Entry entry = mEntries.get(address);
+
+		return (entry == null) ? -1 : entry.getChannel(uuid);
+	}
+
+	private Entry getOrCreate(String address) {
+
+		Entry entry = mEntries.get(address);
+
+		if (entry == null) {
+
+			entry = new Entry(address);
+			mEntries.put(address, entry);
+		}
+
+		return entry;
+	}
+
+	private void load() {
+
+		if (!mFile.exists()) {
+			return;
+		}
+
+		byte[] data;
+
+		try {
+			data = readFully(mFile);
+		} catch (IOException e) {
+			Log.e(TAG, "", e);
+
+			return;
+		}
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				data));
+
+		// each record is read whole before it is applied, so a record cut
+		// short does not leave an entry behind.
+		try {
+
+			if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+
+				Log.w(TAG, mFile + " is not a device cache, replaced");
+				rewrite();
+
+				return;
+			}
+
+			for (;;) {
+
+				int type = in.read();
+
+				if (type == -1) {
+					break;
+				}
+
+				String address = readAddress(in);
+				Entry entry;
+
+				switch (type) {
+				case RECORD_SEEN:
+					String name = in.readUTF();
+					int deviceClass = in.readInt();
+					short rssi = in.readShort();
+					long time = in.readLong();
+					entry = getOrCreate(address);
+
+					if (name.length() > 0) {
+						entry.mName = name;
+					}
+
+					if (deviceClass != BluetoothClass.ERROR) {
+						entry.mDeviceClass = deviceClass;
+					}
+
+					if (rssi != Short.MIN_VALUE) {
+						entry.mRssi = rssi;
+					}
+
+					entry.mLastSeen = time;
+					break;
+				case RECORD_CHANNEL:
+					UUID uuid = new UUID(in.readLong(), in.readLong());
+					int channel = in.readUnsignedByte();
+					entry = getOrCreate(address);
+
+					if (channel > 0) {
+						entry.mChannels.put(uuid, channel);
+					} else {
+						entry.mChannels.remove(uuid);
+					}
+					break;
+				default:
+					throw new IOException("unknown record " + type);
+				}
+
+				++mRecordCount;
+			}
+		} catch (EOFException e) {
+			// the last append was cut short. records appended after it would
+			// not be read back, so the file is rewritten from what was read.
+			Log.w(TAG, "truncated record at the end of " + mFile);
+			rewrite();
+		} catch (IOException e) {
+			Log.e(TAG, "", e);
+			rewrite();
+		}
+
+		Log.d(TAG, "loaded " + mEntries.size() + " devices from "
+				+ mRecordCount + " records");
+	}
+
+	/**
+	 * Writes a record for each device seen since the last save.
+	 */
+	private void save() {
+
+		if (mSaveTask != null) {
+			mSaveTask.cancel();
+			mSaveTask = null;
+		}
+
+		if (mUnsaved.isEmpty()) {
+			return;
+		}
+
+		int records = 0;
+
+		try {
+
+			for (String address : mUnsaved) {
+
+				Entry entry = mEntries.get(address);
+
+				if (entry != null) {
+					writeSeenRecord(mRecordOut, entry);
+					++records;
+				}
+			}
+		} catch (IOException e) {
+			// never thrown by a ByteArrayOutputStream.
+		}
+
+		mUnsaved.clear();
+		append(records);
+	}
+
+	/**
+	 * Writes the pending records to the end of the file.
+	 */
+	private void append(int records) {
+
+		try {
+
+			if (mOut == null) {
+
+				if (!mFile.exists() || mFile.length() == 0) {
+
+					rewrite();
+					mRecord.reset();
+
+					return;
+				}
+
+				mOut = new FileOutputStream(mFile, true);
+			}
+
+			mRecord.writeTo(mOut);
+			mOut.flush();
+			mRecordCount += records;
+		} catch (IOException e) {
+			Log.e(TAG, "", e);
+			closeOutput();
+		} finally {
+			mRecord.reset();
+		}
+
+		if (mRecordCount > COMPACT_MIN_RECORDS
+				&& mRecordCount > mEntries.size() * COMPACT_RATIO) {
+			rewrite();
+		}
+	}
+
+	/**
+	 * Replaces the file with one record per cached fact.
+	 */
+	private void rewrite() {
+
+		closeOutput();
+
+		// the devices not saved yet are written along.
+		mUnsaved.clear();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		int records = 0;
+
+		try {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+
+			for (Entry entry : mEntries.values()) {
+
+				writeSeenRecord(out, entry);
+				++records;
+
+				for (Map.Entry<UUID, Integer> channel : entry.mChannels
+						.entrySet()) {
+
+					writeChannelRecord(out, entry.mAddress, channel.getKey(),
+							channel.getValue().intValue());
+					++records;
+				}
+			}
+
+			File tmp = new File(mFile.getPath() + ".tmp");
+			FileOutputStream fos = new FileOutputStream(tmp);
+
+			try {
+				bytes.writeTo(fos);
+			} finally {
+				fos.close();
+			}
+
+			if (!tmp.renameTo(mFile)) {
+				throw new IOException("can't rename " + tmp + " to " + mFile);
+			}
+
+			mRecordCount = records;
+		} catch (IOException e) {
+			Log.e(TAG, "", e);
+		}
+	}
+
+	private void closeOutput() {
+
+		if (mOut != null) {
+
+			try {
+				mOut.close();
+			} catch (IOException e) {
+			}
+
+			mOut = null;
+		}
+	}
+
+	private static void writeSeenRecord(DataOutputStream out, Entry entry)
+			throws IOException {
+
+		out.writeByte(RECORD_SEEN);
+		writeAddress(out, entry.mAddress);
+		out.writeUTF((entry.mName == null) ? "" : entry.mName);
+		out.writeInt(entry.mDeviceClass);
+		out.writeShort(entry.mRssi);
+		out.writeLong(entry.mLastSeen);
+	}
+
+	private static void writeChannelRecord(DataOutputStream out,
+			String address, UUID uuid, int channel) throws IOException {
+
+		out.writeByte(RECORD_CHANNEL);
+		writeAddress(out, address);
+		out.writeLong(uuid.getMostSignificantBits());
+		out.writeLong(uuid.getLeastSignificantBits());
+		out.writeByte(channel);
+	}
+
+	/**
+	 * Writes "00:11:22:AA:BB:CC" as 6 bytes.
+	 */
+	private static void writeAddress(DataOutputStream out, String address)
+			throws IOException {
+
+		for (int i = 0; i < 6; ++i) {
+			out.writeByte(Integer.parseInt(address.substring(i * 3, i * 3 + 2),
+					16));
+		}
+	}
+
+	private static String readAddress(DataInputStream in) throws IOException {
+
+		StringBuilder b = new StringBuilder(17);
+
+		for (int i = 0; i < 6; ++i) {
+
+			if (i > 0) {
+				b.append(':');
+			}
+
+			int octet = in.readUnsignedByte();
+			b.append(Character.toUpperCase(Character.forDigit(octet >> 4, 16)));
+			b.append(Character.toUpperCase(Character.forDigit(octet & 0xF, 16)));
+		}
+
+		return b.toString();
+	}
+
+	private static byte[] readFully(File file) throws IOException {
+
+		InputStream in = new FileInputStream(file);
+
+		try {
+			byte[] data = new byte[(int) file.length()];
+			int n = 0;
+
+			while (n < data.length) {
+
+				int read = in.read(data, n, data.length - n);
+
+				if (read < 0) {
+					break;
+				}
+
+				n += read;
+			}
+
+			if (n == data.length) {
+				return data;
+			}
+
+			byte[] tmp = new byte[n];
+			System.arraycopy(data, 0, tmp, 0, n);
+
+			return tmp;
+		} finally {
+			in.close();
+		}
+	}
+}
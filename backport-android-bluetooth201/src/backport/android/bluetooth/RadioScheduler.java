@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Keeps device discovery out of the way of connections.
+ * <p>
+ * Inquiry shares the radio with paging and with open RFCOMM links, so while a
+ * {@link BluetoothSocket#connect()} or a transfer marked with
+ * {@link #beginTransfer()} is active, a running discovery is canceled and
+ * {@link BluetoothAdapter#startDiscovery()} is deferred. The discovery is
+ * started again once the last of them ends. Page attempts are serialized, so
+ * connects to different devices do not compete with each other either.
+ */
+public final class RadioScheduler {
+
+	private static final String TAG = "RadioScheduler";
+
+	private static final RadioScheduler sInstance = new RadioScheduler();
+
+	/** held for the duration of a page attempt. */
+	private final ReentrantLock mPageLock = new ReentrantLock(true);
+
+	/** connects and transfers in progress. */
+	private int mActive;
+
+	/** a discovery was paused or requested while mActive > 0. */
+	private boolean mDiscoveryDeferred;
+
+	private long mDeferredSince;
+
+	private int mDeferredCount;
+
+	private long mDeferredMillis;
+
+	private RadioScheduler() {
+	}
+
+	public static RadioScheduler getInstance() {
+
+		return sInstance;
+	}
+
+	/**
+	 * Marks the start of a bulk transfer. Discovery stays paused until the
+	 * matching {@link #endTransfer()}.
+	 */
+	public void beginTransfer() {
+
+		acquire();
+	}
+
+	public void endTransfer() {
+
+		release();
+	}
+
+	/**
+	 * @return how many times discovery was paused or deferred.
+	 */
+	public synchronized int getDeferredCount() {
+
+		return mDeferredCount;
+	}
+
+	/**
+	 * @return total time discovery was kept off, in milliseconds, including
+	 *         the current deferral.
+	 */
+	public synchronized long getDeferredMillis() {
+
+		long millis = mDeferredMillis;
+
+		if (mDiscoveryDeferred) {
+			millis += SystemClock.elapsedRealtime() - mDeferredSince;
+		}
+
+		return millis;
+	}
+
+	public synchronized boolean isDiscoveryDeferred() {
+
+		return mDiscoveryDeferred;
+	}
+
+	/**
+	 * Waits for the page attempts in progress and pauses discovery. Must be
+	 * followed by {@link #endConnect()}.
+	 */
+	void beginConnect() {
+
+		acquire();
+		mPageLock.lock();
+	}
+
+	void endConnect() {
+
+		mPageLock.unlock();
+		release();
+	}
+
+	/**
+	 * @return true if a discovery must not be started now; it is then
+	 *         started when the radio is free.
+	 */
+	synchronized boolean deferDiscovery() {
+
+		if (mActive == 0) {
+			return false;
+		}
+
+		markDeferred();
+
+		return true;
+	}
+
+	/**
+	 * Drops a deferred discovery.
+	 *
+	 * @return true if one was deferred.
+	 */
+	synchronized boolean cancelDeferredDiscovery() {
+
+		if (!mDiscoveryDeferred) {
+			return false;
+		}
+
+		unmarkDeferred();
+
+		return true;
+	}
+
+	private void acquire() {
+
+		boolean first;
+
+		synchronized (this) {
+			first = (mActive++ == 0);
+		}
+
+		if (!first) {
+			return;
+		}
+
+		BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+
+		if (adapter.isDiscovering() && adapter.cancelDiscoveryNow()) {
+
+			Log.d(TAG, "discovery paused");
+
+			synchronized (this) {
+
+				if (mActive > 0) {
+					markDeferred();
+				}
+			}
+		}
+	}
+
+	private void release() {
+
+		synchronized (this) {
+
+			if (--mActive > 0 || !mDiscoveryDeferred) {
+				return;
+			}
+
+			unmarkDeferred();
+		}
+
+		Log.d(TAG, "discovery resumed");
+		BluetoothAdapter.getDefaultAdapter().startDiscoveryNow();
+	}
+
+	private void markDeferred() {
+
+		if (!mDiscoveryDeferred) {
+
+			mDiscoveryDeferred = true;
+			mDeferredSince = SystemClock.elapsedRealtime();
+			++mDeferredCount;
+		}
+	}
+
+	private void unmarkDeferred() {
+
+		mDiscoveryDeferred = false;
+		mDeferredMillis += SystemClock.elapsedRealtime() - mDeferredSince;
+	}
+}
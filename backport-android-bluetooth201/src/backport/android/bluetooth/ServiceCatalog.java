@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * RFCOMM channels of the services of one remote device, as answered by its
+ * SDP server.
+ * <p>
+ * The system service accepts only one outstanding SDP query per device, so
+ * lookups on a device are serialized here: a lookup waits for the one in
+ * progress and is then answered from the catalog when possible.
+ * <p>
+ * Channels found are also recorded in the {@link DeviceCache}, if one is open,
+ * and channels unknown here are taken from it. Only the catalogs of the
+ * {@link #MAX_CATALOGS} devices looked up last are kept, so a catalog dropped
+ * loses little more than the services a device was found not to have.
+ */
+final class ServiceCatalog {
+
+	/** the UUID has not been looked up yet. */
+	static final int UNKNOWN = 0;
+
+	/** the device has no RFCOMM service record for the UUID. */
+	static final int NOT_FOUND = -1;
+
+	/** how long a lookup waits for the one in progress on the same device. */
+	private static final long LOOKUP_WAIT_MILLIS = 15000;
+
+	private static final int MAX_CATALOGS = 32;
+
+	/** least recently used first. */
+	private static final Map<String, ServiceCatalog> sCatalogs = new LinkedHashMap<String, ServiceCatalog>(
+			16, 0.75f, true) {
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<String, ServiceCatalog> eldest) {
+
+			// a catalog with a lookup in progress serializes the queries to
+			// its device, so it stays until the lookup ends.
+			return size() > MAX_CATALOGS && !eldest.getValue().isBusy();
+		}
+	};
+
+	private final String mAddress;
+
+	private final Map<UUID, Integer> mChannels = new HashMap<UUID, Integer>();
+
+	/** true while an SDP query to the device is outstanding. */
+	private boolean mBusy;
+
+	private ServiceCatalog(String address) {
+
+		mAddress = address;
+	}
+
+	static ServiceCatalog get(String address) {
+
+		synchronized (sCatalogs) {
+
+			ServiceCatalog catalog = sCatalogs.get(address);
+
+			if (catalog == null) {
+
+				catalog = new ServiceCatalog(address);
+				sCatalogs.put(address, catalog);
+			}
+
+			return catalog;
+		}
+	}
+
+	/**
+	 * @return the channel, {@link #NOT_FOUND} or {@link #UNKNOWN}.
+	 */
+	synchronized int getChannel(UUID uuid) {
+
+		Integer channel = mChannels.get(uuid);
+
+		if (channel != null) {
+			return channel.intValue();
+		}
+
+		DeviceCache cache = DeviceCache.getInstance();
+
+		if (cache != null) {
+
+			int cached = cache.getChannel(mAddress, uuid);
+
+			if (cached > 0) {
+
+				mChannels.put(uuid, cached);
+
+				return cached;
+			}
+		}
+
+		return UNKNOWN;
+	}
+
+	/**
+	 * Waits until no SDP query to the device is outstanding. If the catalog
+	 * knows {@code uuid} by then its entry is returned; otherwise the caller
+	 * owns the device until {@link #endLookup(UUID, int)} and
+	 * {@link #UNKNOWN} is returned.
+	 * 
+	 * @throws IOException if interrupted, or if the query in progress did not
+	 *             end in time. The caller does not own the device then.
+	 */
+	synchronized int beginLookup(UUID uuid) throws IOException {
+
+		long deadline = System.currentTimeMillis() + LOOKUP_WAIT_MILLIS;
+
+		while (mBusy) {
+
+			long remaining = deadline - System.currentTimeMillis();
+
+			if (remaining <= 0) {
+				// the other lookup is stuck, a second query would only fail.
+				throw new IOException("Service discovery still in progress");
+			}
+
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Service discovery interrupted");
+			}
+		}
+
+		int channel = getChannel(uuid);
+
+		if (channel == UNKNOWN) {
+			mBusy = true;
+		}
+
+		return channel;
+	}
+
+	/**
+	 * Records the answer of the query started after
+	 * {@link #beginLookup(UUID)}. {@link #UNKNOWN} records nothing, e.g. when
+	 * the query was canceled or timed out.
+	 */
+	synchronized void endLookup(UUID uuid, int channel) {
+
+		if (channel > 0) {
+
+			mChannels.put(uuid, channel);
+
+			DeviceCache cache = DeviceCache.getInstance();
+
+			if (cache != null) {
+				cache.recordChannel(mAddress, uuid, channel);
+			}
+		} else if (channel == NOT_FOUND) {
+			mChannels.put(uuid, NOT_FOUND);
+		}
+
+		mBusy = false;
+		notifyAll();
+	}
+
+	/**
+	 * Forgets {@code uuid}, e.g. after connecting to its recorded channel
+	 * failed because the remote service moved.
+	 */
+	synchronized void invalidate(UUID uuid) {
+
+		mChannels.remove(uuid);
+
+		DeviceCache cache = DeviceCache.getInstance();
+
+		if (cache != null) {
+			cache.recordChannel(mAddress, uuid, NOT_FOUND);
+		}
+	}
+
+	synchronized boolean isBusy() {
+
+		return mBusy;
+	}
+
+	synchronized void clear() {
+
+		mChannels.clear();
+	}
+
+	/**
+	 * @return the UUIDs the device is known to serve.
+	 */
+	synchronized UUIDSet getServices() {
+
+		UUIDSet services = new UUIDSet();
+
+		for (Map.Entry<UUID, Integer> entry : mChannels.entrySet()) {
+
+			if (entry.getValue().intValue() > 0) {
+				services.add(entry.getKey());
+			}
+		}
+
+		return services;
+	}
+}
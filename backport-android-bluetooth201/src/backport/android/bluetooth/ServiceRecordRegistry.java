@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import android.bluetooth.Database;
+import android.util.Log;
+
+/**
+ * Process-wide table of the services we are listening for, keyed by service
+ * UUID. Each entry owns its RFCOMM channel and SDP record handle, and gives
+ * both back when it is unregistered.
+ */
+final class ServiceRecordRegistry {
+
+	private static final String TAG = "ServiceRecordRegistry";
+
+	/** Record handle of a service that has no SDP record. */
+	static final int NO_RECORD = -1;
+
+	private static final ServiceRecordRegistry sInstance = new ServiceRecordRegistry();
+
+	static final class Registration {
+
+		final String mName;
+
+		final UUID mUuid;
+
+		final int mChannel;
+
+		final int mHandle;
+
+		Registration(String name, UUID uuid, int channel, int handle) {
+
+			mName = name;
+			mUuid = uuid;
+			mChannel = channel;
+			mHandle = handle;
+		}
+	}
+
+	private final Map<UUID, Registration> mRegistrations = new HashMap<UUID, Registration>();
+
+	private ServiceRecordRegistry() {
+	}
+
+	static ServiceRecordRegistry getInstance() {
+
+		return sInstance;
+	}
+
+	/**
+	 * Records that {@code uuid} is served on {@code channel}. The channel must
+	 * have been taken from {@link RfcommChannelAllocator}.
+	 *
+	 * @throws IOException
+	 *             if the UUID is already being listened for.
+	 */
+	synchronized Registration register(String name, UUID uuid, int channel,
+			int handle) throws IOException {
+
+		if (mRegistrations.containsKey(uuid)) {
+
+			throw new IOException("already listening for " + uuid);
+		}
+
+		Registration registration = new Registration(name, uuid, channel,
+				handle);
+		mRegistrations.put(uuid, registration);
+
+		return registration;
+	}
+
+	/**
+	 * Removes the registration, releasing its channel and SDP record.
+	 */
+	void unregister(Registration registration) {
+
+		synchronized (this) {
+
+			if (mRegistrations.get(registration.mUuid) != registration) {
+				return;
+			}
+
+			mRegistrations.remove(registration.mUuid);
+		}
+
+		RfcommChannelAllocator.getInstance().release(registration.mChannel);
+
+		if (registration.mHandle != NO_RECORD) {
+
+			try {
+				Log.d(TAG, "Removing service record "
+						+ Integer.toHexString(registration.mHandle));
+				Database.getInstance().removeServiceRecord(
+						registration.mHandle);
+			} catch (Exception e) {
+				Log.e(TAG, "", e);
+			}
+		}
+	}
+
+	/**
+	 * @return the channel {@code uuid} is served on, or -1.
+	 */
+	synchronized int getChannel(UUID uuid) {
+
+		Registration registration = mRegistrations.get(uuid);
+
+		return (registration == null) ? -1 : registration.mChannel;
+	}
+}
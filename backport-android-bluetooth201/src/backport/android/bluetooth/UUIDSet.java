@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Set of service UUIDs.
+ * <p>
+ * UUIDs with a 16-bit short form, which is almost every UUID a remote device
+ * advertises, are kept as bits indexed by the short form, so membership and
+ * the set operations are a few word operations. Other UUIDs go to a hash set.
+ * Not thread safe.
+ */
+public final class UUIDSet {
+
+	private static final long[] EMPTY_WORDS = new long[0];
+
+	/** bit (uuid16 & 63) of word (uuid16 >> 6) is set for each 16-bit UUID. */
+	private long[] mWords = EMPTY_WORDS;
+
+	/** UUIDs without a 16-bit short form, or null. */
+	private Set<UUID> mOthers;
+
+	public UUIDSet() {
+	}
+
+	public UUIDSet(UUID[] uuids) {
+
+		if (uuids != null) {
+
+			for (UUID uuid : uuids) {
+				add(uuid);
+			}
+		}
+	}
+
+	public UUIDSet(UUIDSet other) {
+
+		addAll(other);
+	}
+
+	public boolean add(UUID uuid) {
+
+		if (!UUIDHelper.isUUID16(uuid)) {
+
+			if (mOthers == null) {
+				mOthers = new HashSet<UUID>();
+			}
+
+			return mOthers.add(uuid);
+		}
+
+		int uuid16 = UUIDHelper.toUUID16(uuid);
+		int index = uuid16 >> 6;
+		long bit = 1L << uuid16;
+
+		if (index >= mWords.length) {
+
+			long[] words = new long[index + 1];
+			System.arraycopy(mWords, 0, words, 0, mWords.length);
+			mWords = words;
+		}
+
+		boolean added = (mWords[index] & bit) == 0;
+		mWords[index] |= bit;
+
+		return added;
+	}
+
+	public boolean remove(UUID uuid) {
+
+		if (!UUIDHelper.isUUID16(uuid)) {
+			return mOthers != null && mOthers.remove(uuid);
+		}
+
+		int uuid16 = UUIDHelper.toUUID16(uuid);
+		int index = uuid16 >> 6;
+		long bit = 1L << uuid16;
+
+		if (index >= mWords.length || (mWords[index] & bit) == 0) {
+			return false;
+		}
+
+		mWords[index] &= ~bit;
+
+		return true;
+	}
+
+	public boolean contains(UUID uuid) {
+
+		if (uuid == null) {
+			return false;
+		}
+
+		if (!UUIDHelper.isUUID16(uuid)) {
+			return mOthers != null && mOthers.contains(uuid);
+		}
+
+		int uuid16 = UUIDHelper.toUUID16(uuid);
+		int index = uuid16 >> 6;
+
+		return index < mWords.length && (mWords[index] & (1L << uuid16)) != 0;
+	}
+
+	/**
+	 * @return true if the two sets share at least one UUID.
+	 */
+	public boolean containsAny(UUIDSet other) {
+
+		int n = Math.min(mWords.length, other.mWords.length);
+
+		for (int i = 0; i < n; ++i) {
+
+			if ((mWords[i] & other.mWords[i]) != 0) {
+				return true;
+			}
+		}
+
+		if (mOthers == null || other.mOthers == null) {
+			return false;
+		}
+
+		Set<UUID> small = mOthers;
+		Set<UUID> large = other.mOthers;
+
+		if (small.size() > large.size()) {
+			small = other.mOthers;
+			large = mOthers;
+		}
+
+		for (UUID uuid : small) {
+
+			if (large.contains(uuid)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return true if every UUID of {@code other} is in this set.
+	 */
+	public boolean containsAll(UUIDSet other) {
+
+		for (int i = 0; i < other.mWords.length; ++i) {
+
+			long mine = (i < mWords.length) ? mWords[i] : 0;
+
+			if ((other.mWords[i] & ~mine) != 0) {
+				return false;
+			}
+		}
+
+		if (other.mOthers == null || other.mOthers.isEmpty()) {
+			return true;
+		}
+
+		return mOthers != null && mOthers.containsAll(other.mOthers);
+	}
+
+	public void addAll(UUIDSet other) {
+
+		if (other.mWords.length > mWords.length) {
+
+			long[] words = new long[other.mWords.length];
+			System.arraycopy(mWords, 0, words, 0, mWords.length);
+			mWords = words;
+		}
+
+		for (int i = 0; i < other.mWords.length; ++i) {
+			mWords[i] |= other.mWords[i];
+		}
+
+		if (other.mOthers != null && !other.mOthers.isEmpty()) {
+
+			if (mOthers == null) {
+				mOthers = new HashSet<UUID>();
+			}
+
+			mOthers.addAll(other.mOthers);
+		}
+	}
+
+	public void retainAll(UUIDSet other) {
+
+		for (int i = 0; i < mWords.length; ++i) {
+			mWords[i] &= (i < other.mWords.length) ? other.mWords[i] : 0;
+		}
+
+		if (mOthers != null) {
+
+			if (other.mOthers == null) {
+				mOthers.clear();
+			} else {
+				mOthers.retainAll(other.mOthers);
+			}
+		}
+	}
+
+	public void clear() {
+
+		mWords = EMPTY_WORDS;
+		mOthers = null;
+	}
+
+	public int size() {
+
+		int size = (mOthers == null) ? 0 : mOthers.size();
+
+		for (long word : mWords) {
+			size += Long.bitCount(word);
+		}
+
+		return size;
+	}
+
+	public boolean isEmpty() {
+
+		for (long word : mWords) {
+
+			if (word != 0) {
+				return false;
+			}
+		}
+
+		return mOthers == null || mOthers.isEmpty();
+	}
+
+	public UUID[] toArray() {
+
+		UUID[] uuids = new UUID[size()];
+		int n = 0;
+
+		for (int i = 0; i < mWords.length; ++i) {
+
+			long word = mWords[i];
+
+			while (word != 0) {
+
+				int bit = Long.numberOfTrailingZeros(word);
+				uuids[n++] = UUIDHelper.fromUUID16((i << 6) | bit);
+				word &= word - 1;
+			}
+		}
+
+		if (mOthers != null) {
+
+			for (Iterator<UUID> i = mOthers.iterator(); i.hasNext();) {
+				uuids[n++] = i.next();
+			}
+		}
+
+		return uuids;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+
+		if (!(o instanceof UUIDSet)) {
+			return false;
+		}
+
+		UUIDSet other = (UUIDSet) o;
+
+		return containsAll(other) && other.containsAll(this);
+	}
+
+	@Override
+	public int hashCode() {
+
+		int hash = (mOthers == null) ? 0 : mOthers.hashCode();
+
+		for (int i = 0; i < mWords.length; ++i) {
+
+			long word = mWords[i];
+
+			if (word != 0) {
+				hash += i ^ (int) (word ^ (word >>> 32));
+			}
+		}
+
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+
+		StringBuilder b = new StringBuilder("[");
+		UUID[] uuids = toArray();
+
+		for (int i = 0; i < uuids.length; ++i) {
+
+			if (i > 0) {
+				b.append(", ");
+			}
+
+			b.append(uuids[i]);
+		}
+
+		return b.append(']').toString();
+	}
+}
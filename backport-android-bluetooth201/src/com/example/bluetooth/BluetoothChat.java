@@ -38,6 +38,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 import backport.android.bluetooth.BluetoothAdapter;
 import backport.android.bluetooth.BluetoothDevice;
+import backport.android.bluetooth.DeviceCache;
 import backport.android.bluetooth.R;
 
 /**
@@ -105,6 +106,10 @@ public class BluetoothChat extends Activity {
             finish();
             return;
         }
+
+        // Load the devices seen by earlier runs, so they can be connected
+        // to without a discovery
+        DeviceCache.open(this);
     }
 
     @Override
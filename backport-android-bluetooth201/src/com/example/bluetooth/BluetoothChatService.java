@@ -320,13 +320,11 @@ public class BluetoothChatService {
             Log.i(TAG, "BEGIN mConnectThread");
             setName("ConnectThread");
 
-            // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
-
             // Make a connection to the BluetoothSocket
             try {
                 // This is a blocking call and will only return on a
-                // successful connection or an exception
+                // successful connection or an exception. Discovery is
+                // paused while it pages the device.
                 mmSocket.connect();
             } catch (IOException e) {
                 connectionFailed();
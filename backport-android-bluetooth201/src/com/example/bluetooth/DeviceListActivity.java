@@ -103,8 +103,10 @@ public class DeviceListActivity extends Activity {
         // Get the local Bluetooth adapter
         mBtAdapter = BluetoothAdapter.getDefaultAdapter();
 
-        // Get a set of currently paired devices
+        // Get a set of currently paired devices, followed by the devices
+        // seen by earlier runs
         Set<BluetoothDevice> pairedDevices = mBtAdapter.getBondedDevices();
+        pairedDevices.addAll(mBtAdapter.getCachedDevices());
 
         // If there are paired devices, add each one to the ArrayAdapter
         if (pairedDevices.size() > 0) {